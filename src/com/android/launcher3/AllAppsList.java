@@ -22,6 +22,7 @@ import android.content.Context;
 import com.android.launcher3.compat.LauncherActivityInfoCompat;
 import com.android.launcher3.compat.LauncherAppsCompat;
 import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.util.ComponentKey;
 
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -232,34 +233,14 @@ class AllAppsList {
         return null;
     }
 
-    public AppInfo unreadNumbersChanged(Context context, ComponentName component,
-            int unreadNum) {
-
-        if (component == null) { return null; }
-
-        LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(context);
-        UserHandleCompat myUserHandle = UserHandleCompat.myUserHandle();
-        List<LauncherActivityInfoCompat> matches =
-                launcherApps.getActivityList(component.getPackageName(), myUserHandle);
-
-        for (LauncherActivityInfoCompat info : matches) {
-            if (component.getPackageName().equals(info.getComponentName().getPackageName())) {
-
-                AppInfo appInfo = findApplicationInfoLocked(
-                        component.getPackageName(), myUserHandle,
-                        component.getClassName());
-
-                if (appInfo == null) {
-                    return null;
-                }
-
-                appInfo.unreadNum = unreadNum;
-                mIconCache.remove(appInfo.componentName, myUserHandle);
-                mIconCache.getTitleAndIcon(appInfo, info, false/* useLowResIcon */);
-                return appInfo;
+    /**
+     * Adds the apps for the given components to {@param out}, with a single pass over the list.
+     */
+    public void findApplicationInfosLocked(HashSet<ComponentKey> keys, ArrayList<AppInfo> out) {
+        for (AppInfo info : data) {
+            if (keys.contains(info.toComponentKey())) {
+                out.add(info);
             }
         }
-
-        return null;
     }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.util.LruCache;
+
+import org.codeaurora.snaplauncher.R;
+
+/**
+ * Draws the unread count badge over an icon. The badge is drawn at draw time, on top of the
+ * icon bitmap, so that a change of the count never requires a new icon bitmap.
+ *
+ * Badges are rendered once per count text into small glyph bitmaps, so that drawing a badge is
+ * a single bitmap blit instead of measuring and rendering text on every frame.
+ *
+ * Must only be used on the UI thread.
+ */
+public class BadgeRenderer {
+
+    // Counts of 1000 and more all show as "999+".
+    private static final int MAX_COUNT = 1000;
+    // Only a handful of distinct counts are on screen at a time.
+    private static final int MAX_GLYPHS = 32;
+
+    private final boolean mEnabled;
+    private final float mTextSize;
+    private final float mHeight;
+    private final float mPadding;
+    private final float mRadius;
+    private final int mMinWidth;
+
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
+    private final Paint mBackgroundPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mGlyphPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final RectF mTempRect = new RectF();
+
+    // Pre-rendered badges, keyed by the count clamped to MAX_COUNT, which maps one to one to the
+    // badge text.
+    private final LruCache<Integer, Bitmap> mGlyphs = new LruCache<>(MAX_GLYPHS);
+
+    public BadgeRenderer(Context context) {
+        final Resources res = context.getResources();
+        mEnabled = Utilities.isUnreadCountEnabled(context);
+        mTextSize = res.getDimension(R.dimen.infomation_count_textsize);
+        mHeight = res.getDimension(R.dimen.infomation_count_height);
+        mPadding = res.getDimension(R.dimen.infomation_count_padding);
+        mRadius = res.getDimension(R.dimen.infomation_count_circle_radius);
+        mMinWidth = res.getDimensionPixelSize(R.dimen.infomation_count_min_width);
+
+        mTextPaint.setColor(Color.WHITE);
+        mTextPaint.setTextSize(mTextSize);
+        mBackgroundPaint.setColor(res.getColor(R.color.infomation_count_circle_color));
+    }
+
+    /**
+     * Draws the badge in the top right corner of the icon.
+     *
+     * @param iconLeft the left edge of the icon, in canvas coordinates
+     * @param iconTop the top edge of the icon, in canvas coordinates
+     * @param iconSize the size the icon is drawn at
+     * @param count the unread count, nothing is drawn if it is not positive
+     */
+    public void draw(Canvas canvas, int iconLeft, int iconTop, int iconSize, int count) {
+        if (!mEnabled || count <= 0) {
+            return;
+        }
+        Bitmap glyph = getGlyph(Math.min(count, MAX_COUNT));
+        canvas.drawBitmap(glyph, iconLeft + iconSize - 1 - glyph.getWidth(), iconTop + 1,
+                mGlyphPaint);
+    }
+
+    private Bitmap getGlyph(int count) {
+        Bitmap glyph = mGlyphs.get(count);
+        if (glyph == null) {
+            glyph = createGlyph(count >= MAX_COUNT ? "999+" : String.valueOf(count));
+            mGlyphs.put(count, glyph);
+        }
+        return glyph;
+    }
+
+    private Bitmap createGlyph(String text) {
+        int textWidth = (int) (mTextPaint.measureText(text) + 1);
+        float width = Math.max(textWidth + mPadding * 2, mMinWidth);
+        Bitmap glyph = Bitmap.createBitmap((int) Math.ceil(width), (int) Math.ceil(mHeight),
+                Bitmap.Config.ARGB_8888);
+
+        // Right aligned, like the badge over the icon.
+        float right = glyph.getWidth();
+        Canvas canvas = new Canvas(glyph);
+        mTempRect.set(right - width, 0, right, mHeight);
+        canvas.drawRoundRect(mTempRect, mRadius, mRadius, mBackgroundPaint);
+        canvas.drawText(text, right - (width + textWidth) / 2, mTextSize - 1, mTextPaint);
+        return glyph;
+    }
+
+    /**
+     * Drops the pre-rendered badges, they are rendered again when next drawn.
+     */
+    public void onTrimMemory() {
+        mGlyphs.evictAll();
+    }
+}
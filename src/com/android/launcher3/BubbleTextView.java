@@ -19,6 +19,7 @@ package com.android.launcher3;
 import android.animation.ObjectAnimator;
 import android.animation.ValueAnimator;
 import android.annotation.TargetApi;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.res.ColorStateList;
 import android.content.res.Configuration;
@@ -47,6 +48,7 @@ import android.view.animation.DecelerateInterpolator;
 import android.widget.TextView;
 
 import com.android.launcher3.IconCache.IconLoadRequest;
+import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.model.PackageItemInfo;
 
 import org.codeaurora.snaplauncher.R;
@@ -109,6 +111,9 @@ public class BubbleTextView extends TextView
 
     private IconLoadRequest mIconLoadRequest;
 
+    // The unread count drawn over the icon.
+    private int mUnreadNum;
+
     private boolean mIsHotseat = false;
     private boolean isLand = false;
     private ValueAnimator mAnimator;
@@ -218,6 +223,7 @@ public class BubbleTextView extends TextView
         setText(info.title);
         setTextVisibility(!mIsHotseat);
         setTag(info);
+        updateUnreadNumber();
 
         if (promiseStateChanged || info.isPromise()) {
             applyState(promiseStateChanged);
@@ -232,6 +238,7 @@ public class BubbleTextView extends TextView
         }
         // We don't need to check the info since it's not a ShortcutInfo
         super.setTag(info);
+        updateUnreadNumber();
 
         // Verify high res immediately
         verifyHighRes();
@@ -473,9 +480,37 @@ public class BubbleTextView extends TextView
         canvas.restore();
     }
 
+    /**
+     * Reads the unread count of the app this view launches, and redraws the badge if the count
+     * changed.
+     */
+    public void updateUnreadNumber() {
+        ComponentName cn = null;
+        Object tag = getTag();
+        if (tag instanceof AppInfo) {
+            cn = ((AppInfo) tag).componentName;
+        } else if (tag instanceof ShortcutInfo && ((ShortcutInfo) tag).itemType
+                == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
+            cn = ((ShortcutInfo) tag).getTargetComponent();
+        }
+
+        int unreadNum = 0;
+        if (cn != null && UserHandleCompat.myUserHandle().equals(((ItemInfo) tag).user)) {
+            unreadNum = LauncherAppState.getInstance().getModel()
+                    .getUnreadNumberOfComponent(cn);
+        }
+        if (unreadNum != mUnreadNum) {
+            mUnreadNum = unreadNum;
+            invalidate();
+        }
+    }
+
     @Override
     protected void onDraw(Canvas canvas){
         super.onDraw(canvas);
+        if (mUnreadNum > 0) {
+            drawUnreadBadge(canvas);
+        }
         if (mLauncher.mWorkspace.getState() == Workspace.State.ARRANGE){
             drawLeftBatchCorner(canvas);
         }else {
@@ -483,6 +518,22 @@ public class BubbleTextView extends TextView
         }
     }
 
+    private void drawUnreadBadge(Canvas canvas) {
+        int left;
+        int top;
+        if (mLayoutHorizontal) {
+            left = Utilities.isRtl(getResources())
+                    ? getWidth() - getPaddingRight() - mIconSize : getPaddingLeft();
+            top = (getHeight() - mIconSize) / 2;
+        } else {
+            left = getPaddingLeft()
+                    + (getWidth() - getPaddingLeft() - getPaddingRight() - mIconSize) / 2;
+            top = getPaddingTop();
+        }
+        mLauncher.getBadgeRenderer().draw(canvas, getScrollX() + left, getScrollY() + top,
+                mIconSize, mUnreadNum);
+    }
+
     private void drawLeftBatchCorner(Canvas canvas){
         if (mProgress == 0f){
             return;
@@ -554,6 +605,9 @@ public class BubbleTextView extends TextView
         if (mIcon instanceof PreloadIconDrawable) {
             ((PreloadIconDrawable) mIcon).applyPreloaderTheme(getPreloaderTheme());
         }
+        // The count may have changed while the view was detached, for example in the recycler
+        // view cache.
+        updateUnreadNumber();
         mSlop = ViewConfiguration.get(getContext()).getScaledTouchSlop();
     }
 
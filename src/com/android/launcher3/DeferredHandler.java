@@ -20,101 +20,270 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.util.Log;
 
 import com.android.launcher3.util.Thunk;
 
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Queue of things to run on a looper thread.  Items posted with {@link #post} will not
  * be actually enqued on the handler until after the last one has run, to keep from
  * starving the thread.
  *
- * This class is fifo.
+ * Items are posted to one of several lanes. A lane is only run when all the lanes before it
+ * are empty, and each lane is fifo. The idle lanes additionally wait for the looper to be idle.
+ * The lanes are lock-free, so that posting never blocks on the looper thread.
+ *
+ * The lanes only reorder items posted on the same side of a {@link #fence}: everything posted
+ * before a fence runs before anything posted after it.
  */
 public class DeferredHandler {
-    @Thunk LinkedList<Runnable> mQueue = new LinkedList<>();
+
+    /** Binds for the page the user is looking at. */
+    public static final int LANE_VISIBLE = 0;
+    /** Everything else which changes the UI, including binds for the off-screen pages. */
+    public static final int LANE_OFFSCREEN = 1;
+    /** Runs when the looper is idle and there is nothing else to bind. */
+    public static final int LANE_IDLE = 2;
+    /** Work which can be postponed until everything else is done, like releasing resources. */
+    public static final int LANE_CLEANUP = 3;
+
+    private static final int LANE_COUNT = 4;
+    private static final String[] LANE_NAMES = {"visible", "offscreen", "idle", "cleanup"};
+
+    private static final String TAG = "DeferredHandler";
+
+    private final Lane[] mLanes = new Lane[LANE_COUNT];
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final AtomicBoolean mIdleScheduled = new AtomicBoolean();
+    private final AtomicLong mSequence = new AtomicLong();
+
+    // Sequence number of the last entry posted before the latest fence.
+    private volatile long mFence;
+    // Sequence number of the entry being run, only accessed on the looper thread.
+    private long mRunningSequence;
+
     private MessageQueue mMessageQueue = Looper.myQueue();
     private Impl mHandler = new Impl();
 
     @Thunk class Impl extends Handler implements MessageQueue.IdleHandler {
         public void handleMessage(Message msg) {
-            Runnable r;
-            synchronized (mQueue) {
-                if (mQueue.size() == 0) {
-                    return;
-                }
-                r = mQueue.removeFirst();
-            }
-            r.run();
-            synchronized (mQueue) {
-                scheduleNextLocked();
-            }
+            mScheduled.set(false);
+            runNext(LANE_OFFSCREEN);
+            scheduleNext();
         }
 
         public boolean queueIdle() {
-            handleMessage(null);
+            mIdleScheduled.set(false);
+            runNext(LANE_CLEANUP);
+            scheduleNext();
             return false;
         }
     }
 
-    private class IdleRunnable implements Runnable {
-        Runnable mRunnable;
+    @Thunk static class Entry {
+        final Runnable runnable;
+        final long sequence;
+        final long postTime;
 
-        IdleRunnable(Runnable r) {
-            mRunnable = r;
+        Entry(Runnable runnable, long sequence) {
+            this.runnable = runnable;
+            this.sequence = sequence;
+            postTime = SystemClock.uptimeMillis();
         }
+    }
+
+    private static class Lane {
+        final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger backlog = new AtomicInteger();
 
-        public void run() {
-            mRunnable.run();
+        // Entry to run before the queue, only accessed on the looper thread.
+        Entry front;
+
+        // Only updated on the looper thread.
+        long runCount;
+        long totalLatency;
+        long maxLatency;
+
+        boolean isEmpty() {
+            return backlog.get() <= 0;
+        }
+
+        Entry peek() {
+            return front != null ? front : queue.peek();
+        }
+
+        Entry poll() {
+            Entry e = front;
+            if (e != null) {
+                front = null;
+            } else {
+                e = queue.poll();
+            }
+            if (e != null) {
+                backlog.decrementAndGet();
+            }
+            return e;
+        }
+
+        void clear() {
+            if (front != null) {
+                front = null;
+                backlog.decrementAndGet();
+            }
+            while (queue.poll() != null) {
+                backlog.decrementAndGet();
+            }
         }
     }
 
     public DeferredHandler() {
+        for (int i = 0; i < LANE_COUNT; i++) {
+            mLanes[i] = new Lane();
+        }
     }
 
-    /** Schedule runnable to run after everything that's on the queue right now. */
+    /** Schedule runnable to run after everything that's on the off-screen lane right now. */
     public void post(Runnable runnable) {
-        synchronized (mQueue) {
-            mQueue.add(runnable);
-            if (mQueue.size() == 1) {
-                scheduleNextLocked();
-            }
+        post(runnable, LANE_OFFSCREEN);
+    }
+
+    /** Schedule runnable to run after everything that's on the given lane right now. */
+    public void post(Runnable runnable, int lane) {
+        Lane l = mLanes[lane];
+        l.queue.add(new Entry(runnable, mSequence.incrementAndGet()));
+        l.backlog.incrementAndGet();
+        scheduleNext();
+    }
+
+    /**
+     * Schedule runnable to run before everything that's on the given lane right now. Must be
+     * called on the looper thread. The runnable stays on the same side of any {@link #fence} as
+     * the one running now, so that it can be used to continue it.
+     */
+    public void postAtFrontOfQueue(Runnable runnable, int lane) {
+        Lane l = mLanes[lane];
+        if (l.front != null) {
+            throw new IllegalStateException("Only one runnable can be at the front of a lane");
         }
+        l.front = new Entry(runnable, mRunningSequence);
+        l.backlog.incrementAndGet();
+        scheduleNext();
     }
 
     /** Schedule runnable to run when the queue goes idle. */
     public void postIdle(final Runnable runnable) {
-        post(new IdleRunnable(runnable));
+        post(runnable, LANE_IDLE);
+    }
+
+    /**
+     * Makes everything posted so far run before anything posted after, whatever their lanes.
+     */
+    public void fence() {
+        mFence = mSequence.get();
     }
 
     public void cancelAll() {
-        synchronized (mQueue) {
-            mQueue.clear();
+        for (Lane lane : mLanes) {
+            lane.clear();
         }
     }
 
     /** Runs all queued Runnables from the calling thread. */
     public void flush() {
-        LinkedList<Runnable> queue = new LinkedList<>();
-        synchronized (mQueue) {
-            queue.addAll(mQueue);
-            mQueue.clear();
+        Entry e;
+        while ((e = pollUpTo(LANE_CLEANUP)) != null) {
+            e.runnable.run();
         }
-        for (Runnable r : queue) {
-            r.run();
+    }
+
+    /**
+     * @return the number of runnables waiting in the given lane.
+     */
+    public int getBacklog(int lane) {
+        return Math.max(0, mLanes[lane].backlog.get());
+    }
+
+    /**
+     * @return the average time in ms between posting and running a runnable on the given lane.
+     */
+    public long getAverageLatency(int lane) {
+        Lane l = mLanes[lane];
+        return l.runCount == 0 ? 0 : l.totalLatency / l.runCount;
+    }
+
+    /**
+     * @return the longest time in ms between posting and running a runnable on the given lane.
+     */
+    public long getMaxLatency(int lane) {
+        return mLanes[lane].maxLatency;
+    }
+
+    public void dumpState() {
+        for (int i = 0; i < LANE_COUNT; i++) {
+            Lane l = mLanes[i];
+            Log.d(TAG, "lane " + LANE_NAMES[i] + ": backlog=" + getBacklog(i)
+                    + " run=" + l.runCount + " avgLatency=" + getAverageLatency(i)
+                    + "ms maxLatency=" + l.maxLatency + "ms");
         }
     }
 
-    void scheduleNextLocked() {
-        if (mQueue.size() > 0) {
-            Runnable peek = mQueue.getFirst();
-            if (peek instanceof IdleRunnable) {
-                mMessageQueue.addIdleHandler(mHandler);
-            } else {
+    /** Runs the first runnable of the first non empty lane, up to the given lane. */
+    @Thunk void runNext(int lastLane) {
+        Entry e = pollUpTo(lastLane);
+        if (e != null) {
+            e.runnable.run();
+        }
+    }
+
+    private Entry pollUpTo(int lastLane) {
+        // Each lane is in posting order, so if the head of a lane was posted after the fence,
+        // all of the lane was.
+        long fence = mFence;
+        int lane = -1;
+        for (int i = 0; i <= lastLane; i++) {
+            Entry head = mLanes[i].peek();
+            if (head != null && head.sequence <= fence) {
+                lane = i;
+                break;
+            }
+        }
+        if (lane < 0) {
+            for (int i = 0; i <= lastLane; i++) {
+                if (mLanes[i].peek() != null) {
+                    lane = i;
+                    break;
+                }
+            }
+        }
+        if (lane < 0) {
+            return null;
+        }
+
+        Lane l = mLanes[lane];
+        Entry e = l.poll();
+        long latency = SystemClock.uptimeMillis() - e.postTime;
+        l.runCount++;
+        l.totalLatency += latency;
+        l.maxLatency = Math.max(l.maxLatency, latency);
+        mRunningSequence = e.sequence;
+        return e;
+    }
+
+    @Thunk void scheduleNext() {
+        if (!mLanes[LANE_VISIBLE].isEmpty() || !mLanes[LANE_OFFSCREEN].isEmpty()) {
+            if (mScheduled.compareAndSet(false, true)) {
                 mHandler.sendEmptyMessage(1);
             }
+        } else if (!mLanes[LANE_IDLE].isEmpty() || !mLanes[LANE_CLEANUP].isEmpty()) {
+            if (mIdleScheduled.compareAndSet(false, true)) {
+                mMessageQueue.addIdleHandler(mHandler);
+            }
         }
     }
 }
-
@@ -23,14 +23,12 @@ import android.animation.ValueAnimator.AnimatorUpdateListener;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.res.Resources;
-import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.graphics.Typeface;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Looper;
 import android.os.Parcelable;
@@ -729,13 +727,6 @@ public class FolderIcon extends FrameLayout implements FolderListener {
         canvas.translate(params.transX + mPreviewOffsetX, params.transY + mPreviewOffsetY);
         canvas.scale(params.scale, params.scale);
         Drawable d = params.drawable;
-        if (params.info.getIntent().getComponent() != null
-                && LauncherAppState.getInstance().getModel().getUnreadMap()
-                .containsKey(params.info.getIntent().getComponent())) {
-            Bitmap bitmap = mLauncher.mIconCache.getEntryForPackageLocked(params.info.
-                    getIntent().getComponent().getPackageName(), params.info.user, false).icon;
-            d = new BitmapDrawable(bitmap);
-        }
 
         if (d != null) {
             mOldBounds.set(d.getBounds());
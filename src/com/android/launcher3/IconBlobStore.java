@@ -0,0 +1,573 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.util.Log;
+
+import com.android.launcher3.IconCache.CacheEntry;
+import com.android.launcher3.util.BitmapPool;
+import com.android.launcher3.util.Thunk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only store of decoded icon pixels, read through a memory mapping. It sits in front of
+ * the icon DB, so that loading a cached icon is a map lookup and a copy of its pixels instead
+ * of a query and a PNG decode.
+ *
+ * The icon DB stays the source of truth: the store is filled when an icon is read from the DB,
+ * and the {@link IconCache} removes the icons of a component whenever it changes its rows.
+ *
+ * The file is a header followed by records, each either an icon or a tombstone for a key. The
+ * index from key to record is rebuilt by scanning the record headers when the store is opened.
+ * A record cut short by a crash ends the scan and is dropped. Once the replaced and removed
+ * records take more space than the live ones, the file is compacted on the worker thread.
+ *
+ * Records are never written over, and a mapping is replaced rather than changed, so the pixels
+ * are copied out of the mapping without holding the lock. The mapping grows geometrically
+ * ahead of the records, with the file padded with zeros up to its end. The live icons are
+ * capped at {@link #MAX_LIVE_BYTES}, the other icons are only read from the DB.
+ */
+class IconBlobStore {
+    private static final String TAG = "Launcher.IconBlobStore";
+
+    private static final int FILE_MAGIC = 0x49434f4e;
+    private static final int RECORD_MAGIC = 0x49524543;
+    // File magic and version.
+    private static final int HEADER_SIZE = 8;
+    // Record magic and length.
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte TYPE_ICON = 1;
+    private static final byte TYPE_TOMBSTONE = 2;
+
+    private static final byte CONFIG_ARGB_8888 = 0;
+    private static final byte CONFIG_RGB_565 = 1;
+
+    // Compaction only starts once this many bytes are dead.
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    // Icons are not added past this many live bytes, about a hundred xxxhdpi full-res icons.
+    private static final long MAX_LIVE_BYTES = 16 * 1024 * 1024;
+
+    // The smallest mapping, which then doubles whenever a record is past its end.
+    private static final int MIN_MAPPING_BYTES = 256 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static class Location {
+        final long offset;
+        final int size;
+
+        Location(long offset, int size) {
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private final File mFile;
+    private final int mVersion;
+    private final Handler mWorkerHandler;
+
+    // All the state below is guarded by this.
+    private final HashMap<String, Location> mIndex = new HashMap<>();
+    private RandomAccessFile mRaf;
+    private FileChannel mChannel;
+    private MappedByteBuffer mMapping;
+    private long mAppendPosition;
+    private long mLiveBytes;
+    private long mDeadBytes;
+    private boolean mFailed;
+    private boolean mCompactionScheduled;
+    // Incremented on every removal, see put().
+    private long mGeneration;
+
+    private final Runnable mCompaction = new Runnable() {
+        @Override
+        public void run() {
+            compact();
+        }
+    };
+
+    /**
+     * @param version the version of the stored icons. A file of another version is discarded.
+     * @param workerHandler the handler used to compact the file.
+     */
+    IconBlobStore(Context context, int version, Handler workerHandler) {
+        mFile = new File(context.getCacheDir(), LauncherFiles.APP_ICONS_BLOB);
+        mVersion = version;
+        mWorkerHandler = workerHandler;
+    }
+
+    static String getKey(ComponentName component, long userSerial, boolean lowRes) {
+        return component.flattenToString() + "|" + userSerial + (lowRes ? "|l" : "");
+    }
+
+    /**
+     * Reads the icon and title stored for the key into {@param out}.
+     * @return false if nothing is stored for the key.
+     */
+    boolean get(String key, CacheEntry out) {
+        ByteBuffer buffer;
+        synchronized (this) {
+            if (!openLocked()) {
+                return false;
+            }
+            Location location = mIndex.get(key);
+            if (location == null) {
+                return false;
+            }
+            try {
+                buffer = getRecordLocked(location);
+            } catch (IOException e) {
+                failLocked(e);
+                return false;
+            }
+        }
+
+        // The record is read from a mapping which does not change, outside the lock.
+        try {
+            buffer.position(buffer.position() + RECORD_HEADER_SIZE + 1);
+            skipString(buffer);
+            String label = readString(buffer);
+            Bitmap.Config config = buffer.get() == CONFIG_RGB_565
+                    ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+
+            Bitmap icon = BitmapPool.getInstance().getOrCreate(width, height, config);
+            buffer.limit(buffer.position() + icon.getRowBytes() * height);
+            icon.copyPixelsFromBuffer(buffer);
+            out.icon = icon;
+            out.title = label;
+            return true;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to read icon " + key, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the current generation, to pass to {@link #put}.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Stores the icon and label for the key, replacing anything stored for it. Nothing is stored
+     * if any icon was removed since {@param generation} was read, as the icon may then be older
+     * than the DB row it was read from.
+     */
+    synchronized void put(String key, Bitmap icon, String label, long generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        byte config;
+        if (icon.getConfig() == Bitmap.Config.ARGB_8888) {
+            config = CONFIG_ARGB_8888;
+        } else if (icon.getConfig() == Bitmap.Config.RGB_565) {
+            config = CONFIG_RGB_565;
+        } else {
+            return;
+        }
+        if (!openLocked()) {
+            return;
+        }
+
+        byte[] keyBytes = key.getBytes(UTF_8);
+        byte[] labelBytes = label == null ? null : label.getBytes(UTF_8);
+        int pixelBytes = icon.getRowBytes() * icon.getHeight();
+        int size = RECORD_HEADER_SIZE + 1 + 4 + keyBytes.length
+                + 4 + (labelBytes == null ? 0 : labelBytes.length) + 1 + 4 + 4 + pixelBytes;
+        Location old = mIndex.get(key);
+        if (mLiveBytes - (old == null ? 0 : old.size) + size > MAX_LIVE_BYTES) {
+            // The store is full, this icon keeps being read from the DB.
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(RECORD_MAGIC);
+        buffer.putInt(size - RECORD_HEADER_SIZE);
+        buffer.put(TYPE_ICON);
+        putString(buffer, keyBytes);
+        putString(buffer, labelBytes);
+        buffer.put(config);
+        buffer.putInt(icon.getWidth());
+        buffer.putInt(icon.getHeight());
+        icon.copyPixelsToBuffer(buffer);
+        buffer.flip();
+        appendLocked(key, buffer, TYPE_ICON);
+    }
+
+    /**
+     * Removes the full-res and low-res icons of the component.
+     */
+    synchronized void remove(ComponentName component, long userSerial) {
+        mGeneration++;
+        removeLocked(getKey(component, userSerial, false));
+        removeLocked(getKey(component, userSerial, true));
+    }
+
+    /**
+     * Removes the icons of all the components of the package.
+     */
+    synchronized void removePackage(String packageName, long userSerial) {
+        mGeneration++;
+        if (!openLocked()) {
+            return;
+        }
+        String prefix = packageName + "/";
+        String user = "|" + userSerial;
+        ArrayList<String> forDeletion = new ArrayList<>();
+        for (String key : mIndex.keySet()) {
+            if (key.startsWith(prefix) && (key.endsWith(user) || key.endsWith(user + "|l"))) {
+                forDeletion.add(key);
+            }
+        }
+        for (String key : forDeletion) {
+            removeLocked(key);
+        }
+    }
+
+    private void removeLocked(String key) {
+        if (!openLocked() || !mIndex.containsKey(key)) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + 1 + 4 + keyBytes.length);
+        buffer.putInt(RECORD_MAGIC);
+        buffer.putInt(buffer.capacity() - RECORD_HEADER_SIZE);
+        buffer.put(TYPE_TOMBSTONE);
+        putString(buffer, keyBytes);
+        buffer.flip();
+        appendLocked(key, buffer, TYPE_TOMBSTONE);
+    }
+
+    private void appendLocked(String key, ByteBuffer record, byte type) {
+        long offset = mAppendPosition;
+        int size = record.remaining();
+        try {
+            // The file may be padded with zeros past the records, so the magic is written last:
+            // a record cut short by a crash then reads as the end of the records.
+            record.putInt(0, 0);
+            while (record.hasRemaining()) {
+                mChannel.write(record, offset + record.position());
+            }
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            magic.putInt(RECORD_MAGIC);
+            magic.flip();
+            while (magic.hasRemaining()) {
+                mChannel.write(magic, offset + magic.position());
+            }
+        } catch (IOException e) {
+            failLocked(e);
+            return;
+        }
+        mAppendPosition += size;
+        indexLocked(key, type, offset, size);
+        maybeScheduleCompactionLocked();
+    }
+
+    private void indexLocked(String key, byte type, long offset, int size) {
+        Location old = type == TYPE_ICON
+                ? mIndex.put(key, new Location(offset, size)) : mIndex.remove(key);
+        if (old != null) {
+            mLiveBytes -= old.size;
+            mDeadBytes += old.size;
+        }
+        if (type == TYPE_ICON) {
+            mLiveBytes += size;
+        } else {
+            mDeadBytes += size;
+        }
+    }
+
+    /**
+     * @return a buffer positioned at the record, which is mapped in full.
+     */
+    private ByteBuffer getRecordLocked(Location location) throws IOException {
+        long end = location.offset + location.size;
+        if (mMapping == null || mMapping.capacity() < end) {
+            // Grow ahead of the records, so that the file is not mapped again for every new
+            // record. The previous mapping stays valid for the readers still using it.
+            long capacity = Math.max(MIN_MAPPING_BYTES,
+                    mMapping == null ? 0 : (long) mMapping.capacity() * 2);
+            capacity = Math.min(Math.max(capacity, end), Integer.MAX_VALUE);
+            if (mChannel.size() < capacity) {
+                mRaf.setLength(capacity);
+            }
+            mMapping = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, capacity);
+        }
+        ByteBuffer buffer = mMapping.duplicate();
+        buffer.position((int) location.offset);
+        return buffer;
+    }
+
+    private boolean openLocked() {
+        if (mChannel != null) {
+            return true;
+        } else if (mFailed) {
+            return false;
+        }
+        try {
+            mRaf = new RandomAccessFile(mFile, "rw");
+            mChannel = mRaf.getChannel();
+            if (!readHeaderLocked()) {
+                resetLocked();
+            } else {
+                scanLocked();
+            }
+            return true;
+        } catch (IOException e) {
+            failLocked(e);
+            return false;
+        }
+    }
+
+    private boolean readHeaderLocked() throws IOException {
+        if (mChannel.size() < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (mChannel.read(header, header.position()) < 0) {
+                return false;
+            }
+        }
+        header.flip();
+        return header.getInt() == FILE_MAGIC && header.getInt() == mVersion;
+    }
+
+    private void resetLocked() throws IOException {
+        mIndex.clear();
+        mMapping = null;
+        mChannel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(FILE_MAGIC);
+        header.putInt(mVersion);
+        header.flip();
+        while (header.hasRemaining()) {
+            mChannel.write(header, header.position());
+        }
+        mAppendPosition = HEADER_SIZE;
+        mLiveBytes = 0;
+        mDeadBytes = 0;
+    }
+
+    /**
+     * Rebuilds the index from the records in the file.
+     */
+    private void scanLocked() throws IOException {
+        long size = mChannel.size();
+        mMapping = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        ByteBuffer buffer = mMapping.duplicate();
+        long position = HEADER_SIZE;
+        boolean padding = false;
+        while (position + RECORD_HEADER_SIZE + 1 <= size) {
+            buffer.position((int) position);
+            int magic = buffer.getInt();
+            if (magic != RECORD_MAGIC) {
+                // The zeros the file was grown with for the mapping.
+                padding = magic == 0;
+                break;
+            }
+            int recordSize = RECORD_HEADER_SIZE + buffer.getInt();
+            if (recordSize <= RECORD_HEADER_SIZE || position + recordSize > size) {
+                break;
+            }
+            byte type = buffer.get();
+            String key = readString(buffer);
+            if (key == null || (type != TYPE_ICON && type != TYPE_TOMBSTONE)) {
+                break;
+            }
+            indexLocked(key, type, position, recordSize);
+            position += recordSize;
+        }
+        if (position < size) {
+            if (!padding) {
+                Log.w(TAG, "Dropping " + (size - position) + " bytes at the end of the icon store");
+            }
+            mMapping = null;
+            mChannel.truncate(position);
+        }
+        mAppendPosition = position;
+    }
+
+    private void maybeScheduleCompactionLocked() {
+        if (!mCompactionScheduled && mDeadBytes > MIN_COMPACTION_BYTES
+                && mDeadBytes > mLiveBytes) {
+            mCompactionScheduled = true;
+            mWorkerHandler.post(mCompaction);
+        }
+    }
+
+    /**
+     * Rewrites the file with only the live records, in their current order.
+     */
+    @Thunk synchronized void compact() {
+        mCompactionScheduled = false;
+        if (mChannel == null || mDeadBytes <= MIN_COMPACTION_BYTES) {
+            return;
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile out = null;
+        try {
+            ArrayList<Map.Entry<String, Location>> entries = new ArrayList<>(mIndex.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<String, Location>>() {
+                @Override
+                public int compare(Map.Entry<String, Location> lhs,
+                        Map.Entry<String, Location> rhs) {
+                    long l = lhs.getValue().offset;
+                    long r = rhs.getValue().offset;
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+
+            out = new RandomAccessFile(tmp, "rw");
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(FILE_MAGIC);
+            header.putInt(mVersion);
+            header.flip();
+            channel.write(header);
+
+            HashMap<String, Location> index = new HashMap<>();
+            long position = HEADER_SIZE;
+            for (Map.Entry<String, Location> e : entries) {
+                Location location = e.getValue();
+                ByteBuffer record = getRecordLocked(location);
+                record.limit(record.position() + location.size);
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                index.put(e.getKey(), new Location(position, location.size));
+                position += location.size;
+            }
+            channel.force(false);
+            out.close();
+            out = null;
+
+            mChannel.close();
+            mRaf.close();
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Unable to replace " + mFile);
+            }
+            mRaf = new RandomAccessFile(mFile, "rw");
+            mChannel = mRaf.getChannel();
+            mMapping = null;
+            mIndex.clear();
+            mIndex.putAll(index);
+            mAppendPosition = position;
+            mLiveBytes = position - HEADER_SIZE;
+            mDeadBytes = 0;
+        } catch (IOException e) {
+            failLocked(e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) { }
+            }
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Closes and deletes the store after an IO error. Lookups then fall back to the icon DB.
+     *
+     * A channel closed under a thread, like by interrupting a loader which was writing, does not
+     * say anything about the file: the store is only closed then, and opened again by the next
+     * lookup. A record cut short by the close is dropped by the scan.
+     */
+    private void failLocked(IOException e) {
+        if (e instanceof ClosedChannelException) {
+            Log.w(TAG, "Icon store closed, reopening it", e);
+            closeLocked();
+            return;
+        }
+        Log.w(TAG, "Icon store failed, disabling it", e);
+        mFailed = true;
+        closeLocked();
+        mFile.delete();
+    }
+
+    private void closeLocked() {
+        mIndex.clear();
+        mMapping = null;
+        mLiveBytes = 0;
+        mDeadBytes = 0;
+        try {
+            if (mRaf != null) {
+                mRaf.close();
+            }
+        } catch (IOException ignored) { }
+        mRaf = null;
+        mChannel = null;
+    }
+
+    synchronized void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "Icon blob store: " + mIndex.size() + " icons, live="
+                + mLiveBytes / 1024 + "/" + MAX_LIVE_BYTES / 1024 + "KB dead="
+                + mDeadBytes / 1024 + "KB"
+                + (mFailed ? " (failed)" : ""));
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void skipString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length > 0) {
+            buffer.position(buffer.position() + length);
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.launcher3;
 
+import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
@@ -33,8 +34,6 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.os.SystemClock;
@@ -46,9 +45,15 @@ import com.android.launcher3.compat.LauncherAppsCompat;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.model.PackageItemInfo;
+import com.android.launcher3.util.BitmapPool;
+import com.android.launcher3.util.CanvasPool;
 import com.android.launcher3.util.ComponentKey;
+import com.android.launcher3.util.IconCodec;
 import com.android.launcher3.util.Thunk;
+import com.android.launcher3.util.WorkerPool;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -57,16 +62,25 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import org.codeaurora.snaplauncher.R;
 
 /**
  * Cache of application icons.  Icons can be made from any thread.
+ *
+ * Lookups which hit the memory cache do not lock. A missing entry is loaded under a striped
+ * lock, so that only one thread loads a given entry while other entries are loaded in parallel.
+ * Changes to the entries of a package are serialized on the cache.
  */
 public class IconCache {
 
     private static final String TAG = "Launcher.IconCache";
 
-    private static final int INITIAL_ICON_CACHE_CAPACITY = 50;
+    // Fractions of the memory class used for the full-res and the low-res in-memory icons.
+    private static final int FULL_RES_CACHE_DIVISOR = 8;
+    private static final int LOW_RES_CACHE_DIVISOR = 32;
 
     // Empty class name is used for storing package default entry.
     private static final String EMPTY_CLASS_NAME = ".";
@@ -75,15 +89,27 @@ public class IconCache {
 
     private static final int LOW_RES_SCALE_FACTOR = 5;
 
-    @Thunk static final Object ICON_UPDATE_TOKEN = new Object();
+    // Number of locks used to serialize the loading of missing entries.
+    private static final int LOAD_LOCK_STRIPES = 16;
+
+    // Icons rendered per pool thread in one step of the DB update.
+    private static final int ICON_UPDATE_BATCH_PER_THREAD = 8;
 
-    private boolean mAppIconReloaded = false;
+    // Saved for packages whose rows were written outside of the validation, so that the next
+    // validation checks them. Real fingerprints are hashes, so they practically never match it.
+    private static final long PENDING_FINGERPRINT = 0;
+
+    @Thunk static final Object ICON_UPDATE_TOKEN = new Object();
 
     @Thunk static class CacheEntry {
         public Bitmap icon;
         public CharSequence title = "";
         public CharSequence contentDescription = "";
         public boolean isLowResIcon;
+        // Bytes accounted for this entry by the memory cache.
+        int byteCount;
+        // Last access to this entry, used by the memory cache for eviction.
+        volatile long lastAccess;
     }
 
     private final HashMap<UserHandleCompat, Bitmap> mDefaultIcons = new HashMap<>();
@@ -93,10 +119,15 @@ public class IconCache {
     private final PackageManager mPackageManager;
     @Thunk final UserManagerCompat mUserManager;
     private final LauncherAppsCompat mLauncherApps;
-    private final HashMap<ComponentKey, CacheEntry> mCache =
-            new HashMap<ComponentKey, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
+    private final IconLruCache mCache;
+    private final IconCacheStats mStats = new IconCacheStats();
+    // Package entries have their own locks, as they are loaded while holding a component lock.
+    private final Object[] mComponentLoadLocks = newLocks(LOAD_LOCK_STRIPES);
+    private final Object[] mPackageLoadLocks = newLocks(LOAD_LOCK_STRIPES);
     private final int mIconDpi;
+    private final int mIconBitmapSize;
     @Thunk final IconDB mIconDb;
+    @Thunk final IconBlobStore mBlobStore;
 
     @Thunk final Handler mWorkerHandler;
 
@@ -109,10 +140,7 @@ public class IconCache {
     private final int mPackageBgColor;
     private final BitmapFactory.Options mLowResOptions;
 
-    private String mSystemState;
-    private Bitmap mLowResBitmap;
-    private Canvas mLowResCanvas;
-    private Paint mLowResPaint;
+    private volatile String mSystemState;
 
     private Bitmap mSelectBitmap;
 
@@ -122,9 +150,16 @@ public class IconCache {
         mUserManager = UserManagerCompat.getInstance(mContext);
         mLauncherApps = LauncherAppsCompat.getInstance(mContext);
         mIconDpi = inv.fillResIconDpi;
+        mIconBitmapSize = inv.iconBitmapSize;
         mIconDb = new IconDB(context);
 
+        int memoryClassBytes = ((ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE)).getMemoryClass() * 1024 * 1024;
+        mCache = new IconLruCache(memoryClassBytes / FULL_RES_CACHE_DIVISOR,
+                memoryClassBytes / LOW_RES_CACHE_DIVISOR);
+
         mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+        mBlobStore = new IconBlobStore(context, IconDB.DB_VERSION, mWorkerHandler);
 
         mActivityBgColor = context.getResources().getColor(R.color.quantum_panel_bg_color);
         mPackageBgColor = context.getResources().getColor(R.color.quantum_panel_bg_color_dark);
@@ -153,6 +188,7 @@ public class IconCache {
     }
 
     public Drawable getFullResIcon(String packageName, int iconId) {
+        long start = System.nanoTime();
         Resources resources;
         try {
             resources = mPackageManager.getResourcesForApplication(packageName);
@@ -161,13 +197,18 @@ public class IconCache {
         }
         if (resources != null) {
             if (iconId != 0) {
-                return getFullResIcon(resources, iconId);
+                Drawable d = getFullResIcon(resources, iconId);
+                mStats.record(IconCacheStats.PATH_FULL_RES_ICON, start);
+                return d;
             }
         }
-        return getFullResDefaultActivityIcon();
+        Drawable d = getFullResDefaultActivityIcon();
+        mStats.record(IconCacheStats.PATH_FULL_RES_ICON, start);
+        return d;
     }
 
     public Drawable getFullResIcon(ActivityInfo info) {
+        long start = System.nanoTime();
         Resources resources;
         try {
             resources = mPackageManager.getResourcesForApplication(
@@ -178,11 +219,15 @@ public class IconCache {
         if (resources != null) {
             int iconId = info.getIconResource();
             if (iconId != 0) {
-                return getFullResIcon(resources, iconId);
+                Drawable d = getFullResIcon(resources, iconId);
+                mStats.record(IconCacheStats.PATH_FULL_RES_ICON, start);
+                return d;
             }
         }
 
-        return getFullResDefaultActivityIcon();
+        Drawable d = getFullResDefaultActivityIcon();
+        mStats.record(IconCacheStats.PATH_FULL_RES_ICON, start);
+        return d;
     }
 
     private Bitmap makeDefaultIcon(UserHandleCompat user) {
@@ -201,7 +246,7 @@ public class IconCache {
     /**
      * Remove any records for the supplied ComponentName.
      */
-    public synchronized void remove(ComponentName componentName, UserHandleCompat user) {
+    public void remove(ComponentName componentName, UserHandleCompat user) {
         mCache.remove(new ComponentKey(componentName, user));
     }
 
@@ -209,16 +254,49 @@ public class IconCache {
      * Remove any records for the supplied package name from memory.
      */
     private void removeFromMemCacheLocked(String packageName, UserHandleCompat user) {
-        HashSet<ComponentKey> forDeletion = new HashSet<ComponentKey>();
-        for (ComponentKey key: mCache.keySet()) {
-            if (key.componentName.getPackageName().equals(packageName)
-                    && key.user.equals(user)) {
-                forDeletion.add(key);
-            }
-        }
-        for (ComponentKey condemned: forDeletion) {
-            mCache.remove(condemned);
+        mCache.removePackage(packageName, user);
+    }
+
+    /**
+     * Evicts in-memory icons according to the trim level, see
+     * {@link android.content.ComponentCallbacks2}. Evicted icons are reloaded from the DB.
+     */
+    public void onTrimMemory(int level) {
+        mCache.onTrimMemory(level);
+    }
+
+    /**
+     * @return the current counters and latencies of the cache.
+     */
+    public IconCacheStats.Snapshot getStats() {
+        return mStats.snapshot(mCache);
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        mCache.dump(prefix, writer);
+        getStats().dump(prefix, writer);
+        mBlobStore.dump(prefix, writer);
+        BitmapPool.getInstance().dump(prefix, writer);
+    }
+
+    /**
+     * @return the bitmap bytes to account for the entry in the memory cache.
+     */
+    private int getByteCount(CacheEntry entry, UserHandleCompat user) {
+        return entry.icon == null || isDefaultIcon(entry.icon, user)
+                ? 0 : entry.icon.getByteCount();
+    }
+
+    private static Object[] newLocks(int count) {
+        Object[] locks = new Object[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new Object();
         }
+        return locks;
+    }
+
+    private static Object getLoadLock(Object[] locks, ComponentKey key) {
+        return locks[(key.hashCode() & Integer.MAX_VALUE) % locks.length];
     }
 
     /**
@@ -248,6 +326,7 @@ public class IconCache {
         mIconDb.getWritableDatabase().delete(IconDB.TABLE_NAME,
                 IconDB.COLUMN_COMPONENT + " LIKE ? AND " + IconDB.COLUMN_USER + " = ?",
                 new String[] {packageName + "/%", Long.toString(userSerial)});
+        mBlobStore.removePackage(packageName, userSerial);
     }
 
     public void updateDbIcons(Set<String> ignorePackagesForMainUser) {
@@ -274,7 +353,9 @@ public class IconCache {
     /**
      * Updates the persistent DB, such that only entries corresponding to {@param apps} remain in
      * the DB and are updated.
-     * @return The set of packages for which icons have updated.
+     *
+     * Only the packages whose fingerprint changed since the last validation are checked, see
+     * {@link #getPackageFingerprints}. Nothing is read from the DB if no package changed.
      */
     private void updateDBIcons(UserHandleCompat user, List<LauncherActivityInfoCompat> apps,
             Set<String> ignorePackages) {
@@ -285,9 +366,32 @@ public class IconCache {
             pkgInfoMap.put(info.packageName, info);
         }
 
+        // Packages which need to be validated, with the fingerprint to save once they are. A null
+        // fingerprint means that the package is gone.
+        HashMap<String, Long> fingerprints = getPackageFingerprints(pkgInfoMap, apps);
+        HashMap<String, Long> savedFingerprints = loadPackageFingerprints(userSerial);
+        HashMap<String, Long> changedPackages = new HashMap<>();
+        for (Map.Entry<String, Long> e : fingerprints.entrySet()) {
+            if (!e.getValue().equals(savedFingerprints.get(e.getKey()))) {
+                changedPackages.put(e.getKey(), e.getValue());
+            }
+        }
+        for (String packageName : savedFingerprints.keySet()) {
+            if (!fingerprints.containsKey(packageName)) {
+                changedPackages.put(packageName, null);
+            }
+        }
+        if (changedPackages.isEmpty()) {
+            if (DEBUG) Log.d(TAG, "No package changed for user " + userSerial);
+            return;
+        }
+        if (DEBUG) Log.d(TAG, "Validating " + changedPackages.size() + " packages");
+
         HashMap<ComponentName, LauncherActivityInfoCompat> componentMap = new HashMap<>();
         for (LauncherActivityInfoCompat app : apps) {
-            componentMap.put(app.getComponentName(), app);
+            if (changedPackages.containsKey(app.getComponentName().getPackageName())) {
+                componentMap.put(app.getComponentName(), app);
+            }
         }
 
         Cursor c = mIconDb.getReadableDatabase().query(IconDB.TABLE_NAME,
@@ -305,15 +409,21 @@ public class IconCache {
         final int systemStateIndex = c.getColumnIndex(IconDB.COLUMN_SYSTEM_STATE);
 
         HashSet<Integer> itemsToRemove = new HashSet<Integer>();
+        ArrayList<ComponentName> componentsToRemove = new ArrayList<>();
         Stack<LauncherActivityInfoCompat> appsToUpdate = new Stack<>();
 
         while (c.moveToNext()) {
             String cn = c.getString(indexComponent);
             ComponentName component = ComponentName.unflattenFromString(cn);
             PackageInfo info = pkgInfoMap.get(component.getPackageName());
+            if (info != null && !changedPackages.containsKey(component.getPackageName())) {
+                // The rows of an unchanged package are up to date.
+                continue;
+            }
             if (info == null) {
                 if (!ignorePackages.contains(component.getPackageName())) {
                     remove(component, user);
+                    componentsToRemove.add(component);
                     itemsToRemove.add(c.getInt(rowIndex));
                 }
                 continue;
@@ -332,6 +442,7 @@ public class IconCache {
             }
             if (app == null) {
                 remove(component, user);
+                componentsToRemove.add(component);
                 itemsToRemove.add(c.getInt(rowIndex));
             } else {
                 appsToUpdate.add(app);
@@ -342,18 +453,124 @@ public class IconCache {
             mIconDb.getWritableDatabase().delete(IconDB.TABLE_NAME,
                     Utilities.createDbSelectionQuery(IconDB.COLUMN_ROWID, itemsToRemove),
                     null);
+            for (ComponentName component : componentsToRemove) {
+                mBlobStore.remove(component, userSerial);
+            }
+        }
+
+        // The icons of ignored packages were kept, so their old fingerprint is kept as well and
+        // they are checked again next time.
+        HashMap<String, Long> fingerprintChanges = new HashMap<>();
+        for (Map.Entry<String, Long> e : changedPackages.entrySet()) {
+            if (e.getValue() != null || !ignorePackages.contains(e.getKey())) {
+                fingerprintChanges.put(e.getKey(), e.getValue());
+            }
         }
 
         // Insert remaining apps.
         if (!componentMap.isEmpty() || !appsToUpdate.isEmpty()) {
             Stack<LauncherActivityInfoCompat> appsToAdd = new Stack<>();
             appsToAdd.addAll(componentMap.values());
-            new SerializedIconUpdateTask(userSerial, pkgInfoMap,
-                    appsToAdd, appsToUpdate).scheduleNext();
+            new IconUpdateTask(userSerial, pkgInfoMap,
+                    appsToAdd, appsToUpdate, fingerprintChanges).scheduleNext();
+        } else {
+            savePackageFingerprints(userSerial, fingerprintChanges);
+        }
+    }
+
+    /**
+     * @return a hash for each installed package of everything its rows depend on: its version,
+     * its update time, its launcher activities and the system state.
+     */
+    private HashMap<String, Long> getPackageFingerprints(HashMap<String, PackageInfo> pkgInfoMap,
+            List<LauncherActivityInfoCompat> apps) {
+        // Summed, so that the order of the activities does not matter.
+        HashMap<String, Long> activityHashes = new HashMap<>();
+        for (LauncherActivityInfoCompat app : apps) {
+            String packageName = app.getComponentName().getPackageName();
+            long hash = hash(app.getComponentName().getClassName());
+            Long sum = activityHashes.get(packageName);
+            activityHashes.put(packageName, sum == null ? hash : sum + hash);
+        }
+
+        long systemStateHash = hash(mSystemState);
+        HashMap<String, Long> fingerprints = new HashMap<>(pkgInfoMap.size());
+        for (PackageInfo info : pkgInfoMap.values()) {
+            Long activityHash = activityHashes.get(info.packageName);
+            long hash = systemStateHash;
+            hash = hash * 31 + info.versionCode;
+            hash = hash * 31 + info.lastUpdateTime;
+            hash = hash * 31 + (info.applicationInfo.flags & ApplicationInfo.FLAG_IS_DATA_ONLY);
+            hash = hash * 31 + (activityHash == null ? 0 : activityHash);
+            fingerprints.put(info.packageName, hash);
+        }
+        return fingerprints;
+    }
+
+    /**
+     * 64-bit FNV-1a, wide enough that two states of a package practically never collide.
+     */
+    private static long hash(String s) {
+        long hash = 0xcbf29ce484222325L;
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) {
+                hash ^= s.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    private HashMap<String, Long> loadPackageFingerprints(long userSerial) {
+        HashMap<String, Long> fingerprints = new HashMap<>();
+        Cursor c = mIconDb.getReadableDatabase().query(IconDB.FINGERPRINT_TABLE_NAME,
+                new String[] {IconDB.COLUMN_PACKAGE, IconDB.COLUMN_FINGERPRINT},
+                IconDB.COLUMN_USER + " = ? ",
+                new String[] {Long.toString(userSerial)},
+                null, null, null);
+        try {
+            while (c.moveToNext()) {
+                fingerprints.put(c.getString(0), c.getLong(1));
+            }
+        } finally {
+            c.close();
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Saves the fingerprints of packages whose rows are up to date. A null fingerprint removes
+     * the package.
+     */
+    @Thunk synchronized void savePackageFingerprints(long userSerial,
+            HashMap<String, Long> fingerprints) {
+        if (fingerprints.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = mIconDb.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, Long> e : fingerprints.entrySet()) {
+                if (e.getValue() == null) {
+                    db.delete(IconDB.FINGERPRINT_TABLE_NAME,
+                            IconDB.COLUMN_PACKAGE + " = ? AND " + IconDB.COLUMN_USER + " = ?",
+                            new String[] {e.getKey(), Long.toString(userSerial)});
+                } else {
+                    ContentValues values = new ContentValues();
+                    values.put(IconDB.COLUMN_PACKAGE, e.getKey());
+                    values.put(IconDB.COLUMN_USER, userSerial);
+                    values.put(IconDB.COLUMN_FINGERPRINT, e.getValue());
+                    db.insertWithOnConflict(IconDB.FINGERPRINT_TABLE_NAME, null, values,
+                            SQLiteDatabase.CONFLICT_REPLACE);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
     }
 
-    @Thunk void addIconToDBAndMemCache(LauncherActivityInfoCompat app, PackageInfo info,
+    private void addIconToDBAndMemCache(LauncherActivityInfoCompat app, PackageInfo info,
             long userSerial) {
         // Reuse the existing entry if it already exists in the DB. This ensures that we do not
         // create bitmap if it was already created during loader.
@@ -367,12 +584,19 @@ public class IconCache {
      */
     private void addIconToDB(ContentValues values, ComponentName key,
             PackageInfo info, long userSerial) {
+        putVersionValues(values, key, info, userSerial);
+        mIconDb.getWritableDatabase().insertWithOnConflict(IconDB.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+        // Only after the DB write, so that a concurrent read of the old row is not stored.
+        mBlobStore.remove(key, userSerial);
+    }
+
+    @Thunk void putVersionValues(ContentValues values, ComponentName key, PackageInfo info,
+            long userSerial) {
         values.put(IconDB.COLUMN_COMPONENT, key.flattenToString());
         values.put(IconDB.COLUMN_USER, userSerial);
         values.put(IconDB.COLUMN_LAST_UPDATED, info.lastUpdateTime);
         values.put(IconDB.COLUMN_VERSION, info.versionCode);
-        mIconDb.getWritableDatabase().insertWithOnConflict(IconDB.TABLE_NAME, null, values,
-                SQLiteDatabase.CONFLICT_REPLACE);
     }
 
     @Thunk ContentValues updateCacheAndGetContentValues(LauncherActivityInfoCompat app,
@@ -380,19 +604,20 @@ public class IconCache {
         final ComponentKey key = new ComponentKey(app.getComponentName(), app.getUser());
         CacheEntry entry = null;
         if (!replaceExisting) {
-            entry = mCache.get(key);
+            entry = mCache.peek(key, false /* allowLowRes */);
             // We can't reuse the entry if the high-res icon is not present.
-            if (entry == null || entry.isLowResIcon || entry.icon == null) {
+            if (entry == null || entry.icon == null) {
                 entry = null;
             }
         }
-        if (entry == null) {
-            entry = new CacheEntry();
-            entry.icon = Utilities.createIconBitmap(app.getBadgedIcon(mIconDpi), mContext);
-        }
+        Bitmap icon = entry != null ? entry.icon
+                : Utilities.createIconBitmap(app.getBadgedIcon(mIconDpi), mContext);
+        // Entries in the memory cache are read without locking, so never change them in place.
+        entry = new CacheEntry();
+        entry.icon = icon;
         entry.title = app.getLabel();
         entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, app.getUser());
-        mCache.put(new ComponentKey(app.getComponentName(), app.getUser()), entry);
+        mCache.put(key, entry, getByteCount(entry, app.getUser()));
 
         return newContentValues(entry.icon, entry.title.toString(), mActivityBgColor);
     }
@@ -402,6 +627,7 @@ public class IconCache {
      * @return a request ID that can be used to cancel the request.
      */
     public IconLoadRequest updateIconInBackground(final BubbleTextView caller, final ItemInfo info) {
+        final long start = System.nanoTime();
         Runnable request = new Runnable() {
 
             @Override
@@ -417,6 +643,7 @@ public class IconCache {
                     PackageItemInfo pti = (PackageItemInfo) info;
                     getTitleAndIconForApp(pti.packageName, pti.user, false, pti);
                 }
+                mStats.record(IconCacheStats.PATH_BACKGROUND_UPDATE, start);
                 mMainThreadExecutor.execute(new Runnable() {
 
                     @Override
@@ -437,11 +664,11 @@ public class IconCache {
     /**
      * Fill in "application" with the icon and label for "info."
      */
-    public synchronized void getTitleAndIcon(AppInfo application,
+    public void getTitleAndIcon(AppInfo application,
             LauncherActivityInfoCompat info, boolean useLowResIcon) {
         UserHandleCompat user = info == null ? application.user : info.getUser();
-        CacheEntry entry = cacheLocked(application.componentName, info, user,
-                false, useLowResIcon, application.unreadNum);
+        CacheEntry entry = getOrLoadEntry(application.componentName, info, user,
+                false, useLowResIcon);
         application.title = Utilities.trim(entry.title);
         application.iconBitmap = getNonNullIcon(entry, user);
         application.contentDescription = entry.contentDescription;
@@ -451,9 +678,9 @@ public class IconCache {
     /**
      * Updates {@param application} only if a valid entry is found.
      */
-    public synchronized void updateTitleAndIcon(AppInfo application) {
-        CacheEntry entry = cacheLocked(application.componentName, null, application.user,
-                false, application.usingLowResIcon, application.unreadNum);
+    public void updateTitleAndIcon(AppInfo application) {
+        CacheEntry entry = getOrLoadEntry(application.componentName, null, application.user,
+                false, application.usingLowResIcon);
         if (entry.icon != null && !isDefaultIcon(entry.icon, application.user)) {
             application.title = Utilities.trim(entry.title);
             application.iconBitmap = entry.icon;
@@ -465,7 +692,7 @@ public class IconCache {
     /**
      * Returns a high res icon for the given intent and user
      */
-    public synchronized Bitmap getIcon(Intent intent, UserHandleCompat user) {
+    public Bitmap getIcon(Intent intent, UserHandleCompat user) {
         ComponentName component = intent.getComponent();
         // null info means not installed, but if we have a component from the intent then
         // we should still look in the cache for restored app icons.
@@ -474,7 +701,7 @@ public class IconCache {
         }
 
         LauncherActivityInfoCompat launcherActInfo = mLauncherApps.resolveActivity(intent, user);
-        CacheEntry entry = cacheLocked(component, launcherActInfo, user, true, false /* useLowRes */, -1);
+        CacheEntry entry = getOrLoadEntry(component, launcherActInfo, user, true, false /* useLowRes */);
         return entry.icon;
     }
 
@@ -482,7 +709,7 @@ public class IconCache {
      * Fill in {@param shortcutInfo} with the icon and label for {@param intent}. If the
      * corresponding activity is not found, it reverts to the package icon.
      */
-    public synchronized void getTitleAndIcon(ShortcutInfo shortcutInfo, Intent intent,
+    public void getTitleAndIcon(ShortcutInfo shortcutInfo, Intent intent,
             UserHandleCompat user, boolean useLowResIcon) {
         ComponentName component = intent.getComponent();
         // null info means not installed, but if we have a component from the intent then
@@ -501,11 +728,10 @@ public class IconCache {
     /**
      * Fill in {@param shortcutInfo} with the icon and label for {@param info}
      */
-    public synchronized void getTitleAndIcon(
+    public void getTitleAndIcon(
             ShortcutInfo shortcutInfo, ComponentName component, LauncherActivityInfoCompat info,
             UserHandleCompat user, boolean usePkgIcon, boolean useLowResIcon) {
-        CacheEntry entry = cacheLocked(component, info, user, usePkgIcon, useLowResIcon,
-                getUnreadNumber(component));
+        CacheEntry entry = getOrLoadEntry(component, info, user, usePkgIcon, useLowResIcon);
         shortcutInfo.setIcon(getNonNullIcon(entry, user));
         shortcutInfo.title = Utilities.trim(entry.title);
         shortcutInfo.usingFallbackIcon = isDefaultIcon(entry.icon, user);
@@ -515,70 +741,72 @@ public class IconCache {
     public Bitmap getArrangSelectBitmap(){
         return mSelectBitmap;
     }
-    private int getUnreadNumber(ComponentName componentName){
-        int unreadNumber = -1;
-        if(mAppIconReloaded){
-            if(LauncherAppState.getInstance().getModel().getUnreadMap()
-                    .containsKey(componentName)) {
-                unreadNumber = (int) LauncherAppState.getInstance().getModel()
-                        .getUnreadMap().get(componentName);
-            }
-        }
-        return unreadNumber;
-    }
-
-    public void setAppIconReloaded(boolean enable) {
-        mAppIconReloaded = enable;
-    }
-
-    public boolean getAppIconReload() {
-        return mAppIconReloaded;
-    }
 
     /**
      * Fill in {@param appInfo} with the icon and label for {@param packageName}
      */
-    public synchronized void getTitleAndIconForApp(
+    public void getTitleAndIconForApp(
             String packageName, UserHandleCompat user, boolean useLowResIcon,
             PackageItemInfo infoOut) {
-        CacheEntry entry = getEntryForPackageLocked(packageName, user, useLowResIcon);
+        CacheEntry entry = getOrLoadPackageEntry(packageName, user, useLowResIcon);
         infoOut.iconBitmap = getNonNullIcon(entry, user);
         infoOut.title = Utilities.trim(entry.title);
         infoOut.usingLowResIcon = entry.isLowResIcon;
         infoOut.contentDescription = entry.contentDescription;
     }
 
-    public synchronized Bitmap getDefaultIcon(UserHandleCompat user) {
-        if (!mDefaultIcons.containsKey(user)) {
-            mDefaultIcons.put(user, makeDefaultIcon(user));
+    public Bitmap getDefaultIcon(UserHandleCompat user) {
+        synchronized (mDefaultIcons) {
+            if (!mDefaultIcons.containsKey(user)) {
+                mDefaultIcons.put(user, makeDefaultIcon(user));
+            }
+            return mDefaultIcons.get(user);
         }
-        return mDefaultIcons.get(user);
     }
 
     public boolean isDefaultIcon(Bitmap icon, UserHandleCompat user) {
-        return mDefaultIcons.get(user) == icon;
+        synchronized (mDefaultIcons) {
+            return mDefaultIcons.get(user) == icon;
+        }
     }
 
     /**
      * Retrieves the entry from the cache. If the entry is not present, it creates a new entry.
-     * This method is not thread safe, it must be called from a synchronized method.
      */
-    private CacheEntry cacheLocked(ComponentName componentName, LauncherActivityInfoCompat info,
-            UserHandleCompat user, boolean usePackageIcon, boolean useLowResIcon, int unreadNum) {
+    private CacheEntry getOrLoadEntry(ComponentName componentName,
+            LauncherActivityInfoCompat info, UserHandleCompat user, boolean usePackageIcon,
+            boolean useLowResIcon) {
+        long start = System.nanoTime();
         ComponentKey cacheKey = new ComponentKey(componentName, user);
-        CacheEntry entry = mCache.get(cacheKey);
-        if (entry == null || (entry.isLowResIcon && !useLowResIcon) || unreadNum >= 0) {
+        CacheEntry entry = mCache.get(cacheKey, useLowResIcon);
+        if (entry != null) {
+            mStats.record(IconCacheStats.PATH_COMPONENT, start);
+            return entry;
+        }
+        synchronized (getLoadLock(mComponentLoadLocks, cacheKey)) {
+            // Another thread may have loaded the entry while we were waiting.
+            entry = mCache.peek(cacheKey, useLowResIcon);
+            if (entry != null) {
+                mStats.record(IconCacheStats.PATH_COMPONENT, start);
+                return entry;
+            }
+            if (!useLowResIcon && mCache.hasOnlyLowRes(cacheKey)) {
+                mStats.onLowResUpgrade();
+            }
+            // The package may be updated while the entry is loaded, without this lock.
+            int packageGeneration = mCache.getPackageGeneration(cacheKey);
             entry = new CacheEntry();
-            mCache.put(cacheKey, entry);
 
             // Check the DB first.
-            if (!getEntryFromDB(cacheKey, entry, useLowResIcon) || unreadNum >= 0) {
+            if (!getEntryFromDB(cacheKey, entry, useLowResIcon)) {
                 if (info != null) {
+                    long renderStart = System.nanoTime();
                     entry.icon = Utilities.createIconBitmap(
-                            info.getBadgedIcon(mIconDpi), mContext, unreadNum);
+                            info.getBadgedIcon(mIconDpi), mContext);
+                    mStats.record(IconCacheStats.PATH_RENDER_ICON, renderStart);
                 } else {
                     if (usePackageIcon) {
-                        CacheEntry packageEntry = getEntryForPackageLocked(
+                        CacheEntry packageEntry = getOrLoadPackageEntry(
                                 componentName.getPackageName(), user, false);
                         if (packageEntry != null) {
                             if (DEBUG) Log.d(TAG, "using package default icon for " +
@@ -600,8 +828,10 @@ public class IconCache {
                 entry.title = info.getLabel();
                 entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
             }
+            mCache.put(cacheKey, entry, getByteCount(entry, user), packageGeneration);
+            mStats.record(IconCacheStats.PATH_COMPONENT, start);
+            return entry;
         }
-        return entry;
     }
 
     /**
@@ -613,19 +843,17 @@ public class IconCache {
         removeFromMemCacheLocked(packageName, user);
 
         ComponentKey cacheKey = getPackageKey(packageName, user);
-        CacheEntry entry = mCache.get(cacheKey);
 
-        // For icon caching, do not go through DB. Just update the in-memory entry.
-        if (entry == null) {
-            entry = new CacheEntry();
-            mCache.put(cacheKey, entry);
-        }
+        // For icon caching, do not go through DB. Just update the in-memory entry. The package
+        // entries were removed above, so this is always a new entry.
+        CacheEntry entry = new CacheEntry();
         if (!TextUtils.isEmpty(title)) {
             entry.title = title;
         }
         if (icon != null) {
             entry.icon = Utilities.createIconBitmap(icon, mContext);
         }
+        mCache.put(cacheKey, entry, getByteCount(entry, user));
     }
 
     private static ComponentKey getPackageKey(String packageName, UserHandleCompat user) {
@@ -635,14 +863,27 @@ public class IconCache {
 
     /**
      * Gets an entry for the package, which can be used as a fallback entry for various components.
-     * This method is not thread safe, it must be called from a synchronized method.
      */
-    public CacheEntry getEntryForPackageLocked(String packageName, UserHandleCompat user,
+    private CacheEntry getOrLoadPackageEntry(String packageName, UserHandleCompat user,
             boolean useLowResIcon) {
+        long start = System.nanoTime();
         ComponentKey cacheKey = getPackageKey(packageName, user);
-        CacheEntry entry = mCache.get(cacheKey);
+        CacheEntry entry = mCache.get(cacheKey, useLowResIcon);
+        if (entry != null) {
+            mStats.record(IconCacheStats.PATH_PACKAGE, start);
+            return entry;
+        }
 
-        if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
+        synchronized (getLoadLock(mPackageLoadLocks, cacheKey)) {
+            entry = mCache.peek(cacheKey, useLowResIcon);
+            if (entry != null) {
+                mStats.record(IconCacheStats.PATH_PACKAGE, start);
+                return entry;
+            }
+            if (!useLowResIcon && mCache.hasOnlyLowRes(cacheKey)) {
+                mStats.onLowResUpgrade();
+            }
+            int packageGeneration = mCache.getPackageGeneration(cacheKey);
             entry = new CacheEntry();
             boolean entryUpdated = true;
 
@@ -656,9 +897,11 @@ public class IconCache {
                     if (appInfo == null) {
                         throw new NameNotFoundException("ApplicationInfo is null");
                     }
+                    long renderStart = System.nanoTime();
                     Drawable drawable = mUserManager.getBadgedDrawableForUser(
                             appInfo.loadIcon(mPackageManager), user);
                     entry.icon = Utilities.createIconBitmap(drawable, mContext);
+                    mStats.record(IconCacheStats.PATH_RENDER_ICON, renderStart);
                     entry.title = appInfo.loadLabel(mPackageManager);
                     entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
                     entry.isLowResIcon = false;
@@ -678,10 +921,11 @@ public class IconCache {
 
             // Only add a filled-out entry to the cache
             if (entryUpdated) {
-                mCache.put(cacheKey, entry);
+                mCache.put(cacheKey, entry, getByteCount(entry, user), packageGeneration);
             }
+            mStats.record(IconCacheStats.PATH_PACKAGE, start);
+            return entry;
         }
-        return entry;
     }
 
     /**
@@ -713,36 +957,99 @@ public class IconCache {
         values.put(IconDB.COLUMN_USER, userSerial);
         mIconDb.getWritableDatabase().insertWithOnConflict(IconDB.TABLE_NAME, null, values,
                 SQLiteDatabase.CONFLICT_REPLACE);
+        mBlobStore.remove(componentName, userSerial);
+
+        // The package is usually not installed yet, make sure the next validation looks at it.
+        HashMap<String, Long> fingerprint = new HashMap<>();
+        fingerprint.put(componentName.getPackageName(), PENDING_FINGERPRINT);
+        savePackageFingerprints(userSerial, fingerprint);
     }
 
     private boolean getEntryFromDB(ComponentKey cacheKey, CacheEntry entry, boolean lowRes) {
+        long start = System.nanoTime();
+        long userSerial = mUserManager.getSerialNumberForUser(cacheKey.user);
+        String blobKey = IconBlobStore.getKey(cacheKey.componentName, userSerial, lowRes);
+        if (mBlobStore.get(blobKey, entry)) {
+            mStats.onBlobHit();
+            entry.isLowResIcon = lowRes;
+            setContentDescription(entry, cacheKey.user);
+            mStats.record(IconCacheStats.PATH_DB, start);
+            return true;
+        }
+
+        // Read before the query, so that the row is not stored if it changes in the meantime.
+        long blobGeneration = mBlobStore.getGeneration();
+        final String iconColumn = lowRes ? IconDB.COLUMN_ICON_LOW_RES : IconDB.COLUMN_ICON;
         Cursor c = mIconDb.getReadableDatabase().query(IconDB.TABLE_NAME,
-                new String[] {lowRes ? IconDB.COLUMN_ICON_LOW_RES : IconDB.COLUMN_ICON,
-                        IconDB.COLUMN_LABEL},
+                new String[] {iconColumn, IconDB.COLUMN_LABEL, IconDB.COLUMN_LAST_UPDATED,
+                        IconDB.COLUMN_VERSION},
                 IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
                 new String[] {cacheKey.componentName.flattenToString(),
-                    Long.toString(mUserManager.getSerialNumberForUser(cacheKey.user))},
+                    Long.toString(userSerial)},
                 null, null, null);
         try {
             if (c.moveToNext()) {
-                entry.icon = loadIconNoResize(c, 0, lowRes ? mLowResOptions : null);
+                mStats.onDbHit();
+                byte[] data = c.getBlob(0);
+                entry.icon = lowRes ? IconCodec.decode(data, mLowResOptions)
+                        : BitmapPool.getInstance().decode(data, null,
+                                mIconBitmapSize, mIconBitmapSize, Bitmap.Config.ARGB_8888);
                 entry.isLowResIcon = lowRes;
+                if (entry.icon != null && IconCodec.needsMigration(data)) {
+                    migrateIconFormat(cacheKey.componentName, userSerial, iconColumn,
+                            entry.icon, c.getLong(2), c.getInt(3));
+                }
                 entry.title = c.getString(1);
-                if (entry.title == null) {
-                    entry.title = "";
-                    entry.contentDescription = "";
-                } else {
-                    entry.contentDescription = mUserManager.getBadgedLabelForUser(
-                            entry.title, cacheKey.user);
+                if (entry.icon != null) {
+                    mBlobStore.put(blobKey, entry.icon, c.getString(1), blobGeneration);
                 }
+                setContentDescription(entry, cacheKey.user);
+                mStats.record(IconCacheStats.PATH_DB, start);
                 return true;
             }
         } finally {
             c.close();
         }
+        mStats.onDbMiss();
+        mStats.record(IconCacheStats.PATH_DB, start);
         return false;
     }
 
+    /**
+     * Writes an icon read in an older format again in the current format. The row is only
+     * updated if it has not changed since it was read.
+     */
+    private void migrateIconFormat(final ComponentName component, final long userSerial,
+            final String iconColumn, final Bitmap icon, final long lastUpdated,
+            final int version) {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                byte[] data = IconCodec.encode(icon);
+                if (data == null) {
+                    return;
+                }
+                ContentValues values = new ContentValues();
+                values.put(iconColumn, data);
+                mIconDb.getWritableDatabase().update(IconDB.TABLE_NAME, values,
+                        IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ? AND "
+                                + IconDB.COLUMN_LAST_UPDATED + " = ? AND "
+                                + IconDB.COLUMN_VERSION + " = ?",
+                        new String[] {component.flattenToString(), Long.toString(userSerial),
+                                Long.toString(lastUpdated), Integer.toString(version)});
+            }
+        });
+    }
+
+    private void setContentDescription(CacheEntry entry, UserHandleCompat user) {
+        if (entry.title == null) {
+            entry.title = "";
+            entry.contentDescription = "";
+        } else {
+            entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
+        }
+    }
+
     public static class IconLoadRequest {
         private final Runnable mRunnable;
         private final Handler mHandler;
@@ -759,57 +1066,117 @@ public class IconCache {
 
     /**
      * A runnable that updates invalid icons and adds missing icons in the DB for the provided
-     * LauncherActivityInfoCompat list. Items are updated/added one at a time, so that the
-     * worker thread doesn't get blocked.
+     * LauncherActivityInfoCompat list. Icons are rendered in batches on the {@link WorkerPool},
+     * and each batch is written in a single transaction. The worker thread is released between
+     * batches, so a loader posted on it waits for one batch at most.
      */
-    @Thunk class SerializedIconUpdateTask implements Runnable {
+    @Thunk class IconUpdateTask implements Runnable {
         private final long mUserSerial;
         private final HashMap<String, PackageInfo> mPkgInfoMap;
         private final Stack<LauncherActivityInfoCompat> mAppsToAdd;
         private final Stack<LauncherActivityInfoCompat> mAppsToUpdate;
         private final HashSet<String> mUpdatedPackages = new HashSet<String>();
+        // Saved once all the icons are written.
+        private final HashMap<String, Long> mFingerprints;
 
-        @Thunk SerializedIconUpdateTask(long userSerial, HashMap<String, PackageInfo> pkgInfoMap,
+        @Thunk IconUpdateTask(long userSerial, HashMap<String, PackageInfo> pkgInfoMap,
                 Stack<LauncherActivityInfoCompat> appsToAdd,
-                Stack<LauncherActivityInfoCompat> appsToUpdate) {
+                Stack<LauncherActivityInfoCompat> appsToUpdate,
+                HashMap<String, Long> fingerprints) {
             mUserSerial = userSerial;
             mPkgInfoMap = pkgInfoMap;
             mAppsToAdd = appsToAdd;
             mAppsToUpdate = appsToUpdate;
+            mFingerprints = fingerprints;
         }
 
         @Override
         public void run() {
-            if (!mAppsToUpdate.isEmpty()) {
-                LauncherActivityInfoCompat app = mAppsToUpdate.pop();
-                String cn = app.getComponentName().flattenToString();
-                ContentValues values = updateCacheAndGetContentValues(app, true);
-                mIconDb.getWritableDatabase().update(IconDB.TABLE_NAME, values,
-                        IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
-                        new String[] {cn, Long.toString(mUserSerial)});
-                mUpdatedPackages.add(app.getComponentName().getPackageName());
-
-                if (mAppsToUpdate.isEmpty() && !mUpdatedPackages.isEmpty()) {
-                    // No more app to update. Notify model.
-                    LauncherAppState.getInstance().getModel().onPackageIconsUpdated(
-                            mUpdatedPackages, mUserManager.getUserForSerialNumber(mUserSerial));
+            // Updates go first, so that the model is notified as early as possible.
+            final boolean isUpdate = !mAppsToUpdate.isEmpty();
+            Stack<LauncherActivityInfoCompat> source = isUpdate ? mAppsToUpdate : mAppsToAdd;
+            int batchSize = ICON_UPDATE_BATCH_PER_THREAD * WorkerPool.getThreadCount();
+            ArrayList<Callable<ContentValues>> renders = new ArrayList<>();
+            final ArrayList<LauncherActivityInfoCompat> apps = new ArrayList<>();
+            while (!source.isEmpty() && apps.size() < batchSize) {
+                final LauncherActivityInfoCompat app = source.pop();
+                if (!isUpdate && !mPkgInfoMap.containsKey(
+                        app.getComponentName().getPackageName())) {
+                    continue;
                 }
+                apps.add(app);
+                renders.add(new Callable<ContentValues>() {
+                    @Override
+                    public ContentValues call() {
+                        // When adding, reuse the existing entry if it was already created
+                        // during loader.
+                        return updateCacheAndGetContentValues(app, isUpdate);
+                    }
+                });
+            }
 
-                // Let it run one more time.
-                scheduleNext();
-            } else if (!mAppsToAdd.isEmpty()) {
-                LauncherActivityInfoCompat app = mAppsToAdd.pop();
-                PackageInfo info = mPkgInfoMap.get(app.getComponentName().getPackageName());
-                if (info != null) {
-                    synchronized (IconCache.this) {
-                        addIconToDBAndMemCache(app, info, mUserSerial);
+            List<Future<ContentValues>> results;
+            try {
+                results = WorkerPool.get().invokeAll(renders);
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while rendering icons", e);
+                return;
+            }
+
+            synchronized (IconCache.this) {
+                SQLiteDatabase db = mIconDb.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    for (int i = 0; i < apps.size(); i++) {
+                        ContentValues values = getResult(results.get(i));
+                        if (values == null) {
+                            continue;
+                        }
+                        ComponentName cn = apps.get(i).getComponentName();
+                        PackageInfo info = mPkgInfoMap.get(cn.getPackageName());
+                        if (info != null) {
+                            putVersionValues(values, cn, info, mUserSerial);
+                        }
+                        if (isUpdate) {
+                            db.update(IconDB.TABLE_NAME, values,
+                                    IconDB.COLUMN_COMPONENT + " = ? AND "
+                                            + IconDB.COLUMN_USER + " = ?",
+                                    new String[] {cn.flattenToString(),
+                                            Long.toString(mUserSerial)});
+                            mUpdatedPackages.add(cn.getPackageName());
+                        } else {
+                            db.insertWithOnConflict(IconDB.TABLE_NAME, null, values,
+                                    SQLiteDatabase.CONFLICT_REPLACE);
+                        }
                     }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
                 }
-
-                if (!mAppsToAdd.isEmpty()) {
-                    scheduleNext();
+                for (LauncherActivityInfoCompat app : apps) {
+                    mBlobStore.remove(app.getComponentName(), mUserSerial);
                 }
             }
+
+            if (isUpdate && mAppsToUpdate.isEmpty() && !mUpdatedPackages.isEmpty()) {
+                // No more app to update. Notify model.
+                LauncherAppState.getInstance().getModel().onPackageIconsUpdated(
+                        mUpdatedPackages, mUserManager.getUserForSerialNumber(mUserSerial));
+            }
+            if (!mAppsToUpdate.isEmpty() || !mAppsToAdd.isEmpty()) {
+                scheduleNext();
+            } else {
+                savePackageFingerprints(mUserSerial, mFingerprints);
+            }
+        }
+
+        private ContentValues getResult(Future<ContentValues> result) {
+            try {
+                return result.get();
+            } catch (InterruptedException | ExecutionException e) {
+                Log.w(TAG, "Unable to render icon", e);
+                return null;
+            }
         }
 
         public void scheduleNext() {
@@ -822,7 +1189,7 @@ public class IconCache {
     }
 
     private static final class IconDB extends SQLiteOpenHelper {
-        private final static int DB_VERSION = 7;
+        private final static int DB_VERSION = 8;
 
         private final static String TABLE_NAME = "icons";
         private final static String COLUMN_ROWID = "rowid";
@@ -835,6 +1202,12 @@ public class IconCache {
         private final static String COLUMN_LABEL = "label";
         private final static String COLUMN_SYSTEM_STATE = "system_state";
 
+        // Fingerprints of the packages whose rows were last validated, see
+        // getPackageFingerprints. Shares COLUMN_USER with the icons table.
+        private final static String FINGERPRINT_TABLE_NAME = "package_fingerprints";
+        private final static String COLUMN_PACKAGE = "packageName";
+        private final static String COLUMN_FINGERPRINT = "fingerprint";
+
         public IconDB(Context context) {
             super(context, LauncherFiles.APP_ICONS_DB, null, DB_VERSION);
         }
@@ -852,6 +1225,12 @@ public class IconCache {
                     COLUMN_SYSTEM_STATE + " TEXT, " +
                     "PRIMARY KEY (" + COLUMN_COMPONENT + ", " + COLUMN_USER + ") " +
                     ");");
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + FINGERPRINT_TABLE_NAME + " (" +
+                    COLUMN_PACKAGE + " TEXT NOT NULL, " +
+                    COLUMN_USER + " INTEGER NOT NULL, " +
+                    COLUMN_FINGERPRINT + " INTEGER NOT NULL, " +
+                    "PRIMARY KEY (" + COLUMN_PACKAGE + ", " + COLUMN_USER + ") " +
+                    ");");
         }
 
         @Override
@@ -870,46 +1249,36 @@ public class IconCache {
 
         private void clearDB(SQLiteDatabase db) {
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + FINGERPRINT_TABLE_NAME);
             onCreate(db);
         }
     }
 
     private ContentValues newContentValues(Bitmap icon, String label, int lowResBackgroundColor) {
         ContentValues values = new ContentValues();
-        values.put(IconDB.COLUMN_ICON, Utilities.flattenBitmap(icon));
+        values.put(IconDB.COLUMN_ICON, IconCodec.encode(icon));
 
         values.put(IconDB.COLUMN_LABEL, label);
         values.put(IconDB.COLUMN_SYSTEM_STATE, mSystemState);
 
-        if (lowResBackgroundColor == Color.TRANSPARENT) {
-          values.put(IconDB.COLUMN_ICON_LOW_RES, Utilities.flattenBitmap(
-          Bitmap.createScaledBitmap(icon,
-                  icon.getWidth() / LOW_RES_SCALE_FACTOR,
-                  icon.getHeight() / LOW_RES_SCALE_FACTOR, true)));
-        } else {
-            synchronized (this) {
-                if (mLowResBitmap == null) {
-                    mLowResBitmap = Bitmap.createBitmap(icon.getWidth() / LOW_RES_SCALE_FACTOR,
-                            icon.getHeight() / LOW_RES_SCALE_FACTOR, Bitmap.Config.RGB_565);
-                    mLowResCanvas = new Canvas(mLowResBitmap);
-                    mLowResPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
-                }
-                mLowResCanvas.drawColor(lowResBackgroundColor);
-                mLowResCanvas.drawBitmap(icon, new Rect(0, 0, icon.getWidth(), icon.getHeight()),
-                        new Rect(0, 0, mLowResBitmap.getWidth(), mLowResBitmap.getHeight()),
-                        mLowResPaint);
-                values.put(IconDB.COLUMN_ICON_LOW_RES, Utilities.flattenBitmap(mLowResBitmap));
-            }
+        // The scaled icon is only needed for encoding, so it goes back to the pool afterwards.
+        // Icons with a background color do not need alpha and are stored as RGB_565.
+        Bitmap lowRes = BitmapPool.getInstance().getOrCreate(
+                icon.getWidth() / LOW_RES_SCALE_FACTOR, icon.getHeight() / LOW_RES_SCALE_FACTOR,
+                lowResBackgroundColor == Color.TRANSPARENT
+                        ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565);
+        CanvasPool.Holder holder = CanvasPool.get();
+        holder.canvas.setBitmap(lowRes);
+        if (lowResBackgroundColor != Color.TRANSPARENT) {
+            holder.canvas.drawColor(lowResBackgroundColor);
         }
+        holder.srcRect.set(0, 0, icon.getWidth(), icon.getHeight());
+        holder.dstRect.set(0, 0, lowRes.getWidth(), lowRes.getHeight());
+        holder.canvas.drawBitmap(icon, holder.srcRect, holder.dstRect, holder.bitmapPaint);
+        holder.canvas.setBitmap(null);
+        values.put(IconDB.COLUMN_ICON_LOW_RES, IconCodec.encode(lowRes));
+        BitmapPool.getInstance().put(lowRes);
         return values;
     }
 
-    private static Bitmap loadIconNoResize(Cursor c, int iconIndex, BitmapFactory.Options options) {
-        byte[] data = c.getBlob(iconIndex);
-        try {
-            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
-        } catch (Exception e) {
-            return null;
-        }
-    }
 }
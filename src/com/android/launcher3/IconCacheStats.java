@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on counters and latency histograms of the {@link IconCache}, which can be read with
+ * {@link IconCache#getStats()} or dumped.
+ *
+ * Latencies are kept in power of two buckets of microseconds, so that recording is a couple of
+ * atomic increments and never allocates.
+ *
+ * <p> Usage:
+ * <pre>
+ *     long start = System.nanoTime();
+ *     doWork();
+ *     mStats.record(IconCacheStats.PATH_DB, start);
+ * </pre>
+ *
+ * Thread safe.
+ */
+public class IconCacheStats {
+    private static final String TAG = "Launcher.IconCacheStats";
+
+    /** Component lookups, from memory or loaded. */
+    public static final int PATH_COMPONENT = 0;
+    /** Package lookups, from memory or loaded. */
+    public static final int PATH_PACKAGE = 1;
+    /** Reads from the persistent cache, through the blob store and the DB. */
+    public static final int PATH_DB = 2;
+    /** Background full-res loads, from the request to the entry being ready. */
+    public static final int PATH_BACKGROUND_UPDATE = 3;
+    /** Icon resources loaded from the package manager through getFullResIcon. */
+    public static final int PATH_FULL_RES_ICON = 4;
+    /** Icons rendered from the package manager when they are not in the persistent cache. */
+    public static final int PATH_RENDER_ICON = 5;
+
+    private static final String[] PATH_NAMES = {
+            "component", "package", "db", "backgroundUpdate", "fullResIcon", "renderIcon"};
+    public static final int PATH_COUNT = PATH_NAMES.length;
+
+    /**
+     * Bucket i holds the latencies in [2^(i-1), 2^i) microseconds, bucket 0 those under 1us.
+     * The last bucket holds everything from about half a second.
+     */
+    public static final int BUCKET_COUNT = 21;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(PATH_COUNT);
+    private final AtomicLongArray mTotalMicros = new AtomicLongArray(PATH_COUNT);
+    private final AtomicLongArray mMaxMicros = new AtomicLongArray(PATH_COUNT);
+    private final AtomicLongArray mBuckets = new AtomicLongArray(PATH_COUNT * BUCKET_COUNT);
+
+    private final AtomicLong mBlobHits = new AtomicLong();
+    private final AtomicLong mDbHits = new AtomicLong();
+    private final AtomicLong mDbMisses = new AtomicLong();
+    private final AtomicLong mLowResUpgrades = new AtomicLong();
+
+    /**
+     * Records a call on the path which started at {@param startNanos}, see
+     * {@link System#nanoTime()}.
+     */
+    public void record(int path, long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        mCounts.incrementAndGet(path);
+        mTotalMicros.addAndGet(path, micros);
+        mBuckets.incrementAndGet(path * BUCKET_COUNT + getBucket(micros));
+
+        long max;
+        do {
+            max = mMaxMicros.get(path);
+        } while (micros > max && !mMaxMicros.compareAndSet(path, max, micros));
+    }
+
+    private static int getBucket(long micros) {
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1);
+    }
+
+    void onBlobHit() {
+        mBlobHits.incrementAndGet();
+    }
+
+    void onDbHit() {
+        mDbHits.incrementAndGet();
+    }
+
+    void onDbMiss() {
+        mDbMisses.incrementAndGet();
+    }
+
+    /**
+     * Called when a full-res icon is loaded for an entry which was cached in low-res.
+     */
+    void onLowResUpgrade() {
+        mLowResUpgrades.incrementAndGet();
+    }
+
+    /**
+     * @return a copy of the current values, merged with those of the memory cache.
+     */
+    Snapshot snapshot(IconLruCache cache) {
+        Latency[] latencies = new Latency[PATH_COUNT];
+        for (int path = 0; path < PATH_COUNT; path++) {
+            long[] buckets = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = mBuckets.get(path * BUCKET_COUNT + i);
+            }
+            latencies[path] = new Latency(PATH_NAMES[path], mCounts.get(path),
+                    mTotalMicros.get(path), mMaxMicros.get(path), buckets);
+        }
+        return new Snapshot(cache.getHitCount(), cache.getMissCount(), cache.getEvictionCount(),
+                mBlobHits.get(), mDbHits.get(), mDbMisses.get(), mLowResUpgrades.get(),
+                cache.getFullResCount(), cache.getFullResBytes(),
+                cache.getLowResCount(), cache.getLowResBytes(), latencies);
+    }
+
+    /**
+     * The latencies of one path.
+     */
+    public static class Latency {
+        public final String name;
+        public final long count;
+        public final long totalMicros;
+        public final long maxMicros;
+        /** See {@link #BUCKET_COUNT}. */
+        public final long[] buckets;
+
+        Latency(String name, long count, long totalMicros, long maxMicros, long[] buckets) {
+            this.name = name;
+            this.count = count;
+            this.totalMicros = totalMicros;
+            this.maxMicros = maxMicros;
+            this.buckets = buckets;
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the given percentile, in microseconds,
+         * or 0 if nothing was recorded.
+         */
+        public long getPercentileMicros(int percentile) {
+            // The bucket counts are read one by one, so they may not add up to the count.
+            long total = 0;
+            for (long b : buckets) {
+                total += b;
+            }
+            long rank = (total * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(1L << i, maxMicros);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": count=" + count
+                    + " avg=" + (count == 0 ? 0 : totalMicros / count) + "us"
+                    + " p50=" + getPercentileMicros(50) + "us"
+                    + " p90=" + getPercentileMicros(90) + "us"
+                    + " p99=" + getPercentileMicros(99) + "us"
+                    + " max=" + maxMicros + "us";
+        }
+    }
+
+    /**
+     * The values at one point in time. Counters only grow, so two snapshots can be subtracted to
+     * get the activity in between.
+     */
+    public static class Snapshot {
+        public final long memoryHits;
+        public final long memoryMisses;
+        public final long evictions;
+        /** Persistent reads answered by the blob store. */
+        public final long blobHits;
+        /** Persistent reads answered by the DB. */
+        public final long dbHits;
+        /** Persistent reads which found nothing. */
+        public final long dbMisses;
+        public final long lowResUpgrades;
+        public final int fullResEntries;
+        public final long fullResBytes;
+        public final int lowResEntries;
+        public final long lowResBytes;
+        /** Indexed by path, e.g. {@link #PATH_COMPONENT}. */
+        public final Latency[] latencies;
+
+        Snapshot(long memoryHits, long memoryMisses, long evictions, long blobHits,
+                long dbHits, long dbMisses, long lowResUpgrades, int fullResEntries,
+                long fullResBytes, int lowResEntries, long lowResBytes, Latency[] latencies) {
+            this.memoryHits = memoryHits;
+            this.memoryMisses = memoryMisses;
+            this.evictions = evictions;
+            this.blobHits = blobHits;
+            this.dbHits = dbHits;
+            this.dbMisses = dbMisses;
+            this.lowResUpgrades = lowResUpgrades;
+            this.fullResEntries = fullResEntries;
+            this.fullResBytes = fullResBytes;
+            this.lowResEntries = lowResEntries;
+            this.lowResBytes = lowResBytes;
+            this.latencies = latencies;
+        }
+
+        /**
+         * @return the fraction of lookups answered from memory, or 0 if there were none.
+         */
+        public float getHitRate() {
+            long lookups = memoryHits + memoryMisses;
+            return lookups == 0 ? 0 : (float) memoryHits / lookups;
+        }
+
+        private String[] toLines() {
+            String[] lines = new String[3 + latencies.length];
+            lines[0] = "memory: hits=" + memoryHits + " misses=" + memoryMisses
+                    + " hitRate=" + getHitRate() + " evictions=" + evictions
+                    + " lowResUpgrades=" + lowResUpgrades;
+            lines[1] = "persistent: blobHits=" + blobHits + " dbHits=" + dbHits
+                    + " misses=" + dbMisses;
+            lines[2] = "held: fullRes=" + fullResEntries + " (" + fullResBytes / 1024 + "KB)"
+                    + " lowRes=" + lowResEntries + " (" + lowResBytes / 1024 + "KB)";
+            for (int i = 0; i < latencies.length; i++) {
+                lines[3 + i] = latencies[i].toString();
+            }
+            return lines;
+        }
+
+        public void dumpState() {
+            for (String line : toLines()) {
+                Log.d(TAG, line);
+            }
+        }
+
+        public void dump(String prefix, PrintWriter writer) {
+            writer.println(prefix + "Icon cache stats:");
+            for (String line : toLines()) {
+                writer.println(prefix + "  " + line);
+            }
+        }
+    }
+}
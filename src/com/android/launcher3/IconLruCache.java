@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.ComponentCallbacks2;
+
+import com.android.launcher3.IconCache.CacheEntry;
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.util.ComponentKey;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory part of the {@link IconCache}. Full-res and low-res entries are kept apart, each
+ * bounded by the number of bitmap bytes it holds, so that the low-res entries of all-apps can
+ * never push out the full-res icons of the workspace. The least recently used entries are
+ * evicted first.
+ *
+ * Thread safe. Lookups do not lock, changes are serialized on the cache.
+ */
+class IconLruCache {
+
+    // When a put goes over the budget, evict down to this fraction of it, so that the entries
+    // are not sorted again on every following put.
+    private static final int EVICTION_HEADROOM_DIVISOR = 8;
+
+    // Packages share a generation counter per stripe. A collision only makes a load skip the cache.
+    private static final int PACKAGE_GENERATION_STRIPES = 64;
+
+    /**
+     * An entry considered for eviction, with its access stamp as it was when the eviction
+     * started. Lookups keep stamping the entries while they are sorted, so the sort must not
+     * read the live stamps.
+     */
+    private static class EvictionCandidate {
+        final ComponentKey key;
+        final CacheEntry entry;
+        final long lastAccess;
+
+        EvictionCandidate(ComponentKey key, CacheEntry entry) {
+            this.key = key;
+            this.entry = entry;
+            this.lastAccess = entry.lastAccess;
+        }
+    }
+
+    private static final Comparator<EvictionCandidate> LEAST_RECENT_FIRST =
+            new Comparator<EvictionCandidate>() {
+                @Override
+                public int compare(EvictionCandidate lhs, EvictionCandidate rhs) {
+                    return lhs.lastAccess < rhs.lastAccess ? -1
+                            : (lhs.lastAccess == rhs.lastAccess ? 0 : 1);
+                }
+            };
+
+    private final ConcurrentHashMap<ComponentKey, CacheEntry> mFullRes =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ComponentKey, CacheEntry> mLowRes =
+            new ConcurrentHashMap<>();
+
+    private final int mMaxFullResBytes;
+    private final int mMaxLowResBytes;
+
+    // Guarded by this.
+    private int mFullResBytes;
+    private int mLowResBytes;
+
+    // Ticks on every access, used to order the entries for eviction.
+    private final AtomicLong mClock = new AtomicLong();
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+    // Incremented when the entries of a package are removed, changed under the cache lock.
+    private final AtomicIntegerArray mPackageGenerations =
+            new AtomicIntegerArray(PACKAGE_GENERATION_STRIPES);
+
+    IconLruCache(int maxFullResBytes, int maxLowResBytes) {
+        mMaxFullResBytes = maxFullResBytes;
+        mMaxLowResBytes = maxLowResBytes;
+    }
+
+    /**
+     * Returns the entry for the key. A low-res entry is only returned if {@param allowLowRes} is
+     * set, so that asking for a full-res icon which is only cached in low-res counts as a miss.
+     */
+    CacheEntry get(ComponentKey key, boolean allowLowRes) {
+        CacheEntry entry = mFullRes.get(key);
+        if (entry == null && allowLowRes) {
+            entry = mLowRes.get(key);
+        }
+        if (entry != null) {
+            entry.lastAccess = mClock.incrementAndGet();
+            mHitCount.incrementAndGet();
+        } else {
+            mMissCount.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Like {@link #get}, but does not count as an access nor as a hit or a miss. Used to check
+     * the cache again for an entry which was already looked up.
+     */
+    CacheEntry peek(ComponentKey key, boolean allowLowRes) {
+        CacheEntry entry = mFullRes.get(key);
+        if (entry == null && allowLowRes) {
+            entry = mLowRes.get(key);
+        }
+        return entry;
+    }
+
+    /**
+     * @return true if the key only has a low-res entry. Does not count as an access.
+     */
+    boolean hasOnlyLowRes(ComponentKey key) {
+        return !mFullRes.containsKey(key) && mLowRes.containsKey(key);
+    }
+
+    /**
+     * Adds the entry, replacing any entry for the key, and evicts the least recently used
+     * entries if the cache no longer fits in its budget. The entry is read without locking, so
+     * it must not be changed once it is in the cache.
+     *
+     * @param byteCount the bitmap bytes held by the entry, 0 if the bitmap is shared.
+     */
+    synchronized void put(ComponentKey key, CacheEntry entry, int byteCount) {
+        remove(key);
+        entry.byteCount = byteCount;
+        entry.lastAccess = mClock.incrementAndGet();
+        if (entry.isLowResIcon) {
+            mLowRes.put(key, entry);
+            mLowResBytes += byteCount;
+            if (mLowResBytes > mMaxLowResBytes) {
+                mLowResBytes = trimToSize(mLowRes, mLowResBytes,
+                        mMaxLowResBytes - mMaxLowResBytes / EVICTION_HEADROOM_DIVISOR);
+            }
+        } else {
+            mFullRes.put(key, entry);
+            mFullResBytes += byteCount;
+            if (mFullResBytes > mMaxFullResBytes) {
+                mFullResBytes = trimToSize(mFullRes, mFullResBytes,
+                        mMaxFullResBytes - mMaxFullResBytes / EVICTION_HEADROOM_DIVISOR);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #put(ComponentKey, CacheEntry, int)}, unless the entries of the package were
+     * removed since {@param packageGeneration} was read: the entry may then have been loaded from
+     * the package as it was before, and is not added.
+     *
+     * @return true if the entry was added.
+     */
+    synchronized boolean put(ComponentKey key, CacheEntry entry, int byteCount,
+            int packageGeneration) {
+        if (getPackageGeneration(key) != packageGeneration) {
+            return false;
+        }
+        put(key, entry, byteCount);
+        return true;
+    }
+
+    /**
+     * @return the generation of the package of the key, which changes whenever the entries of
+     * the package are removed. Read it before loading an entry which is added with it.
+     */
+    int getPackageGeneration(ComponentKey key) {
+        return mPackageGenerations.get(
+                getPackageStripe(key.componentName.getPackageName(), key.user));
+    }
+
+    private static int getPackageStripe(String packageName, UserHandleCompat user) {
+        int hash = 31 * packageName.hashCode() + user.hashCode();
+        return (hash & Integer.MAX_VALUE) % PACKAGE_GENERATION_STRIPES;
+    }
+
+    synchronized void remove(ComponentKey key) {
+        CacheEntry entry = mFullRes.remove(key);
+        if (entry != null) {
+            mFullResBytes -= entry.byteCount;
+        }
+        entry = mLowRes.remove(key);
+        if (entry != null) {
+            mLowResBytes -= entry.byteCount;
+        }
+    }
+
+    /**
+     * Removes all the entries of the given package.
+     */
+    synchronized void removePackage(String packageName, UserHandleCompat user) {
+        mPackageGenerations.incrementAndGet(getPackageStripe(packageName, user));
+        ArrayList<ComponentKey> forDeletion = new ArrayList<>();
+        addKeysForPackage(mFullRes, packageName, user, forDeletion);
+        addKeysForPackage(mLowRes, packageName, user, forDeletion);
+        for (ComponentKey condemned : forDeletion) {
+            remove(condemned);
+        }
+    }
+
+    private static void addKeysForPackage(Map<ComponentKey, CacheEntry> map, String packageName,
+            UserHandleCompat user, ArrayList<ComponentKey> out) {
+        for (ComponentKey key : map.keySet()) {
+            if (key.componentName.getPackageName().equals(packageName)
+                    && key.user.equals(user)) {
+                out.add(key);
+            }
+        }
+    }
+
+    /**
+     * Shrinks the cache according to the trim level. The higher the level, the less is kept.
+     * See {@link ComponentCallbacks2}.
+     */
+    synchronized void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            trimToSize(0, 0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            trimToSize(mMaxFullResBytes / 4, 0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Launcher is not visible, the low-res icons are only needed once all-apps opens.
+            trimToSize(mMaxFullResBytes / 2, 0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(mMaxFullResBytes / 2, mMaxLowResBytes / 2);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMaxFullResBytes * 3 / 4, mMaxLowResBytes * 3 / 4);
+        }
+    }
+
+    private void trimToSize(int maxFullResBytes, int maxLowResBytes) {
+        mFullResBytes = trimToSize(mFullRes, mFullResBytes, maxFullResBytes);
+        mLowResBytes = trimToSize(mLowRes, mLowResBytes, maxLowResBytes);
+    }
+
+    /**
+     * Evicts the least recently used entries of the map until it holds at most {@param maxBytes}.
+     * @return the bytes held by the map afterwards.
+     */
+    private int trimToSize(ConcurrentHashMap<ComponentKey, CacheEntry> map, int bytes,
+            int maxBytes) {
+        if (bytes <= maxBytes) {
+            return bytes;
+        }
+        ArrayList<EvictionCandidate> candidates = new ArrayList<>(map.size());
+        for (Map.Entry<ComponentKey, CacheEntry> e : map.entrySet()) {
+            candidates.add(new EvictionCandidate(e.getKey(), e.getValue()));
+        }
+        Collections.sort(candidates, LEAST_RECENT_FIRST);
+        for (int i = 0; i < candidates.size() && bytes > maxBytes; i++) {
+            EvictionCandidate candidate = candidates.get(i);
+            map.remove(candidate.key);
+            bytes -= candidate.entry.byteCount;
+            mEvictionCount.incrementAndGet();
+        }
+        return bytes;
+    }
+
+    synchronized void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "Icon memory cache:");
+        writer.println(prefix + "  fullRes: " + mFullRes.size() + " entries, "
+                + mFullResBytes / 1024 + "/" + mMaxFullResBytes / 1024 + "KB");
+        writer.println(prefix + "  lowRes: " + mLowRes.size() + " entries, "
+                + mLowResBytes / 1024 + "/" + mMaxLowResBytes / 1024 + "KB");
+        writer.println(prefix + "  hits=" + mHitCount.get() + " misses=" + mMissCount.get()
+                + " evictions=" + mEvictionCount.get());
+    }
+
+    long getHitCount() {
+        return mHitCount.get();
+    }
+
+    long getMissCount() {
+        return mMissCount.get();
+    }
+
+    long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    int getFullResCount() {
+        return mFullRes.size();
+    }
+
+    int getLowResCount() {
+        return mLowRes.size();
+    }
+
+    synchronized int getFullResBytes() {
+        return mFullResBytes;
+    }
+
+    synchronized int getLowResBytes() {
+        return mLowResBytes;
+    }
+}
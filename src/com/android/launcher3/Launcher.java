@@ -111,6 +111,7 @@ import com.android.launcher3.compat.LauncherActivityInfoCompat;
 import com.android.launcher3.compat.LauncherAppsCompat;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.model.LoaderTrace;
 import com.android.launcher3.model.WidgetsModel;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.LongArrayMap;
@@ -132,7 +133,6 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -318,6 +318,7 @@ public class Launcher extends Activity
 
     private LauncherModel mModel;
     public IconCache mIconCache;
+    private BadgeRenderer mBadgeRenderer;
     @Thunk boolean mUserPresent = true;
     private boolean mVisible = false;
     private boolean mHasFocus = false;
@@ -452,14 +453,9 @@ public class Launcher extends Activity
         }
     };
 
-    private void updateUnreadIcon(Map unreadMap) {
-        Iterator iter = unreadMap.entrySet().iterator();
-        while (iter.hasNext()) {
-            Map.Entry entry = (Map.Entry) iter.next();
-            ComponentName componentName = (ComponentName) entry.getKey();
-            int unreadNumber = (int) entry.getValue();
-            mModel.postUnreadTask(componentName, unreadNumber);
-        }
+    private void updateUnreadIcon(Map<ComponentName, Integer> unreadMap) {
+        // Applied in one pass, rather than one update per app.
+        mModel.postUnreadTask(unreadMap);
     }
 
     private Runnable mUpdateOrientationRunnable = new Runnable() {
@@ -1049,6 +1045,9 @@ public class Launcher extends Activity
         super.onStop();
         FirstFrameAnimatorHelper.setIsVisible(false);
 
+        // Keep the snapshot used for the next cold start in sync with any edits.
+        mModel.writeModelSnapshot();
+
         if (mLauncherCallbacks != null) {
             mLauncherCallbacks.onStop();
         }
@@ -3556,11 +3555,18 @@ public class Launcher extends Activity
     @Override
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
+        if (mIconCache != null) {
+            mIconCache.onTrimMemory(level);
+        }
         if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
             // The widget preview db can result in holding onto over
             // 3MB of memory for caching which isn't necessary.
             SQLiteDatabase.releaseMemory();
 
+            if (mBadgeRenderer != null) {
+                mBadgeRenderer.onTrimMemory();
+            }
+
             // This clears all widget bitmaps from the widget tray
             // TODO(hyunyoungs)
         }
@@ -4624,6 +4630,28 @@ public class Launcher extends Activity
         }
     }
 
+    /**
+     * The unread count of some apps changed, redraw their badges.
+     *
+     * Implementation of the method from LauncherModel.Callbacks.
+     */
+    @Override
+    public void bindUnreadNumbersChanged(final HashSet<ItemInfo> updated) {
+        Runnable r = new Runnable() {
+            public void run() {
+                bindUnreadNumbersChanged(updated);
+            }
+        };
+        if (waitUntilResume(r)) {
+            return;
+        }
+
+        mWorkspace.updateUnreadNumbers(updated);
+        if (mAppsView != null) {
+            mAppsView.updateUnreadNumbers(updated);
+        }
+    }
+
     /**
      * Update the state of a package, typically related to install state.
      *
@@ -5004,6 +5032,16 @@ public class Launcher extends Activity
         }
     }
 
+    /**
+     * Returns the renderer for the unread badges drawn over the icons.
+     */
+    public BadgeRenderer getBadgeRenderer() {
+        if (mBadgeRenderer == null) {
+            mBadgeRenderer = new BadgeRenderer(this);
+        }
+        return mBadgeRenderer;
+    }
+
     /**
      * Returns a FastBitmapDrawable with the icon, accurately sized.
      */
@@ -5048,6 +5086,10 @@ public class Launcher extends Activity
                 writer.println("  " + sDumpLogs.get(i));
             }
         }
+        LoaderTrace.dump(prefix, writer);
+        if (mIconCache != null) {
+            mIconCache.dump(prefix, writer);
+        }
         if (mLauncherCallbacks != null) {
             mLauncherCallbacks.dump(prefix, fd, writer, args);
         }
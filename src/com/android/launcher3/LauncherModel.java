@@ -47,6 +47,8 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.util.LongSparseArray;
 import android.util.Pair;
+import android.view.Display;
+import android.view.WindowManager;
 
 import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.LauncherActivityInfoCompat;
@@ -55,13 +57,18 @@ import com.android.launcher3.compat.PackageInstallerCompat;
 import com.android.launcher3.compat.PackageInstallerCompat.PackageInstallInfo;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.model.BgDataModel;
+import com.android.launcher3.model.ItemIndex;
+import com.android.launcher3.model.LoaderTrace;
 import com.android.launcher3.model.MigrateFromRestoreTask;
+import com.android.launcher3.model.SnapshotProtos.Snapshot;
 import com.android.launcher3.model.WidgetsModel;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.CursorIconInfo;
 import com.android.launcher3.util.LongArrayMap;
 import com.android.launcher3.util.ManagedProfileHeuristic;
 import com.android.launcher3.util.Thunk;
+import com.android.launcher3.util.WorkerPool;
 
 import java.lang.ref.WeakReference;
 import java.net.URISyntaxException;
@@ -74,10 +81,18 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.codeaurora.snaplauncher.R;
 
@@ -98,8 +113,14 @@ public class LauncherModel extends BroadcastReceiver
     public static final int LOADER_FLAG_CLEAR_WORKSPACE = 1 << 0;
     public static final int LOADER_FLAG_MIGRATE_SHORTCUTS = 1 << 1;
 
-    private static final int ITEMS_CHUNK = 6; // batch size for the workspace icons
+    private static final int ITEMS_CHUNK = 6; // initial batch size for the workspace icons
+    // Part of a frame which binding the workspace icons may use, the rest is left for the
+    // layout and drawing of the new views.
+    private static final float BIND_FRAME_FRACTION = 0.5f;
+    private static final float DEFAULT_REFRESH_RATE = 60f;
     private static final long INVALID_SCREEN_ID = -1L;
+    // How long package changes are collected before they are applied together.
+    private static final int PACKAGE_UPDATE_WINDOW_MS = 200;
 
     @Thunk final boolean mAppsCanBeOnRemoveableStorage;
     private final boolean mOldContentProviderExists;
@@ -107,6 +128,12 @@ public class LauncherModel extends BroadcastReceiver
     @Thunk final LauncherAppState mApp;
     @Thunk final Object mLock = new Object();
     @Thunk DeferredHandler mHandler = new DeferredHandler();
+
+    // Time available to each step of the workspace bind, and the measured average time taken
+    // to bind a single item. The latter is only accessed on the main thread.
+    @Thunk final long mBindBudgetNanos;
+    @Thunk long mBindNanosPerItem;
+    private final long mFrameIntervalMillis;
     @Thunk LoaderTask mLoaderTask;
     @Thunk boolean mIsLoaderTaskRunning;
     @Thunk boolean mHasLoaderCompletedOnce;
@@ -169,6 +196,14 @@ public class LauncherModel extends BroadcastReceiver
     // sBgWorkspaceScreens is the ordered set of workspace screens.
     static final ArrayList<Long> sBgWorkspaceScreens = new ArrayList<Long>();
 
+    // sBgItemIndex indexes the items in sBgItemsIdMap by package, container and screen. It is
+    // updated together with sBgItemsIdMap.
+    static final ItemIndex sBgItemIndex = new ItemIndex();
+
+    // sBgDataModel is an immutable copy of the collections above, which is published again every
+    // time they change. Readers which don't modify the model should use it instead of sBgLock.
+    private static volatile BgDataModel sBgDataModel = BgDataModel.EMPTY;
+
     // sBgWidgetProviders is the set of widget providers including custom internal widgets
     public static HashMap<ComponentKey, LauncherAppWidgetProviderInfo> sBgWidgetProviders;
 
@@ -224,6 +259,7 @@ public class LauncherModel extends BroadcastReceiver
         public void bindAppsUpdated(ArrayList<AppInfo> apps);
         public void bindShortcutsChanged(ArrayList<ShortcutInfo> updated,
                 ArrayList<ShortcutInfo> removed, UserHandleCompat user);
+        public void bindUnreadNumbersChanged(HashSet<ItemInfo> updated);
         public void bindWidgetsRestored(ArrayList<LauncherAppWidgetInfo> widgets);
         public void bindRestoreItemsChange(HashSet<ItemInfo> updates);
         public void bindComponentsRemoved(ArrayList<String> packageNames,
@@ -236,25 +272,22 @@ public class LauncherModel extends BroadcastReceiver
         public long getOrderInHotseat(int cellX, int cellY);
     }
 
-    private HashMap<ComponentName, UnreadInfo> mUnreadChangedMap =
-            new HashMap<ComponentName, LauncherModel.UnreadInfo>();
-
-    private class UnreadInfo {
-        ComponentName mComponentName;
-        int mUnreadNum;
-
-        public UnreadInfo(ComponentName componentName, int unreadNum) {
-            mComponentName = componentName;
-            mUnreadNum = unreadNum;
-        }
-    }
+    // Components whose unread count changed since the last update, guarded by itself.
+    private final HashSet<ComponentName> mUnreadChanged = new HashSet<ComponentName>();
+    private boolean mUnreadUpdateScheduled;
+    private long mLastUnreadUpdateTime;
 
     private class UnreadNumberChangeTask implements Runnable {
         public void run() {
-            ArrayList<UnreadInfo> unreadInfos = new ArrayList<LauncherModel.UnreadInfo>();
-            synchronized (mUnreadChangedMap) {
-                unreadInfos.addAll(mUnreadChangedMap.values());
-                mUnreadChangedMap.clear();
+            final UserHandleCompat user = UserHandleCompat.myUserHandle();
+            final HashSet<ComponentKey> changed = new HashSet<ComponentKey>();
+            synchronized (mUnreadChanged) {
+                for (ComponentName cn : mUnreadChanged) {
+                    changed.add(new ComponentKey(cn, user));
+                }
+                mUnreadChanged.clear();
+                mUnreadUpdateScheduled = false;
+                mLastUnreadUpdateTime = SystemClock.uptimeMillis();
             }
 
             final Callbacks callbacks = getCallback();
@@ -263,67 +296,68 @@ public class LauncherModel extends BroadcastReceiver
                 return;
             }
 
-            final ArrayList<AppInfo> unreadChangeFinal = new ArrayList<AppInfo>();
-            for (UnreadInfo uInfo : unreadInfos) {
-                AppInfo info = mBgAllAppsList.unreadNumbersChanged(mApp.getContext(),
-                        uInfo.mComponentName, uInfo.mUnreadNum);
-                if (info != null) {
-                    unreadChangeFinal.add(info);
-                }
+            // The counts are drawn over the icons, so only the views showing the changed
+            // components need to be redrawn. Neither the icons nor the model items change.
+            ArrayList<AppInfo> apps = new ArrayList<AppInfo>();
+            mBgAllAppsList.findApplicationInfosLocked(changed, apps);
+            final HashSet<ItemInfo> updated = new HashSet<ItemInfo>(apps);
+            BgDataModel model = getBgDataModel();
+            for (ComponentKey key : changed) {
+                updated.addAll(model.getAppShortcuts(key));
             }
 
-            // update the mainmenu icon
-            if (unreadChangeFinal.isEmpty()) return;
+            if (updated.isEmpty()) return;
             mHandler.post(new Runnable() {
                 public void run() {
                     Callbacks cb = getCallback();
                     if (cb != null && callbacks == cb) {
-                        cb.bindAppsUpdated(unreadChangeFinal);
+                        cb.bindUnreadNumbersChanged(updated);
                     }
                 }
             });
+        }
+    }
 
-            // update the workspace shortcuts icon
-            final UserHandleCompat user = UserHandleCompat.myUserHandle();
-            final ArrayList<ShortcutInfo> updatedShortcuts = new ArrayList<>();
-            synchronized (sBgLock) {
-                for (ItemInfo info : sBgItemsIdMap) {
-                    if (info instanceof ShortcutInfo && user.equals(info.user)
-                            && info.itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
-                        ShortcutInfo si = (ShortcutInfo) info;
-                        ComponentName cn = si.getTargetComponent();
-                        if (cn != null && unreadContains(unreadChangeFinal, cn)) {
-                            si.updateIcon(mIconCache);
-                            updatedShortcuts.add(si);
-                        }
-                    }
-                }
-            }
+    private UnreadNumberChangeTask mUnreadUpdateTask = new UnreadNumberChangeTask();
 
-            if (!updatedShortcuts.isEmpty()) {
-                mHandler.post(new Runnable() {
+    // Package changes waiting to be applied, keyed by user and package. Guarded by itself.
+    private final LinkedHashMap<UserHandleCompat, LinkedHashMap<String, Integer>>
+            mPendingPackageOps = new LinkedHashMap<>();
+    private boolean mPackageUpdateScheduled;
 
-                    public void run() {
-                        Callbacks cb = getCallback();
-                        if (cb != null && callbacks == cb) {
-                            cb.bindShortcutsChanged(updatedShortcuts,
-                                    new ArrayList<ShortcutInfo>(), user);
-                        }
-                    }
-                });
+    private final Runnable mPackageUpdateFlusher = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<PackageUpdatedTask> tasks;
+            synchronized (mPendingPackageOps) {
+                tasks = drainPackageUpdatesLocked();
             }
-        }
-        private boolean unreadContains(ArrayList<AppInfo> unreadList, ComponentName cn) {
-            for (AppInfo info : unreadList) {
-                if (info.componentName.equals(cn)) {
-                    return true;
-                }
+            for (PackageUpdatedTask task : tasks) {
+                task.run();
             }
-            return false;
         }
-    }
+    };
 
-    private UnreadNumberChangeTask mUnreadUpdateTask = new UnreadNumberChangeTask();
+    // The model version last written to the snapshot. Only accessed on the worker thread.
+    private int mSnapshotModelVersion = -1;
+
+    private final Runnable mSnapshotWriter = new Runnable() {
+        @Override
+        public void run() {
+            if (!mWorkspaceLoaded) {
+                return;
+            }
+            BgDataModel model = getBgDataModel();
+            if (model.version == mSnapshotModelVersion) {
+                // Nothing was added, moved or removed since the last write.
+                return;
+            }
+            if (ModelSnapshot.write(mApp.getContext(),
+                    LauncherAppState.getInstance().getInvariantDeviceProfile(), model)) {
+                mSnapshotModelVersion = model.version;
+            }
+        }
+    };
 
     public interface ItemInfoFilter {
         public boolean filterItem(ItemInfo parent, ItemInfo info, ComponentName cn);
@@ -358,14 +392,29 @@ public class LauncherModel extends BroadcastReceiver
 
         mLauncherApps = LauncherAppsCompat.getInstance(context);
         mUserManager = UserManagerCompat.getInstance(context);
+
+        Display display = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE))
+                .getDefaultDisplay();
+        float refreshRate = display.getRefreshRate();
+        if (refreshRate < 1) {
+            refreshRate = DEFAULT_REFRESH_RATE;
+        }
+        mBindBudgetNanos = (long) (BIND_FRAME_FRACTION * TimeUnit.SECONDS.toNanos(1) / refreshRate);
+        mBindNanosPerItem = mBindBudgetNanos / ITEMS_CHUNK;
+        mFrameIntervalMillis = Math.max(1, (long) (1000 / refreshRate));
     }
 
     /** Runs the specified runnable immediately if called from the main thread, otherwise it is
      * posted on the main thread handler. */
     @Thunk void runOnMainThread(Runnable r) {
+        runOnMainThread(r, DeferredHandler.LANE_OFFSCREEN);
+    }
+
+    /** Same as {@link #runOnMainThread(Runnable)}, posting on the given lane of the handler. */
+    @Thunk void runOnMainThread(Runnable r, int lane) {
         if (sWorkerThread.getThreadId() == Process.myTid()) {
             // If we are on the worker thread, post onto the main handler
-            mHandler.post(r);
+            mHandler.post(r, lane);
         } else {
             r.run();
         }
@@ -453,7 +502,8 @@ public class LauncherModel extends BroadcastReceiver
                     final ArrayList<ShortcutInfo> updates = new ArrayList<>();
                     final UserHandleCompat user = UserHandleCompat.myUserHandle();
 
-                    for (ItemInfo info : sBgItemsIdMap) {
+                    for (ItemInfo info : getItemsForPackagesLocked(
+                            Collections.singleton(packageName), user)) {
                         if (info instanceof ShortcutInfo) {
                             ShortcutInfo si = (ShortcutInfo) info;
                             ComponentName cn = si.getTargetComponent();
@@ -552,16 +602,14 @@ public class LauncherModel extends BroadcastReceiver
 
         // Use sBgItemsIdMap as all the items are already loaded.
         assertWorkspaceLoaded();
-        synchronized (sBgLock) {
-            for (ItemInfo info : sBgItemsIdMap) {
-                if (info.container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
-                    ArrayList<ItemInfo> items = screenItems.get(info.screenId);
-                    if (items == null) {
-                        items = new ArrayList<>();
-                        screenItems.put(info.screenId, items);
-                    }
-                    items.add(info);
+        for (ItemInfo info : getBgDataModel().itemsIdMap) {
+            if (info.container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
+                ArrayList<ItemInfo> items = screenItems.get(info.screenId);
+                if (items == null) {
+                    items = new ArrayList<>();
+                    screenItems.put(info.screenId, items);
                 }
+                items.add(info);
             }
         }
 
@@ -715,11 +763,9 @@ public class LauncherModel extends BroadcastReceiver
     void unbindWorkspaceItemsOnMainThread() {
         // Ensure that we don't use the same workspace items data structure on the main thread
         // by making a copy of workspace items first.
-        final ArrayList<ItemInfo> tmpItems = new ArrayList<ItemInfo>();
-        synchronized (sBgLock) {
-            tmpItems.addAll(sBgWorkspaceItems);
-            tmpItems.addAll(sBgAppWidgets);
-        }
+        final BgDataModel model = getBgDataModel();
+        final ArrayList<ItemInfo> tmpItems = new ArrayList<ItemInfo>(model.workspaceItems);
+        tmpItems.addAll(model.appWidgets);
         Runnable r = new Runnable() {
                 @Override
                 public void run() {
@@ -728,7 +774,10 @@ public class LauncherModel extends BroadcastReceiver
                    }
                 }
             };
-        runOnMainThread(r);
+        // This has to run before the items are bound again, but after the callbacks and binds
+        // which are already queued, as they were made for the items being unbound.
+        mHandler.fence();
+        runOnMainThread(r, DeferredHandler.LANE_VISIBLE);
     }
 
     /**
@@ -835,8 +884,14 @@ public class LauncherModel extends BroadcastReceiver
                     ContentValues values = valuesList.get(i);
 
                     ops.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
-                    updateItemArrays(item, itemId, stackTrace);
-
+                }
+                // Publish the model once for the whole batch.
+                synchronized (sBgLock) {
+                    for (int i = 0; i < count; i++) {
+                        ItemInfo item = items.get(i);
+                        updateItemArraysLocked(item, item.id, stackTrace);
+                    }
+                    publishBgDataModelLocked();
                 }
                 try {
                     cr.applyBatch(LauncherProvider.AUTHORITY, ops);
@@ -851,42 +906,121 @@ public class LauncherModel extends BroadcastReceiver
     static void updateItemArrays(ItemInfo item, long itemId, StackTraceElement[] stackTrace) {
         // Lock on mBgLock *after* the db operation
         synchronized (sBgLock) {
-            checkItemInfoLocked(itemId, item, stackTrace);
-
-            if (item.container != LauncherSettings.Favorites.CONTAINER_DESKTOP &&
-                    item.container != LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
-                // Item is in a folder, make sure this folder exists
-                if (!sBgFolders.containsKey(item.container)) {
-                    // An items container is being set to a that of an item which is not in
-                    // the list of Folders.
-                    String msg = "item: " + item + " container being set to: " +
-                            item.container + ", not in the list of folders";
-                    Log.e(TAG, msg);
-                }
-            }
-
-            // Items are added/removed from the corresponding FolderInfo elsewhere, such
-            // as in Workspace.onDrop. Here, we just add/remove them from the list of items
-            // that are on the desktop, as appropriate
-            ItemInfo modelItem = sBgItemsIdMap.get(itemId);
-            if (modelItem != null &&
-                    (modelItem.container == LauncherSettings.Favorites.CONTAINER_DESKTOP ||
-                     modelItem.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT)) {
-                switch (modelItem.itemType) {
-                    case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
-                    case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
-                    case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
-                        if (!sBgWorkspaceItems.contains(modelItem)) {
-                            sBgWorkspaceItems.add(modelItem);
-                        }
-                        break;
-                    default:
-                        break;
-                }
-            } else {
-                sBgWorkspaceItems.remove(modelItem);
+            updateItemArraysLocked(item, itemId, stackTrace);
+            publishBgDataModelLocked();
+        }
+    }
+
+    /**
+     * Updates the sBg* collections for the item without publishing them, so that a batch of items
+     * is published once. Must be called with sBgLock held.
+     */
+    private static void updateItemArraysLocked(ItemInfo item, long itemId,
+            StackTraceElement[] stackTrace) {
+        checkItemInfoLocked(itemId, item, stackTrace);
+
+        if (item.container != LauncherSettings.Favorites.CONTAINER_DESKTOP &&
+                item.container != LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+            // Item is in a folder, make sure this folder exists
+            if (!sBgFolders.containsKey(item.container)) {
+                // An items container is being set to a that of an item which is not in
+                // the list of Folders.
+                String msg = "item: " + item + " container being set to: " +
+                        item.container + ", not in the list of folders";
+                Log.e(TAG, msg);
             }
         }
+
+        // Items are added/removed from the corresponding FolderInfo elsewhere, such
+        // as in Workspace.onDrop. Here, we just add/remove them from the list of items
+        // that are on the desktop, as appropriate
+        ItemInfo modelItem = sBgItemsIdMap.get(itemId);
+        if (modelItem != null &&
+                (modelItem.container == LauncherSettings.Favorites.CONTAINER_DESKTOP ||
+                 modelItem.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT)) {
+            switch (modelItem.itemType) {
+                case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
+                case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
+                case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
+                    if (!sBgWorkspaceItems.contains(modelItem)) {
+                        sBgWorkspaceItems.add(modelItem);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } else {
+            sBgWorkspaceItems.remove(modelItem);
+        }
+        if (modelItem != null) {
+            sBgItemIndex.update(modelItem);
+        }
+    }
+
+    /**
+     * Publishes a new version of the model from the sBg* collections. Must be called with sBgLock
+     * held, after the collections have been changed.
+     */
+    static void publishBgDataModelLocked() {
+        sBgDataModel = new BgDataModel(sBgDataModel.version + 1, sBgItemsIdMap,
+                sBgWorkspaceItems, sBgAppWidgets, sBgFolders, sBgWorkspaceScreens, sBgItemIndex);
+    }
+
+    /**
+     * @return the latest published version of the model. Can be called from any thread.
+     */
+    public static BgDataModel getBgDataModel() {
+        return sBgDataModel;
+    }
+
+    /**
+     * @return the items which launch a component of the given package, are provided by it or use
+     * an icon from it, including the items in folders.
+     */
+    public static ArrayList<ItemInfo> getItemsForPackage(String packageName,
+            UserHandleCompat user) {
+        return getItemsForPackages(sBgDataModel.itemIndex, Collections.singleton(packageName),
+                user);
+    }
+
+    /**
+     * @return the items in the given folder, or directly on the desktop or the hotseat.
+     */
+    public static ArrayList<ItemInfo> getItemsInContainer(long container) {
+        ArrayList<ItemInfo> items = new ArrayList<ItemInfo>();
+        sBgDataModel.itemIndex.getItemsInContainer(container, items);
+        return items;
+    }
+
+    /**
+     * @return the items directly on the given desktop screen.
+     */
+    public static ArrayList<ItemInfo> getItemsOnScreen(long screenId) {
+        ArrayList<ItemInfo> items = new ArrayList<ItemInfo>();
+        sBgDataModel.itemIndex.getItemsOnScreen(screenId, items);
+        return items;
+    }
+
+    /**
+     * Finds the items using any of the packages through {@link #sBgItemIndex}, so that the cost
+     * is proportional to the number of items found. Must be called with sBgLock held.
+     */
+    private static ArrayList<ItemInfo> getItemsForPackagesLocked(Collection<String> packages,
+            UserHandleCompat user) {
+        return getItemsForPackages(sBgItemIndex, packages, user);
+    }
+
+    private static ArrayList<ItemInfo> getItemsForPackages(ItemIndex index,
+            Collection<String> packages, UserHandleCompat user) {
+        ArrayList<ItemInfo> items = new ArrayList<ItemInfo>();
+        for (String packageName : packages) {
+            index.getItemsForPackage(packageName, user, items);
+        }
+        if (packages.size() > 1) {
+            // An item can use two of the packages.
+            return new ArrayList<ItemInfo>(new LinkedHashSet<ItemInfo>(items));
+        }
+        return items;
     }
 
     /**
@@ -1012,17 +1146,15 @@ public class LauncherModel extends BroadcastReceiver
             intentWithoutPkg = intent.toUri(0);
         }
 
-        synchronized (sBgLock) {
-            for (ItemInfo item : sBgItemsIdMap) {
-                if (item instanceof ShortcutInfo) {
-                    ShortcutInfo info = (ShortcutInfo) item;
-                    Intent targetIntent = info.promisedIntent == null
-                            ? info.intent : info.promisedIntent;
-                    if (targetIntent != null && info.user.equals(user)) {
-                        String s = targetIntent.toUri(0);
-                        if (intentWithPkg.equals(s) || intentWithoutPkg.equals(s)) {
-                            return true;
-                        }
+        for (ItemInfo item : getBgDataModel().itemsIdMap) {
+            if (item instanceof ShortcutInfo) {
+                ShortcutInfo info = (ShortcutInfo) item;
+                Intent targetIntent = info.promisedIntent == null
+                        ? info.intent : info.promisedIntent;
+                if (targetIntent != null && info.user.equals(user)) {
+                    String s = targetIntent.toUri(0);
+                    if (intentWithPkg.equals(s) || intentWithoutPkg.equals(s)) {
+                        return true;
                     }
                 }
             }
@@ -1104,6 +1236,7 @@ public class LauncherModel extends BroadcastReceiver
                 synchronized (sBgLock) {
                     checkItemInfoLocked(item.id, item, stackTrace);
                     sBgItemsIdMap.put(item.id, item);
+                    sBgItemIndex.update(item);
                     switch (item.itemType) {
                         case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
                             sBgFolders.put(item.id, (FolderInfo) item);
@@ -1126,6 +1259,7 @@ public class LauncherModel extends BroadcastReceiver
                             sBgAppWidgets.add((LauncherAppWidgetInfo) item);
                             break;
                     }
+                    publishBgDataModelLocked();
                 }
             }
         };
@@ -1149,7 +1283,7 @@ public class LauncherModel extends BroadcastReceiver
                 return cn.getPackageName().equals(pn) && info.user.equals(user);
             }
         };
-        return filterItemInfos(sBgItemsIdMap, filter);
+        return filterItemInfos(getItemsForPackage(pn, user), filter);
     }
 
     /**
@@ -1183,20 +1317,23 @@ public class LauncherModel extends BroadcastReceiver
                 for (ItemInfo item : items) {
                     final Uri uri = LauncherSettings.Favorites.getContentUri(item.id);
                     cr.delete(uri, null, null);
+                }
 
-                    // Lock on mBgLock *after* the db operation
-                    synchronized (sBgLock) {
+                // Lock on mBgLock *after* the db operations, and publish the model once for all
+                // the items.
+                synchronized (sBgLock) {
+                    for (ItemInfo item : items) {
                         switch (item.itemType) {
                             case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
                                 sBgFolders.remove(item.id);
-                                for (ItemInfo info: sBgItemsIdMap) {
-                                    if (info.container == item.id) {
-                                        // We are deleting a folder which still contains items that
-                                        // think they are contained by that folder.
-                                        String msg = "deleting a folder (" + item + ") which still " +
-                                                "contains items (" + info + ")";
-                                        Log.e(TAG, msg);
-                                    }
+                                ArrayList<ItemInfo> contents = new ArrayList<ItemInfo>();
+                                sBgItemIndex.getItemsInContainer(item.id, contents);
+                                for (ItemInfo info : contents) {
+                                    // We are deleting a folder which still contains items that
+                                    // think they are contained by that folder.
+                                    String msg = "deleting a folder (" + item + ") which still " +
+                                            "contains items (" + info + ")";
+                                    Log.e(TAG, msg);
                                 }
                                 sBgWorkspaceItems.remove(item);
                                 break;
@@ -1209,7 +1346,9 @@ public class LauncherModel extends BroadcastReceiver
                                 break;
                         }
                         sBgItemsIdMap.remove(item.id);
+                        sBgItemIndex.remove(item.id);
                     }
+                    publishBgDataModelLocked();
                 }
             }
         };
@@ -1258,6 +1397,7 @@ public class LauncherModel extends BroadcastReceiver
                 synchronized (sBgLock) {
                     sBgWorkspaceScreens.clear();
                     sBgWorkspaceScreens.addAll(screensCopy);
+                    publishBgDataModelLocked();
                 }
             }
         };
@@ -1273,20 +1413,19 @@ public class LauncherModel extends BroadcastReceiver
         Runnable r = new Runnable() {
             public void run() {
                 cr.delete(LauncherSettings.Favorites.getContentUri(info.id), null, null);
-                // Lock on mBgLock *after* the db operation
+                cr.delete(LauncherSettings.Favorites.CONTENT_URI,
+                        LauncherSettings.Favorites.CONTAINER + "=" + info.id, null);
+                // Lock on mBgLock *after* the db operations
                 synchronized (sBgLock) {
                     sBgItemsIdMap.remove(info.id);
+                    sBgItemIndex.remove(info.id);
                     sBgFolders.remove(info.id);
                     sBgWorkspaceItems.remove(info);
-                }
-
-                cr.delete(LauncherSettings.Favorites.CONTENT_URI,
-                        LauncherSettings.Favorites.CONTAINER + "=" + info.id, null);
-                // Lock on mBgLock *after* the db operation
-                synchronized (sBgLock) {
                     for (ItemInfo childInfo : info.contents) {
                         sBgItemsIdMap.remove(childInfo.id);
+                        sBgItemIndex.remove(childInfo.id);
                     }
+                    publishBgDataModelLocked();
                 }
             }
         };
@@ -1387,11 +1526,40 @@ public class LauncherModel extends BroadcastReceiver
 
     public void postUnreadTask(ComponentName componentName, int unreadNum) {
         mUnreadMap.put(componentName, unreadNum);
-        synchronized (mUnreadChangedMap) {
-            mUnreadChangedMap.put(componentName, new UnreadInfo(componentName, unreadNum));
+        synchronized (mUnreadChanged) {
+            mUnreadChanged.add(componentName);
+            scheduleUnreadUpdateLocked();
+        }
+    }
+
+    /**
+     * Sets the unread counts of several apps, which are applied in a single pass on the worker
+     * thread. Must be called on the main thread.
+     */
+    public void postUnreadTask(Map<ComponentName, Integer> unreadNumbers) {
+        mUnreadMap.putAll(unreadNumbers);
+        synchronized (mUnreadChanged) {
+            mUnreadChanged.addAll(unreadNumbers.keySet());
+            scheduleUnreadUpdateLocked();
         }
-        sWorker.removeCallbacks(mUnreadUpdateTask);
-        sWorker.post(mUnreadUpdateTask);
+    }
+
+    private void scheduleUnreadUpdateLocked() {
+        if (!mUnreadUpdateScheduled) {
+            // Apply at most one update per frame, so that a burst of changes is applied together.
+            mUnreadUpdateScheduled = true;
+            long delay = mLastUnreadUpdateTime + mFrameIntervalMillis - SystemClock.uptimeMillis();
+            sWorker.postDelayed(mUnreadUpdateTask, Math.max(0, delay));
+        }
+    }
+
+    /**
+     * Persists the loaded workspace, so that the current page can be bound right away the next
+     * time the process starts. Does nothing if the workspace has not been loaded.
+     */
+    public void writeModelSnapshot() {
+        sWorker.removeCallbacks(mSnapshotWriter);
+        sWorker.post(mSnapshotWriter);
     }
 
     void forceReload() {
@@ -1420,7 +1588,6 @@ public class LauncherModel extends BroadcastReceiver
      * of doing it now.
      */
     public void startLoaderFromBackground() {
-        mIconCache.setAppIconReloaded(true);
         boolean runLoader = false;
         Callbacks callbacks = getCallback();
         if (callbacks != null) {
@@ -1472,6 +1639,8 @@ public class LauncherModel extends BroadcastReceiver
                     mLoaderTask.runBindSynchronousPage(synchronousBindPage);
                 } else {
                     sWorkerThread.setPriority(Thread.NORM_PRIORITY);
+                    // The package changes happened before this load, they can't wait for it.
+                    flushPackageUpdates();
                     sWorker.post(mLoaderTask);
                 }
             }
@@ -1544,6 +1713,11 @@ public class LauncherModel extends BroadcastReceiver
         private boolean mStopped;
         @Thunk boolean mLoadAndBindStepFinished;
         private int mFlags;
+        // Whether the current page was bound from the model snapshot, and has to be replaced
+        // by the loaded items.
+        private boolean mBoundFromSnapshot;
+        // Time spent building the shortcuts of the workspace, across all the pool threads.
+        @Thunk final AtomicLong mIconDecodeNanos = new AtomicLong();
 
         LoaderTask(Context context, int flags) {
             mContext = context;
@@ -1559,19 +1733,80 @@ public class LauncherModel extends BroadcastReceiver
             }
 
             if (!mWorkspaceLoaded) {
+                if (!mHasLoaderCompletedOnce && mFlags == LOADER_FLAG_NONE) {
+                    mBoundFromSnapshot = bindSnapshot();
+                }
+                long loadStart = LoaderTrace.start();
                 loadWorkspace();
+                LoaderTrace.end(LoaderTrace.PHASE_LOAD_WORKSPACE, loadStart);
                 synchronized (LoaderTask.this) {
                     if (mStopped) {
                         return;
                     }
                     mWorkspaceLoaded = true;
                 }
+                // Runs once the loader is done, so it does not delay binding.
+                writeModelSnapshot();
             }
 
             // Bind the workspace
             bindWorkspace(-1);
         }
 
+        /**
+         * Binds the current page from the snapshot written by a previous process, so that it
+         * is shown while the workspace is being loaded. The workspace stays locked until the
+         * loaded items replace it in {@link #bindWorkspace}.
+         *
+         * @return true if the page was bound
+         */
+        private boolean bindSnapshot() {
+            final Callbacks oldCallbacks = mCallbacks.get();
+            if (oldCallbacks == null) {
+                return false;
+            }
+            Snapshot snapshot = ModelSnapshot.read(mContext,
+                    LauncherAppState.getInstance().getInvariantDeviceProfile());
+            if (snapshot == null) {
+                return false;
+            }
+
+            final ArrayList<Long> orderedScreenIds = new ArrayList<Long>();
+            for (long screenId : snapshot.screens) {
+                orderedScreenIds.add(screenId);
+            }
+            int currentScreen = oldCallbacks.getCurrentWorkspaceScreen();
+            if (currentScreen < 0 || currentScreen >= orderedScreenIds.size()) {
+                return false;
+            }
+
+            final ArrayList<ItemInfo> items = new ArrayList<ItemInfo>();
+            final LongArrayMap<FolderInfo> folders = new LongArrayMap<>();
+            ModelSnapshot.inflateScreen(mContext, snapshot, orderedScreenIds.get(currentScreen),
+                    items, folders);
+            sortWorkspaceItemsSpatially(items);
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "binding " + items.size() + " items from the model snapshot");
+            }
+
+            mHandler.fence();
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                    if (callbacks != null) {
+                        callbacks.startBinding();
+                        callbacks.bindScreens(orderedScreenIds);
+                        callbacks.bindItems(items, 0, items.size(), false);
+                        if (!folders.isEmpty()) {
+                            callbacks.bindFolders(folders);
+                        }
+                    }
+                }
+            }, DeferredHandler.LANE_VISIBLE);
+            return true;
+        }
+
         private void waitForIdle() {
             // Wait until the either we're stopped or the other threads are done.
             // This way we don't start loading all apps until the workspace has settled
@@ -1723,6 +1958,7 @@ public class LauncherModel extends BroadcastReceiver
                 }
                 mIsLoaderTaskRunning = true;
             }
+            LoaderTrace.startRun();
             // Optimize for end-user experience: if the Launcher is up and // running with the
             // All Apps interface in the foreground, load All Apps first. Otherwise, load the
             // workspace first (default).
@@ -1742,7 +1978,9 @@ public class LauncherModel extends BroadcastReceiver
             }
 
             if (LauncherAppState.isSingleShow()) {
-                    verifyApplications();
+                long verifyStart = LoaderTrace.start();
+                verifyApplications();
+                LoaderTrace.end(LoaderTrace.PHASE_VERIFY_APPLICATIONS, verifyStart);
             }
 
             // Clear out this reference, otherwise we end up holding it until all of the
@@ -1856,14 +2094,24 @@ public class LauncherModel extends BroadcastReceiver
         /** Clears all the sBg data structures */
         private void clearSBgDataStructures() {
             synchronized (sBgLock) {
-                sBgWorkspaceItems.clear();
-                sBgAppWidgets.clear();
-                sBgFolders.clear();
-                sBgItemsIdMap.clear();
-                sBgWorkspaceScreens.clear();
+                clearSBgDataStructuresLocked();
+                publishBgDataModelLocked();
             }
         }
 
+        /**
+         * Clears all the sBg data structures without publishing the change, so that readers keep
+         * using the previous model until the new one is complete.
+         */
+        private void clearSBgDataStructuresLocked() {
+            sBgWorkspaceItems.clear();
+            sBgAppWidgets.clear();
+            sBgFolders.clear();
+            sBgItemsIdMap.clear();
+            sBgItemIndex.clear();
+            sBgWorkspaceScreens.clear();
+        }
+
         private void loadWorkspace() {
             final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
 
@@ -1881,6 +2129,7 @@ public class LauncherModel extends BroadcastReceiver
             int countY = profile.numRows;
 
             if (MigrateFromRestoreTask.ENABLED && MigrateFromRestoreTask.shouldRunTask(mContext)) {
+                long migrationStart = LoaderTrace.start();
                 long migrationStartTime = System.currentTimeMillis();
                 Log.v(TAG, "Starting workspace migration after restore");
                 try {
@@ -1897,6 +2146,7 @@ public class LauncherModel extends BroadcastReceiver
                 }
                 Log.v(TAG, "Workspace migration completed in "
                         + (System.currentTimeMillis() - migrationStartTime));
+                LoaderTrace.end(LoaderTrace.PHASE_RESTORE_MIGRATION, migrationStart);
             }
 
             if ((mFlags & LOADER_FLAG_CLEAR_WORKSPACE) != 0) {
@@ -1911,505 +2161,500 @@ public class LauncherModel extends BroadcastReceiver
             } else {
                 // Make sure the default workspace is loaded
                 Launcher.addDumpLog(TAG, "loadWorkspace: loading default favorites", false);
+                long favoritesStart = LoaderTrace.start();
                 LauncherAppState.getLauncherProvider().loadDefaultFavoritesIfNecessary();
+                LoaderTrace.end(LoaderTrace.PHASE_DEFAULT_FAVORITES, favoritesStart);
             }
 
-            synchronized (sBgLock) {
-                clearSBgDataStructures();
-                final HashMap<String, Integer> installingPkgs = PackageInstallerCompat
-                        .getInstance(mContext).updateAndGetActiveSessionCache();
-                sBgWorkspaceScreens.addAll(loadWorkspaceScreensDb(mContext));
+            // The workspace is loaded in three stages:
+            //   1. The cursor is read on this thread. Rows are validated against the package
+            //      manager and turned into PendingItems.
+            //   2. ShortcutInfos, whose title and icon need the icon cache or a bitmap decode,
+            //      are built on the WorkerPool while the cursor scan continues.
+            //   3. Once the cursor is exhausted and the pool is done, all the items are
+            //      published to the sBg* structures in cursor order, which is the only part done
+            //      under sBgLock.
+            final HashMap<String, Integer> installingPkgs = PackageInstallerCompat
+                    .getInstance(mContext).updateAndGetActiveSessionCache();
+            final ArrayList<Long> workspaceScreens = loadWorkspaceScreensDb(mContext);
+
+            final ArrayList<Long> itemsToRemove = new ArrayList<Long>();
+            final ArrayList<Long> restoredRows = new ArrayList<Long>();
+            final ArrayList<PendingItem> pendingItems = new ArrayList<PendingItem>();
+            final LongArrayMap<FolderInfo> folders = new LongArrayMap<>();
+            final ExecutorService iconPool = WorkerPool.get();
+            final Uri contentUri = LauncherSettings.Favorites.CONTENT_URI;
+            if (DEBUG_LOADERS) Log.d(TAG, "loading model from " + contentUri);
+            final long scanStart = LoaderTrace.start();
+            mIconDecodeNanos.set(0);
+            int shortcutCount = 0;
+            final Cursor c = contentResolver.query(contentUri, null, null, null, null);
+
+            try {
+                final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
+                final int intentIndex = c.getColumnIndexOrThrow
+                        (LauncherSettings.Favorites.INTENT);
+                final int titleIndex = c.getColumnIndexOrThrow
+                        (LauncherSettings.Favorites.TITLE);
+                final int containerIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.CONTAINER);
+                final int itemTypeIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.ITEM_TYPE);
+                final int appWidgetIdIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.APPWIDGET_ID);
+                final int appWidgetProviderIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.APPWIDGET_PROVIDER);
+                final int screenIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.SCREEN);
+                final int cellXIndex = c.getColumnIndexOrThrow
+                        (LauncherSettings.Favorites.CELLX);
+                final int cellYIndex = c.getColumnIndexOrThrow
+                        (LauncherSettings.Favorites.CELLY);
+                final int spanXIndex = c.getColumnIndexOrThrow
+                        (LauncherSettings.Favorites.SPANX);
+                final int spanYIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.SPANY);
+                final int rankIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.RANK);
+                final int restoredIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.RESTORED);
+                final int profileIdIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.PROFILE_ID);
+                final int optionsIndex = c.getColumnIndexOrThrow(
+                        LauncherSettings.Favorites.OPTIONS);
+                final CursorIconInfo cursorIconInfo = new CursorIconInfo(c);
+
+                final LongSparseArray<UserHandleCompat> allUsers = new LongSparseArray<>();
+                for (UserHandleCompat user : mUserManager.getUserProfiles()) {
+                    allUsers.put(mUserManager.getSerialNumberForUser(user), user);
+                }
 
-                final ArrayList<Long> itemsToRemove = new ArrayList<Long>();
-                final ArrayList<Long> restoredRows = new ArrayList<Long>();
-                final Uri contentUri = LauncherSettings.Favorites.CONTENT_URI;
-                if (DEBUG_LOADERS) Log.d(TAG, "loading model from " + contentUri);
-                final Cursor c = contentResolver.query(contentUri, null, null, null, null);
+                String intentDescription;
+                LauncherAppWidgetInfo appWidgetInfo;
+                int container;
+                long id;
+                long serialNumber;
+                Intent intent;
+                UserHandleCompat user;
 
-                // +1 for the hotseat (it can be larger than the workspace)
-                // Load workspace in reverse order to ensure that latest items are loaded first (and
-                // before any earlier duplicates)
-                final LongArrayMap<ItemInfo[][]> occupied = new LongArrayMap<>();
+                while (!mStopped && c.moveToNext()) {
+                    try {
+                        int itemType = c.getInt(itemTypeIndex);
+                        boolean restored = 0 != c.getInt(restoredIndex);
+                        boolean allowMissingTarget = false;
+                        container = c.getInt(containerIndex);
 
-                try {
-                    final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
-                    final int intentIndex = c.getColumnIndexOrThrow
-                            (LauncherSettings.Favorites.INTENT);
-                    final int titleIndex = c.getColumnIndexOrThrow
-                            (LauncherSettings.Favorites.TITLE);
-                    final int containerIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.CONTAINER);
-                    final int itemTypeIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.ITEM_TYPE);
-                    final int appWidgetIdIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.APPWIDGET_ID);
-                    final int appWidgetProviderIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.APPWIDGET_PROVIDER);
-                    final int screenIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.SCREEN);
-                    final int cellXIndex = c.getColumnIndexOrThrow
-                            (LauncherSettings.Favorites.CELLX);
-                    final int cellYIndex = c.getColumnIndexOrThrow
-                            (LauncherSettings.Favorites.CELLY);
-                    final int spanXIndex = c.getColumnIndexOrThrow
-                            (LauncherSettings.Favorites.SPANX);
-                    final int spanYIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.SPANY);
-                    final int rankIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.RANK);
-                    final int restoredIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.RESTORED);
-                    final int profileIdIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.PROFILE_ID);
-                    final int optionsIndex = c.getColumnIndexOrThrow(
-                            LauncherSettings.Favorites.OPTIONS);
-                    final CursorIconInfo cursorIconInfo = new CursorIconInfo(c);
-
-                    final LongSparseArray<UserHandleCompat> allUsers = new LongSparseArray<>();
-                    for (UserHandleCompat user : mUserManager.getUserProfiles()) {
-                        allUsers.put(mUserManager.getSerialNumberForUser(user), user);
-                    }
-
-                    ShortcutInfo info;
-                    String intentDescription;
-                    LauncherAppWidgetInfo appWidgetInfo;
-                    int container;
-                    long id;
-                    long serialNumber;
-                    Intent intent;
-                    UserHandleCompat user;
-
-                    while (!mStopped && c.moveToNext()) {
-                        try {
-                            int itemType = c.getInt(itemTypeIndex);
-                            boolean restored = 0 != c.getInt(restoredIndex);
-                            boolean allowMissingTarget = false;
-                            container = c.getInt(containerIndex);
-
-                            switch (itemType) {
-                            case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
-                            case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
-                                id = c.getLong(idIndex);
-                                intentDescription = c.getString(intentIndex);
-                                serialNumber = c.getInt(profileIdIndex);
-                                user = allUsers.get(serialNumber);
-                                int promiseType = c.getInt(restoredIndex);
-                                int disabledState = 0;
-                                boolean itemReplaced = false;
-                                if (user == null) {
-                                    // User has been deleted remove the item.
-                                    itemsToRemove.add(id);
-                                    continue;
-                                }
-                                try {
-                                    intent = Intent.parseUri(intentDescription, 0);
-                                    ComponentName cn = intent.getComponent();
-                                    if (cn != null && cn.getPackageName() != null) {
-                                        boolean validPkg = launcherApps.isPackageEnabledForProfile(
-                                                cn.getPackageName(), user);
-                                        boolean validComponent = validPkg &&
-                                                launcherApps.isActivityEnabledForProfile(cn, user);
-
-                                        if (validComponent) {
-                                            if (restored) {
-                                                // no special handling necessary for this item
-                                                restoredRows.add(id);
-                                                restored = false;
-                                            }
-                                        } else if (validPkg) {
-                                            intent = null;
-                                            if ((promiseType & ShortcutInfo.FLAG_AUTOINTALL_ICON) != 0) {
-                                                // We allow auto install apps to have their intent
-                                                // updated after an install.
-                                                intent = manager.getLaunchIntentForPackage(
-                                                        cn.getPackageName());
-                                                if (intent != null) {
-                                                    ContentValues values = new ContentValues();
-                                                    values.put(LauncherSettings.Favorites.INTENT,
-                                                            intent.toUri(0));
-                                                    updateItem(id, values);
-                                                }
+                        switch (itemType) {
+                        case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
+                        case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
+                            id = c.getLong(idIndex);
+                            intentDescription = c.getString(intentIndex);
+                            serialNumber = c.getInt(profileIdIndex);
+                            user = allUsers.get(serialNumber);
+                            int promiseType = c.getInt(restoredIndex);
+                            int disabledState = 0;
+                            boolean itemReplaced = false;
+                            if (user == null) {
+                                // User has been deleted remove the item.
+                                itemsToRemove.add(id);
+                                continue;
+                            }
+                            try {
+                                intent = Intent.parseUri(intentDescription, 0);
+                                ComponentName cn = intent.getComponent();
+                                if (cn != null && cn.getPackageName() != null) {
+                                    boolean validPkg = launcherApps.isPackageEnabledForProfile(
+                                            cn.getPackageName(), user);
+                                    boolean validComponent = validPkg &&
+                                            launcherApps.isActivityEnabledForProfile(cn, user);
+
+                                    if (validComponent) {
+                                        if (restored) {
+                                            // no special handling necessary for this item
+                                            restoredRows.add(id);
+                                            restored = false;
+                                        }
+                                    } else if (validPkg) {
+                                        intent = null;
+                                        if ((promiseType & ShortcutInfo.FLAG_AUTOINTALL_ICON) != 0) {
+                                            // We allow auto install apps to have their intent
+                                            // updated after an install.
+                                            intent = manager.getLaunchIntentForPackage(
+                                                    cn.getPackageName());
+                                            if (intent != null) {
+                                                ContentValues values = new ContentValues();
+                                                values.put(LauncherSettings.Favorites.INTENT,
+                                                        intent.toUri(0));
+                                                updateItem(id, values);
                                             }
+                                        }
 
-                                            if (intent == null) {
-                                                // The app is installed but the component is no
-                                                // longer available.
-                                                Launcher.addDumpLog(TAG,
-                                                        "Invalid component removed: " + cn, true);
-                                                itemsToRemove.add(id);
-                                                continue;
-                                            } else {
-                                                // no special handling necessary for this item
-                                                restoredRows.add(id);
-                                                restored = false;
-                                            }
-                                        } else if (restored) {
-                                            // Package is not yet available but might be
-                                            // installed later.
+                                        if (intent == null) {
+                                            // The app is installed but the component is no
+                                            // longer available.
                                             Launcher.addDumpLog(TAG,
-                                                    "package not yet restored: " + cn, true);
+                                                    "Invalid component removed: " + cn, true);
+                                            itemsToRemove.add(id);
+                                            continue;
+                                        } else {
+                                            // no special handling necessary for this item
+                                            restoredRows.add(id);
+                                            restored = false;
+                                        }
+                                    } else if (restored) {
+                                        // Package is not yet available but might be
+                                        // installed later.
+                                        Launcher.addDumpLog(TAG,
+                                                "package not yet restored: " + cn, true);
 
-                                            if ((promiseType & ShortcutInfo.FLAG_RESTORE_STARTED) != 0) {
-                                                // Restore has started once.
-                                            } else if (installingPkgs.containsKey(cn.getPackageName())) {
-                                                // App restore has started. Update the flag
-                                                promiseType |= ShortcutInfo.FLAG_RESTORE_STARTED;
-                                                ContentValues values = new ContentValues();
-                                                values.put(LauncherSettings.Favorites.RESTORED,
-                                                        promiseType);
+                                        if ((promiseType & ShortcutInfo.FLAG_RESTORE_STARTED) != 0) {
+                                            // Restore has started once.
+                                        } else if (installingPkgs.containsKey(cn.getPackageName())) {
+                                            // App restore has started. Update the flag
+                                            promiseType |= ShortcutInfo.FLAG_RESTORE_STARTED;
+                                            ContentValues values = new ContentValues();
+                                            values.put(LauncherSettings.Favorites.RESTORED,
+                                                    promiseType);
+                                            updateItem(id, values);
+                                        } else if ((promiseType & ShortcutInfo.FLAG_RESTORED_APP_TYPE) != 0) {
+                                            // This is a common app. Try to replace this.
+                                            int appType = CommonAppTypeParser.decodeItemTypeFromFlag(promiseType);
+                                            CommonAppTypeParser parser = new CommonAppTypeParser(id, appType, context);
+                                            if (parser.findDefaultApp()) {
+                                                // Default app found. Replace it.
+                                                intent = parser.parsedIntent;
+                                                cn = intent.getComponent();
+                                                ContentValues values = parser.parsedValues;
+                                                values.put(LauncherSettings.Favorites.RESTORED, 0);
                                                 updateItem(id, values);
-                                            } else if ((promiseType & ShortcutInfo.FLAG_RESTORED_APP_TYPE) != 0) {
-                                                // This is a common app. Try to replace this.
-                                                int appType = CommonAppTypeParser.decodeItemTypeFromFlag(promiseType);
-                                                CommonAppTypeParser parser = new CommonAppTypeParser(id, appType, context);
-                                                if (parser.findDefaultApp()) {
-                                                    // Default app found. Replace it.
-                                                    intent = parser.parsedIntent;
-                                                    cn = intent.getComponent();
-                                                    ContentValues values = parser.parsedValues;
-                                                    values.put(LauncherSettings.Favorites.RESTORED, 0);
-                                                    updateItem(id, values);
-                                                    restored = false;
-                                                    itemReplaced = true;
-
-                                                } else if (REMOVE_UNRESTORED_ICONS) {
-                                                    Launcher.addDumpLog(TAG,
-                                                            "Unrestored package removed: " + cn, true);
-                                                    itemsToRemove.add(id);
-                                                    continue;
-                                                }
+                                                restored = false;
+                                                itemReplaced = true;
+
                                             } else if (REMOVE_UNRESTORED_ICONS) {
                                                 Launcher.addDumpLog(TAG,
                                                         "Unrestored package removed: " + cn, true);
                                                 itemsToRemove.add(id);
                                                 continue;
                                             }
-                                        } else if (launcherApps.isAppEnabled(
-                                                manager, cn.getPackageName(),
-                                                PackageManager.GET_UNINSTALLED_PACKAGES)) {
-                                            // Package is present but not available.
-                                            allowMissingTarget = true;
-                                            disabledState = ShortcutInfo.FLAG_DISABLED_NOT_AVAILABLE;
-                                        } else if (!isSdCardReady) {
-                                            // SdCard is not ready yet. Package might get available,
-                                            // once it is ready.
-                                            Launcher.addDumpLog(TAG, "Invalid package: " + cn
-                                                    + " (check again later)", true);
-                                            HashSet<String> pkgs = sPendingPackages.get(user);
-                                            if (pkgs == null) {
-                                                pkgs = new HashSet<String>();
-                                                sPendingPackages.put(user, pkgs);
-                                            }
-                                            pkgs.add(cn.getPackageName());
-                                            allowMissingTarget = true;
-                                            // Add the icon on the workspace anyway.
-
-                                        } else {
-                                            // Do not wait for external media load anymore.
-                                            // Log the invalid package, and remove it
+                                        } else if (REMOVE_UNRESTORED_ICONS) {
                                             Launcher.addDumpLog(TAG,
-                                                    "Invalid package removed: " + cn, true);
+                                                    "Unrestored package removed: " + cn, true);
                                             itemsToRemove.add(id);
                                             continue;
                                         }
-                                    } else if (cn == null) {
-                                        // For shortcuts with no component, keep them as they are
-                                        restoredRows.add(id);
-                                        restored = false;
-                                    }
-                                } catch (URISyntaxException e) {
-                                    Launcher.addDumpLog(TAG,
-                                            "Invalid uri: " + intentDescription, true);
-                                    itemsToRemove.add(id);
-                                    continue;
-                                }
-
-                                boolean useLowResIcon = container >= 0 &&
-                                        c.getInt(rankIndex) >= FolderIcon.NUM_ITEMS_IN_PREVIEW;
+                                    } else if (launcherApps.isAppEnabled(
+                                            manager, cn.getPackageName(),
+                                            PackageManager.GET_UNINSTALLED_PACKAGES)) {
+                                        // Package is present but not available.
+                                        allowMissingTarget = true;
+                                        disabledState = ShortcutInfo.FLAG_DISABLED_NOT_AVAILABLE;
+                                    } else if (!isSdCardReady) {
+                                        // SdCard is not ready yet. Package might get available,
+                                        // once it is ready.
+                                        Launcher.addDumpLog(TAG, "Invalid package: " + cn
+                                                + " (check again later)", true);
+                                        HashSet<String> pkgs = sPendingPackages.get(user);
+                                        if (pkgs == null) {
+                                            pkgs = new HashSet<String>();
+                                            sPendingPackages.put(user, pkgs);
+                                        }
+                                        pkgs.add(cn.getPackageName());
+                                        allowMissingTarget = true;
+                                        // Add the icon on the workspace anyway.
 
-                                if (itemReplaced) {
-                                    if (user.equals(UserHandleCompat.myUserHandle())) {
-                                        info = getAppShortcutInfo(manager, intent, user, context, null,
-                                                cursorIconInfo.iconIndex, titleIndex,
-                                                false, useLowResIcon);
                                     } else {
-                                        // Don't replace items for other profiles.
-                                        itemsToRemove.add(id);
-                                        continue;
-                                    }
-                                } else if (restored) {
-                                    if (user.equals(UserHandleCompat.myUserHandle())) {
+                                        // Do not wait for external media load anymore.
+                                        // Log the invalid package, and remove it
                                         Launcher.addDumpLog(TAG,
-                                                "constructing info for partially restored package",
-                                                true);
-                                        info = getRestoredItemInfo(c, titleIndex, intent,
-                                                promiseType, itemType, cursorIconInfo, context);
-                                        intent = getRestoredItemIntent(c, context, intent);
-                                    } else {
-                                        // Don't restore items for other profiles.
+                                                "Invalid package removed: " + cn, true);
                                         itemsToRemove.add(id);
                                         continue;
                                     }
-                                } else if (itemType ==
-                                        LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
-                                    info = getAppShortcutInfo(manager, intent, user, context, c,
-                                            cursorIconInfo.iconIndex, titleIndex,
-                                            allowMissingTarget, useLowResIcon);
-                                } else {
-                                    info = getShortcutInfo(c, context, titleIndex, cursorIconInfo);
-                                    CharSequence title = Utilities.getShortcutTitle(manager, intent);
-                                    if(title != null ){
-                                        info.title = title;
-                                    }
-                                    // App shortcuts that used to be automatically added to Launcher
-                                    // didn't always have the correct intent flags set, so do that
-                                    // here
-                                    if (intent.getAction() != null &&
-                                        intent.getCategories() != null &&
-                                        intent.getAction().equals(Intent.ACTION_MAIN) &&
-                                        intent.getCategories().contains(Intent.CATEGORY_LAUNCHER)) {
-                                        intent.addFlags(
-                                            Intent.FLAG_ACTIVITY_NEW_TASK |
-                                            Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
-                                    }
+                                } else if (cn == null) {
+                                    // For shortcuts with no component, keep them as they are
+                                    restoredRows.add(id);
+                                    restored = false;
                                 }
+                            } catch (URISyntaxException e) {
+                                Launcher.addDumpLog(TAG,
+                                        "Invalid uri: " + intentDescription, true);
+                                itemsToRemove.add(id);
+                                continue;
+                            }
 
-                                if (info != null) {
-                                    info.id = id;
-                                    info.intent = intent;
-                                    info.container = container;
-                                    info.screenId = c.getInt(screenIndex);
-                                    info.cellX = c.getInt(cellXIndex);
-                                    info.cellY = c.getInt(cellYIndex);
-                                    info.rank = c.getInt(rankIndex);
-                                    info.spanX = 1;
-                                    info.spanY = 1;
-                                    info.intent.putExtra(ItemInfo.EXTRA_PROFILE, serialNumber);
-                                    if (info.promisedIntent != null) {
-                                        info.promisedIntent.putExtra(ItemInfo.EXTRA_PROFILE, serialNumber);
-                                    }
-                                    info.isDisabled = disabledState;
-                                    if (isSafeMode && !Utilities.isSystemApp(context, intent)) {
-                                        info.isDisabled |= ShortcutInfo.FLAG_DISABLED_SAFEMODE;
-                                    }
+                            if ((itemReplaced || restored)
+                                    && !user.equals(UserHandleCompat.myUserHandle())) {
+                                // Don't replace or restore items for other profiles.
+                                itemsToRemove.add(id);
+                                continue;
+                            }
+                            if (!itemReplaced && !restored && intent.getComponent() == null
+                                    && itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
+                                Log.d(TAG, "Missing component found in getShortcutInfo: null");
+                                continue;
+                            }
 
-                                    // check & update map of what's occupied
-                                    if (!checkItemPlacement(occupied, info, sBgWorkspaceScreens)) {
-                                        itemsToRemove.add(id);
-                                        break;
-                                    }
+                            ShortcutRowLoader loader = new ShortcutRowLoader();
+                            loader.id = id;
+                            loader.itemType = itemType;
+                            loader.container = container;
+                            loader.screenId = c.getInt(screenIndex);
+                            loader.cellX = c.getInt(cellXIndex);
+                            loader.cellY = c.getInt(cellYIndex);
+                            loader.rank = c.getInt(rankIndex);
+                            loader.serialNumber = serialNumber;
+                            loader.user = user;
+                            loader.intent = intent;
+                            loader.promiseType = promiseType;
+                            loader.disabledState = disabledState;
+                            loader.restored = restored;
+                            loader.itemReplaced = itemReplaced;
+                            loader.allowMissingTarget = allowMissingTarget;
+                            loader.useLowResIcon = container >= 0 &&
+                                    loader.rank >= FolderIcon.NUM_ITEMS_IN_PREVIEW;
+                            loader.title = c.getString(titleIndex);
+                            loader.iconRow = cursorIconInfo.readRow(c);
+                            loader.context = context;
+                            loader.isSafeMode = isSafeMode;
+                            loader.installingPkgs = installingPkgs;
+                            pendingItems.add(new PendingItem(iconPool.submit(loader)));
+                            shortcutCount++;
+                            break;
 
-                                    if (restored) {
-                                        ComponentName cn = info.getTargetComponent();
-                                        if (cn != null) {
-                                            Integer progress = installingPkgs.get(cn.getPackageName());
-                                            if (progress != null) {
-                                                info.setInstallProgress(progress);
-                                            } else {
-                                                info.status &= ~ShortcutInfo.FLAG_INSTALL_SESSION_ACTIVE;
-                                            }
-                                        }
-                                    }
+                        case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
+                            id = c.getLong(idIndex);
+                            FolderInfo folderInfo = findOrMakeFolder(folders, id);
+
+                            // Do not trim the folder label, as is was set by the user.
+                            folderInfo.title = c.getString(titleIndex);
+                            folderInfo.id = id;
+                            folderInfo.container = container;
+                            folderInfo.screenId = c.getInt(screenIndex);
+                            folderInfo.cellX = c.getInt(cellXIndex);
+                            folderInfo.cellY = c.getInt(cellYIndex);
+                            folderInfo.spanX = 1;
+                            folderInfo.spanY = 1;
+                            folderInfo.options = c.getInt(optionsIndex);
+
+                            PendingItem pendingFolder = new PendingItem(folderInfo);
+                            // no special handling required for restored folders
+                            pendingFolder.restored = restored;
+                            pendingItems.add(pendingFolder);
+                            break;
+
+                        case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
+                        case LauncherSettings.Favorites.ITEM_TYPE_CUSTOM_APPWIDGET:
+                            // Read all Launcher-specific widget details
+                            boolean customWidget = itemType ==
+                                LauncherSettings.Favorites.ITEM_TYPE_CUSTOM_APPWIDGET;
+
+                            int appWidgetId = c.getInt(appWidgetIdIndex);
+                            serialNumber = c.getLong(profileIdIndex);
+                            String savedProvider = c.getString(appWidgetProviderIndex);
+                            id = c.getLong(idIndex);
+                            user = allUsers.get(serialNumber);
+                            if (user == null) {
+                                itemsToRemove.add(id);
+                                continue;
+                            }
 
-                                    switch (container) {
-                                    case LauncherSettings.Favorites.CONTAINER_DESKTOP:
-                                    case LauncherSettings.Favorites.CONTAINER_HOTSEAT:
-                                        sBgWorkspaceItems.add(info);
-                                        break;
-                                    default:
-                                        // Item is in a user folder
-                                        FolderInfo folderInfo =
-                                                findOrMakeFolder(sBgFolders, container);
-                                        folderInfo.add(info);
-                                        break;
+                            final ComponentName component =
+                                    ComponentName.unflattenFromString(savedProvider);
+
+                            final int restoreStatus = c.getInt(restoredIndex);
+                            final boolean isIdValid = (restoreStatus &
+                                    LauncherAppWidgetInfo.FLAG_ID_NOT_VALID) == 0;
+                            final boolean wasProviderReady = (restoreStatus &
+                                    LauncherAppWidgetInfo.FLAG_PROVIDER_NOT_READY) == 0;
+
+                            final LauncherAppWidgetProviderInfo provider =
+                                    LauncherModel.getProviderInfo(context,
+                                            ComponentName.unflattenFromString(savedProvider),
+                                            user);
+
+                            final boolean isProviderReady = isValidProvider(provider);
+                            if (!isSafeMode && !customWidget &&
+                                    wasProviderReady && !isProviderReady) {
+                                String log = "Deleting widget that isn't installed anymore: "
+                                        + "id=" + id + " appWidgetId=" + appWidgetId;
+
+                                Log.e(TAG, log);
+                                Launcher.addDumpLog(TAG, log, false);
+                                itemsToRemove.add(id);
+                            } else {
+                                if (isProviderReady) {
+                                    appWidgetInfo = new LauncherAppWidgetInfo(appWidgetId,
+                                            provider.provider);
+
+                                    // The provider is available. So the widget is either
+                                    // available or not available. We do not need to track
+                                    // any future restore updates.
+                                    int status = restoreStatus &
+                                            ~LauncherAppWidgetInfo.FLAG_RESTORE_STARTED;
+                                    if (!wasProviderReady) {
+                                        // If provider was not previously ready, update the
+                                        // status and UI flag.
+
+                                        // Id would be valid only if the widget restore broadcast was received.
+                                        if (isIdValid) {
+                                            status = LauncherAppWidgetInfo.FLAG_UI_NOT_READY;
+                                        } else {
+                                            status &= ~LauncherAppWidgetInfo
+                                                    .FLAG_PROVIDER_NOT_READY;
+                                        }
                                     }
-                                    sBgItemsIdMap.put(info.id, info);
+                                    appWidgetInfo.restoreStatus = status;
                                 } else {
-                                    throw new RuntimeException("Unexpected null ShortcutInfo");
-                                }
-                                break;
-
-                            case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
-                                id = c.getLong(idIndex);
-                                FolderInfo folderInfo = findOrMakeFolder(sBgFolders, id);
-
-                                // Do not trim the folder label, as is was set by the user.
-                                folderInfo.title = c.getString(titleIndex);
-                                folderInfo.id = id;
-                                folderInfo.container = container;
-                                folderInfo.screenId = c.getInt(screenIndex);
-                                folderInfo.cellX = c.getInt(cellXIndex);
-                                folderInfo.cellY = c.getInt(cellYIndex);
-                                folderInfo.spanX = 1;
-                                folderInfo.spanY = 1;
-                                folderInfo.options = c.getInt(optionsIndex);
-
-                                // check & update map of what's occupied
-                                if (!checkItemPlacement(occupied, folderInfo, sBgWorkspaceScreens)) {
-                                    itemsToRemove.add(id);
-                                    break;
-                                }
+                                    Log.v(TAG, "Widget restore pending id=" + id
+                                            + " appWidgetId=" + appWidgetId
+                                            + " status =" + restoreStatus);
+                                    appWidgetInfo = new LauncherAppWidgetInfo(appWidgetId,
+                                            component);
+                                    appWidgetInfo.restoreStatus = restoreStatus;
+                                    Integer installProgress = installingPkgs.get(component.getPackageName());
+
+                                    if ((restoreStatus & LauncherAppWidgetInfo.FLAG_RESTORE_STARTED) != 0) {
+                                        // Restore has started once.
+                                    } else if (installProgress != null) {
+                                        // App restore has started. Update the flag
+                                        appWidgetInfo.restoreStatus |=
+                                                LauncherAppWidgetInfo.FLAG_RESTORE_STARTED;
+                                    } else if (REMOVE_UNRESTORED_ICONS && !isSafeMode) {
+                                        Launcher.addDumpLog(TAG,
+                                                "Unrestored widget removed: " + component, true);
+                                        itemsToRemove.add(id);
+                                        continue;
+                                    }
 
-                                switch (container) {
-                                    case LauncherSettings.Favorites.CONTAINER_DESKTOP:
-                                    case LauncherSettings.Favorites.CONTAINER_HOTSEAT:
-                                        sBgWorkspaceItems.add(folderInfo);
-                                        break;
+                                    appWidgetInfo.installProgress =
+                                            installProgress == null ? 0 : installProgress;
                                 }
 
-                                if (restored) {
-                                    // no special handling required for restored folders
-                                    restoredRows.add(id);
-                                }
-
-                                sBgItemsIdMap.put(folderInfo.id, folderInfo);
-                                sBgFolders.put(folderInfo.id, folderInfo);
-                                break;
-
-                            case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
-                            case LauncherSettings.Favorites.ITEM_TYPE_CUSTOM_APPWIDGET:
-                                // Read all Launcher-specific widget details
-                                boolean customWidget = itemType ==
-                                    LauncherSettings.Favorites.ITEM_TYPE_CUSTOM_APPWIDGET;
-
-                                int appWidgetId = c.getInt(appWidgetIdIndex);
-                                serialNumber = c.getLong(profileIdIndex);
-                                String savedProvider = c.getString(appWidgetProviderIndex);
-                                id = c.getLong(idIndex);
-                                user = allUsers.get(serialNumber);
-                                if (user == null) {
+                                appWidgetInfo.id = id;
+                                appWidgetInfo.screenId = c.getInt(screenIndex);
+                                appWidgetInfo.cellX = c.getInt(cellXIndex);
+                                appWidgetInfo.cellY = c.getInt(cellYIndex);
+                                appWidgetInfo.spanX = c.getInt(spanXIndex);
+                                appWidgetInfo.spanY = c.getInt(spanYIndex);
+                                appWidgetInfo.user = user;
+
+                                if (container != LauncherSettings.Favorites.CONTAINER_DESKTOP &&
+                                    container != LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+                                    Log.e(TAG, "Widget found where container != " +
+                                            "CONTAINER_DESKTOP nor CONTAINER_HOTSEAT - ignoring!");
                                     itemsToRemove.add(id);
                                     continue;
                                 }
 
-                                final ComponentName component =
-                                        ComponentName.unflattenFromString(savedProvider);
-
-                                final int restoreStatus = c.getInt(restoredIndex);
-                                final boolean isIdValid = (restoreStatus &
-                                        LauncherAppWidgetInfo.FLAG_ID_NOT_VALID) == 0;
-                                final boolean wasProviderReady = (restoreStatus &
-                                        LauncherAppWidgetInfo.FLAG_PROVIDER_NOT_READY) == 0;
+                                appWidgetInfo.container = container;
+                                PendingItem pendingWidget = new PendingItem(appWidgetInfo);
+
+                                if (!customWidget) {
+                                    String providerName =
+                                            appWidgetInfo.providerName.flattenToString();
+                                    if (!providerName.equals(savedProvider) ||
+                                            (appWidgetInfo.restoreStatus != restoreStatus)) {
+                                        ContentValues values = new ContentValues();
+                                        values.put(
+                                                LauncherSettings.Favorites.APPWIDGET_PROVIDER,
+                                                providerName);
+                                        values.put(LauncherSettings.Favorites.RESTORED,
+                                                appWidgetInfo.restoreStatus);
+                                        pendingWidget.update = values;
+                                    }
+                                }
+                                pendingItems.add(pendingWidget);
+                            }
+                            break;
+                        }
+                    } catch (Exception e) {
+                        Launcher.addDumpLog(TAG, "Desktop items loading interrupted", e, true);
+                    }
+                }
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+            LoaderTrace.end(LoaderTrace.PHASE_CURSOR_SCAN, scanStart, pendingItems.size());
 
-                                final LauncherAppWidgetProviderInfo provider =
-                                        LauncherModel.getProviderInfo(context,
-                                                ComponentName.unflattenFromString(savedProvider),
-                                                user);
+            // Break early if we've stopped loading
+            if (mStopped) {
+                for (PendingItem pending : pendingItems) {
+                    pending.cancel();
+                }
+                clearSBgDataStructures();
+                return;
+            }
 
-                                final boolean isProviderReady = isValidProvider(provider);
-                                if (!isSafeMode && !customWidget &&
-                                        wasProviderReady && !isProviderReady) {
-                                    String log = "Deleting widget that isn't installed anymore: "
-                                            + "id=" + id + " appWidgetId=" + appWidgetId;
+            // Wait for the shortcuts built on the pool before taking sBgLock, so that the other
+            // model users are not blocked while the last icons load.
+            final ItemInfo[] items = new ItemInfo[pendingItems.size()];
+            for (int i = 0; i < items.length; i++) {
+                try {
+                    items[i] = pendingItems.get(i).get();
+                } catch (Exception e) {
+                    Launcher.addDumpLog(TAG, "Desktop items loading interrupted", e, true);
+                }
+            }
 
-                                    Log.e(TAG, log);
-                                    Launcher.addDumpLog(TAG, log, false);
-                                    itemsToRemove.add(id);
-                                } else {
-                                    if (isProviderReady) {
-                                        appWidgetInfo = new LauncherAppWidgetInfo(appWidgetId,
-                                                provider.provider);
-
-                                        // The provider is available. So the widget is either
-                                        // available or not available. We do not need to track
-                                        // any future restore updates.
-                                        int status = restoreStatus &
-                                                ~LauncherAppWidgetInfo.FLAG_RESTORE_STARTED;
-                                        if (!wasProviderReady) {
-                                            // If provider was not previously ready, update the
-                                            // status and UI flag.
-
-                                            // Id would be valid only if the widget restore broadcast was received.
-                                            if (isIdValid) {
-                                                status = LauncherAppWidgetInfo.FLAG_UI_NOT_READY;
-                                            } else {
-                                                status &= ~LauncherAppWidgetInfo
-                                                        .FLAG_PROVIDER_NOT_READY;
-                                            }
-                                        }
-                                        appWidgetInfo.restoreStatus = status;
-                                    } else {
-                                        Log.v(TAG, "Widget restore pending id=" + id
-                                                + " appWidgetId=" + appWidgetId
-                                                + " status =" + restoreStatus);
-                                        appWidgetInfo = new LauncherAppWidgetInfo(appWidgetId,
-                                                component);
-                                        appWidgetInfo.restoreStatus = restoreStatus;
-                                        Integer installProgress = installingPkgs.get(component.getPackageName());
-
-                                        if ((restoreStatus & LauncherAppWidgetInfo.FLAG_RESTORE_STARTED) != 0) {
-                                            // Restore has started once.
-                                        } else if (installProgress != null) {
-                                            // App restore has started. Update the flag
-                                            appWidgetInfo.restoreStatus |=
-                                                    LauncherAppWidgetInfo.FLAG_RESTORE_STARTED;
-                                        } else if (REMOVE_UNRESTORED_ICONS && !isSafeMode) {
-                                            Launcher.addDumpLog(TAG,
-                                                    "Unrestored widget removed: " + component, true);
-                                            itemsToRemove.add(id);
-                                            continue;
-                                        }
+            synchronized (sBgLock) {
+                clearSBgDataStructuresLocked();
+                sBgWorkspaceScreens.addAll(workspaceScreens);
 
-                                        appWidgetInfo.installProgress =
-                                                installProgress == null ? 0 : installProgress;
-                                    }
+                // +1 for the hotseat (it can be larger than the workspace)
+                // Load workspace in reverse order to ensure that latest items are loaded first (and
+                // before any earlier duplicates)
+                final LongArrayMap<ItemInfo[][]> occupied = new LongArrayMap<>();
 
-                                    appWidgetInfo.id = id;
-                                    appWidgetInfo.screenId = c.getInt(screenIndex);
-                                    appWidgetInfo.cellX = c.getInt(cellXIndex);
-                                    appWidgetInfo.cellY = c.getInt(cellYIndex);
-                                    appWidgetInfo.spanX = c.getInt(spanXIndex);
-                                    appWidgetInfo.spanY = c.getInt(spanYIndex);
-                                    appWidgetInfo.user = user;
-
-                                    if (container != LauncherSettings.Favorites.CONTAINER_DESKTOP &&
-                                        container != LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
-                                        Log.e(TAG, "Widget found where container != " +
-                                                "CONTAINER_DESKTOP nor CONTAINER_HOTSEAT - ignoring!");
-                                        itemsToRemove.add(id);
-                                        continue;
-                                    }
+                for (int i = 0; i < items.length; i++) {
+                    final PendingItem pending = pendingItems.get(i);
+                    final ItemInfo item = items[i];
+                    if (item == null) {
+                        continue;
+                    }
 
-                                    appWidgetInfo.container = container;
-                                    // check & update map of what's occupied
-                                    if (!checkItemPlacement(occupied, appWidgetInfo, sBgWorkspaceScreens)) {
-                                        itemsToRemove.add(id);
-                                        break;
-                                    }
+                    // check & update map of what's occupied
+                    if (!checkItemPlacement(occupied, item, sBgWorkspaceScreens)) {
+                        itemsToRemove.add(item.id);
+                        continue;
+                    }
+                    if (pending.update != null) {
+                        updateItem(item.id, pending.update);
+                    }
+                    if (pending.restored) {
+                        restoredRows.add(item.id);
+                    }
 
-                                    if (!customWidget) {
-                                        String providerName =
-                                                appWidgetInfo.providerName.flattenToString();
-                                        if (!providerName.equals(savedProvider) ||
-                                                (appWidgetInfo.restoreStatus != restoreStatus)) {
-                                            ContentValues values = new ContentValues();
-                                            values.put(
-                                                    LauncherSettings.Favorites.APPWIDGET_PROVIDER,
-                                                    providerName);
-                                            values.put(LauncherSettings.Favorites.RESTORED,
-                                                    appWidgetInfo.restoreStatus);
-                                            updateItem(id, values);
-                                        }
-                                    }
-                                    sBgItemsIdMap.put(appWidgetInfo.id, appWidgetInfo);
-                                    sBgAppWidgets.add(appWidgetInfo);
-                                }
-                                break;
+                    if (item instanceof LauncherAppWidgetInfo) {
+                        sBgAppWidgets.add((LauncherAppWidgetInfo) item);
+                    } else {
+                        switch ((int) item.container) {
+                        case LauncherSettings.Favorites.CONTAINER_DESKTOP:
+                        case LauncherSettings.Favorites.CONTAINER_HOTSEAT:
+                            sBgWorkspaceItems.add(item);
+                            break;
+                        default:
+                            if (item instanceof ShortcutInfo) {
+                                // Item is in a user folder
+                                findOrMakeFolder(folders, item.container)
+                                        .add((ShortcutInfo) item);
                             }
-                        } catch (Exception e) {
-                            Launcher.addDumpLog(TAG, "Desktop items loading interrupted", e, true);
+                            break;
                         }
                     }
-                } finally {
-                    if (c != null) {
-                        c.close();
-                    }
+                    sBgItemsIdMap.put(item.id, item);
+                    sBgItemIndex.update(item);
                 }
 
-                // Break early if we've stopped loading
-                if (mStopped) {
-                    clearSBgDataStructures();
-                    return;
+                // The decode time is summed over the pool threads
+                LoaderTrace.add(LoaderTrace.PHASE_ICON_DECODE, mIconDecodeNanos.get(),
+                        shortcutCount);
+
+                // Folders which could not be placed are still tracked, to match the items
+                // pointing to them.
+                for (int i = 0; i < folders.size(); i++) {
+                    sBgFolders.put(folders.keyAt(i), folders.valueAt(i));
                 }
 
                 if (itemsToRemove.size() > 0) {
@@ -2428,6 +2673,7 @@ public class LauncherModel extends BroadcastReceiver
                         sBgWorkspaceItems.remove(sBgFolders.get(folderId));
                         sBgFolders.remove(folderId);
                         sBgItemsIdMap.remove(folderId);
+                        sBgItemIndex.remove(folderId);
                     }
                 }
 
@@ -2445,6 +2691,7 @@ public class LauncherModel extends BroadcastReceiver
                         }
                     }
                 }
+                publishBgDataModelLocked();
 
                 if (restoredRows.size() > 0) {
                     // Update restored items that no longer require special handling
@@ -2489,6 +2736,151 @@ public class LauncherModel extends BroadcastReceiver
             }
         }
 
+        /**
+         * A favorites row which has been read from the cursor, but not yet added to the model.
+         */
+        private class PendingItem {
+            private final ItemInfo mInfo;
+            private final Future<ShortcutInfo> mShortcut;
+
+            // Update to apply to the row if the item is kept.
+            ContentValues update;
+            // Whether the row should be marked as no longer restored if the item is kept.
+            boolean restored;
+
+            PendingItem(ItemInfo info) {
+                mInfo = info;
+                mShortcut = null;
+            }
+
+            PendingItem(Future<ShortcutInfo> shortcut) {
+                mInfo = null;
+                mShortcut = shortcut;
+            }
+
+            /** Returns the item, waiting for it to be built if necessary. */
+            ItemInfo get() throws InterruptedException, ExecutionException {
+                return mShortcut != null ? mShortcut.get() : mInfo;
+            }
+
+            void cancel() {
+                if (mShortcut != null) {
+                    // Not interrupted: that would close the channels the row loader reads and
+                    // writes the icons with.
+                    mShortcut.cancel(false);
+                }
+            }
+        }
+
+        /**
+         * Builds the {@link ShortcutInfo} for a favorites row which has already been validated
+         * by the cursor scan. This only resolves the activity, title and icon and does not touch
+         * the sBg* structures, so it can run on the {@link WorkerPool}.
+         */
+        private class ShortcutRowLoader implements Callable<ShortcutInfo> {
+            long id;
+            int itemType;
+            int container;
+            long screenId;
+            int cellX;
+            int cellY;
+            int rank;
+            long serialNumber;
+            UserHandleCompat user;
+            Intent intent;
+            int promiseType;
+            int disabledState;
+            boolean restored;
+            boolean itemReplaced;
+            boolean allowMissingTarget;
+            boolean useLowResIcon;
+            String title;
+            CursorIconInfo.IconRow iconRow;
+            Context context;
+            boolean isSafeMode;
+            HashMap<String, Integer> installingPkgs;
+
+            @Override
+            public ShortcutInfo call() {
+                long start = System.nanoTime();
+                try {
+                    return load();
+                } finally {
+                    mIconDecodeNanos.addAndGet(System.nanoTime() - start);
+                }
+            }
+
+            private ShortcutInfo load() {
+                ShortcutInfo info;
+                if (itemReplaced) {
+                    info = getAppShortcutInfo(intent, user, context, null, null,
+                            false, useLowResIcon);
+                } else if (restored) {
+                    Launcher.addDumpLog(TAG,
+                            "constructing info for partially restored package", true);
+                    info = getRestoredItemInfo(title, intent, promiseType, itemType, iconRow,
+                            context);
+                    intent = getRestoredItemIntent(context, intent);
+                } else if (itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
+                    info = getAppShortcutInfo(intent, user, context, iconRow.data, title,
+                            allowMissingTarget, useLowResIcon);
+                } else {
+                    info = getShortcutInfo(title, iconRow, context);
+                    CharSequence shortcutTitle = Utilities.getShortcutTitle(
+                            context.getPackageManager(), intent);
+                    if (shortcutTitle != null) {
+                        info.title = shortcutTitle;
+                    }
+                    // App shortcuts that used to be automatically added to Launcher
+                    // didn't always have the correct intent flags set, so do that
+                    // here
+                    if (intent.getAction() != null &&
+                        intent.getCategories() != null &&
+                        intent.getAction().equals(Intent.ACTION_MAIN) &&
+                        intent.getCategories().contains(Intent.CATEGORY_LAUNCHER)) {
+                        intent.addFlags(
+                            Intent.FLAG_ACTIVITY_NEW_TASK |
+                            Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
+                    }
+                }
+
+                if (info == null) {
+                    throw new RuntimeException("Unexpected null ShortcutInfo");
+                }
+
+                info.id = id;
+                info.intent = intent;
+                info.container = container;
+                info.screenId = screenId;
+                info.cellX = cellX;
+                info.cellY = cellY;
+                info.rank = rank;
+                info.spanX = 1;
+                info.spanY = 1;
+                info.intent.putExtra(ItemInfo.EXTRA_PROFILE, serialNumber);
+                if (info.promisedIntent != null) {
+                    info.promisedIntent.putExtra(ItemInfo.EXTRA_PROFILE, serialNumber);
+                }
+                info.isDisabled = disabledState;
+                if (isSafeMode && !Utilities.isSystemApp(context, intent)) {
+                    info.isDisabled |= ShortcutInfo.FLAG_DISABLED_SAFEMODE;
+                }
+
+                if (restored) {
+                    ComponentName cn = info.getTargetComponent();
+                    if (cn != null) {
+                        Integer progress = installingPkgs.get(cn.getPackageName());
+                        if (progress != null) {
+                            info.setInstallProgress(progress);
+                        } else {
+                            info.status &= ~ShortcutInfo.FLAG_INSTALL_SESSION_ACTIVE;
+                        }
+                    }
+                }
+                return info;
+            }
+        }
+
         /**
          * Partially updates the item without any notification. Must be called on the worker thread.
          */
@@ -2609,8 +3001,83 @@ public class LauncherModel extends BroadcastReceiver
             });
         }
 
+        /**
+         * Stable sort of the desktop items by the distance of their page to the given page.
+         */
+        private void sortByPageDistance(ArrayList<? extends ItemInfo> items,
+                final ArrayList<Long> orderedScreenIds, final int currentScreen) {
+            if (currentScreen < 0) {
+                return;
+            }
+            Collections.sort(items, new Comparator<ItemInfo>() {
+                @Override
+                public int compare(ItemInfo lhs, ItemInfo rhs) {
+                    return getPageDistance(lhs) - getPageDistance(rhs);
+                }
+
+                private int getPageDistance(ItemInfo info) {
+                    int page = orderedScreenIds.indexOf(info.screenId);
+                    return page < 0 ? Integer.MAX_VALUE / 2 : Math.abs(page - currentScreen);
+                }
+            });
+        }
+
+        /**
+         * Binds a list of workspace items on the main thread. Each step binds as many items as
+         * are expected to fit in the frame budget, based on the time the previous items took.
+         * It then queues itself at the front of {@link #mHandler}, so that the next frame can be
+         * drawn before the following step, while keeping its place in the bind order.
+         */
+        private class ItemsBinder implements Runnable {
+            private final Callbacks mOldCallbacks;
+            private final ArrayList<ItemInfo> mItems;
+            private final boolean mYieldToFrames;
+            private final int mLane;
+            private int mNext = 0;
+
+            ItemsBinder(Callbacks oldCallbacks, ArrayList<ItemInfo> items, boolean yieldToFrames,
+                    int lane) {
+                mOldCallbacks = oldCallbacks;
+                mItems = items;
+                mYieldToFrames = yieldToFrames;
+                mLane = lane;
+            }
+
+            @Override
+            public void run() {
+                Callbacks callbacks = tryGetCallbacks(mOldCallbacks);
+                if (callbacks == null) {
+                    return;
+                }
+
+                final int count = mItems.size();
+                final long stepStart = LoaderTrace.start();
+                final int stepFirst = mNext;
+                final long deadline = stepStart + mBindBudgetNanos;
+                while (mNext < count) {
+                    long remaining = deadline - System.nanoTime();
+                    if (mYieldToFrames && remaining <= 0) {
+                        LoaderTrace.end(LoaderTrace.PHASE_BIND_CHUNK, stepStart, mNext - stepFirst);
+                        mHandler.postAtFrontOfQueue(this, mLane);
+                        return;
+                    }
+                    long chunkSize = mYieldToFrames
+                            ? Math.max(1, remaining / mBindNanosPerItem) : count - mNext;
+                    int end = (int) Math.min(count, mNext + chunkSize);
+
+                    long start = System.nanoTime();
+                    callbacks.bindItems(mItems, mNext, end, false);
+                    long nanosPerItem = (System.nanoTime() - start) / (end - mNext);
+                    // Moving average, so that a single slow item doesn't stall the bind
+                    mBindNanosPerItem = Math.max(1, (3 * mBindNanosPerItem + nanosPerItem) / 4);
+                    mNext = end;
+                }
+                LoaderTrace.end(LoaderTrace.PHASE_BIND_CHUNK, stepStart, mNext - stepFirst);
+            }
+        }
+
         private void bindWorkspaceScreens(final Callbacks oldCallbacks,
-                final ArrayList<Long> orderedScreens) {
+                final ArrayList<Long> orderedScreens, ArrayList<Runnable> deferredBindRunnables) {
             final Runnable r = new Runnable() {
                 @Override
                 public void run() {
@@ -2620,38 +3087,40 @@ public class LauncherModel extends BroadcastReceiver
                     }
                 }
             };
-            runOnMainThread(r);
+            if (deferredBindRunnables != null) {
+                deferredBindRunnables.add(r);
+            } else {
+                runOnMainThread(r, DeferredHandler.LANE_VISIBLE);
+            }
         }
 
+        /**
+         * Binds the given items, folders and widgets in this order.
+         *
+         * @param deferredBindRunnables if not null, the bind runnables are added to this list
+         *          instead of being posted on the main thread.
+         * @param yieldToFrames whether the items can be bound over several frames. This requires
+         *          the bind runnables to be run by {@link #mHandler}.
+         * @param lane the {@link DeferredHandler} lane the bind runnables are run on.
+         */
         private void bindWorkspaceItems(final Callbacks oldCallbacks,
                 final ArrayList<ItemInfo> workspaceItems,
                 final ArrayList<LauncherAppWidgetInfo> appWidgets,
                 final LongArrayMap<FolderInfo> folders,
-                ArrayList<Runnable> deferredBindRunnables) {
+                ArrayList<Runnable> deferredBindRunnables, boolean yieldToFrames, int lane) {
 
             final boolean postOnMainThread = (deferredBindRunnables != null);
 
             // Bind the workspace items
-            int N = workspaceItems.size();
-            for (int i = 0; i < N; i += ITEMS_CHUNK) {
-                final int start = i;
-                final int chunkSize = (i+ITEMS_CHUNK <= N) ? ITEMS_CHUNK : (N-i);
-                final Runnable r = new Runnable() {
-                    @Override
-                    public void run() {
-                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                        if (callbacks != null) {
-                            callbacks.bindItems(workspaceItems, start, start+chunkSize,
-                                    false);
-                        }
-                    }
-                };
+            if (!workspaceItems.isEmpty()) {
+                final Runnable r = new ItemsBinder(oldCallbacks, workspaceItems, yieldToFrames,
+                        lane);
                 if (postOnMainThread) {
                     synchronized (deferredBindRunnables) {
                         deferredBindRunnables.add(r);
                     }
                 } else {
-                    runOnMainThread(r);
+                    runOnMainThread(r, lane);
                 }
             }
 
@@ -2670,12 +3139,12 @@ public class LauncherModel extends BroadcastReceiver
                         deferredBindRunnables.add(r);
                     }
                 } else {
-                    runOnMainThread(r);
+                    runOnMainThread(r, lane);
                 }
             }
 
             // Bind the widgets, one at a time
-            N = appWidgets.size();
+            int N = appWidgets.size();
             for (int i = 0; i < N; i++) {
                 final LauncherAppWidgetInfo widget = appWidgets.get(i);
                 final Runnable r = new Runnable() {
@@ -2689,7 +3158,7 @@ public class LauncherModel extends BroadcastReceiver
                 if (postOnMainThread) {
                     deferredBindRunnables.add(r);
                 } else {
-                    runOnMainThread(r);
+                    runOnMainThread(r, lane);
                 }
             }
         }
@@ -2716,17 +3185,13 @@ public class LauncherModel extends BroadcastReceiver
                     new ArrayList<LauncherAppWidgetInfo>();
             ArrayList<Long> orderedScreenIds = new ArrayList<Long>();
 
-            final LongArrayMap<FolderInfo> folders;
-            final LongArrayMap<ItemInfo> itemsIdMap;
+            final BgDataModel model = getBgDataModel();
+            workspaceItems.addAll(model.workspaceItems);
+            appWidgets.addAll(model.appWidgets);
+            orderedScreenIds.addAll(model.workspaceScreens);
 
-            synchronized (sBgLock) {
-                workspaceItems.addAll(sBgWorkspaceItems);
-                appWidgets.addAll(sBgAppWidgets);
-                orderedScreenIds.addAll(sBgWorkspaceScreens);
-
-                folders = sBgFolders.clone();
-                itemsIdMap = sBgItemsIdMap.clone();
-            }
+            final LongArrayMap<FolderInfo> folders = model.folders.clone();
+            final LongArrayMap<ItemInfo> itemsIdMap = model.itemsIdMap;
 
             final boolean isLoadingSynchronously =
                     synchronizeBindPage != PagedView.INVALID_RESTORE_PAGE;
@@ -2762,6 +3227,15 @@ public class LauncherModel extends BroadcastReceiver
                     otherFolders);
             sortWorkspaceItemsSpatially(currentWorkspaceItems);
             sortWorkspaceItemsSpatially(otherWorkspaceItems);
+            // Bind the pages next to the current one first, as they are the next ones to be shown.
+            sortByPageDistance(otherWorkspaceItems, orderedScreenIds, currentScreen);
+            sortByPageDistance(otherAppWidgets, orderedScreenIds, currentScreen);
+
+            // If the current page was bound from the snapshot, replace it in a single message,
+            // so that the workspace is never drawn empty in between.
+            final ArrayList<Runnable> firstPageRunnables =
+                    mBoundFromSnapshot ? new ArrayList<Runnable>() : null;
+            mBoundFromSnapshot = false;
 
             // Tell the workspace that we're about to start binding items
             r = new Runnable() {
@@ -2772,13 +3246,29 @@ public class LauncherModel extends BroadcastReceiver
                     }
                 }
             };
-            runOnMainThread(r);
+            if (firstPageRunnables != null) {
+                firstPageRunnables.add(r);
+            } else {
+                runOnMainThread(r, DeferredHandler.LANE_VISIBLE);
+            }
 
-            bindWorkspaceScreens(oldCallbacks, orderedScreenIds);
+            bindWorkspaceScreens(oldCallbacks, orderedScreenIds, firstPageRunnables);
 
             // Load items on the current page
             bindWorkspaceItems(oldCallbacks, currentWorkspaceItems, currentAppWidgets,
-                    currentFolders, null);
+                    currentFolders, firstPageRunnables,
+                    !isLoadingSynchronously && firstPageRunnables == null,
+                    DeferredHandler.LANE_VISIBLE);
+            if (firstPageRunnables != null) {
+                runOnMainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Runnable r : firstPageRunnables) {
+                            r.run();
+                        }
+                    }
+                }, DeferredHandler.LANE_VISIBLE);
+            }
             if (isLoadingSynchronously) {
                 r = new Runnable() {
                     public void run() {
@@ -2788,7 +3278,7 @@ public class LauncherModel extends BroadcastReceiver
                         }
                     }
                 };
-                runOnMainThread(r);
+                runOnMainThread(r, DeferredHandler.LANE_VISIBLE);
             }
 
             // Load all the remaining pages (if we are loading synchronously, we want to defer this
@@ -2797,14 +3287,17 @@ public class LauncherModel extends BroadcastReceiver
                 mDeferredBindRunnables.clear();
             }
             bindWorkspaceItems(oldCallbacks, otherWorkspaceItems, otherAppWidgets, otherFolders,
-                    (isLoadingSynchronously ? mDeferredBindRunnables : null));
+                    (isLoadingSynchronously ? mDeferredBindRunnables : null), true,
+                    DeferredHandler.LANE_OFFSCREEN);
 
             // Tell the workspace that we're done binding items
             r = new Runnable() {
                 public void run() {
                     Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                     if (callbacks != null) {
+                        long finishStart = LoaderTrace.start();
                         callbacks.finishBindingItems();
+                        LoaderTrace.end(LoaderTrace.PHASE_FINISH_BINDING, finishStart);
                     }
 
                     mIsLoadingAndBindingWorkspace = false;
@@ -2841,13 +3334,17 @@ public class LauncherModel extends BroadcastReceiver
                 Log.d(TAG, "loadAndBindAllApps mAllAppsLoaded=" + mAllAppsLoaded);
             }
             if (!mAllAppsLoaded) {
+                long loadStart = LoaderTrace.start();
                 loadAllApps();
+                LoaderTrace.end(LoaderTrace.PHASE_LOAD_ALL_APPS, loadStart);
                 synchronized (LoaderTask.this) {
                     if (mStopped) {
                         return;
                     }
                 }
+                long updateStart = LoaderTrace.start();
                 updateIconCache();
+                LoaderTrace.end(LoaderTrace.PHASE_UPDATE_ICON_CACHE, updateStart);
                 synchronized (LoaderTask.this) {
                     if (mStopped) {
                         return;
@@ -2862,18 +3359,16 @@ public class LauncherModel extends BroadcastReceiver
         private void updateIconCache() {
             // Ignore packages which have a promise icon.
             HashSet<String> packagesToIgnore = new HashSet<>();
-            synchronized (sBgLock) {
-                for (ItemInfo info : sBgItemsIdMap) {
-                    if (info instanceof ShortcutInfo) {
-                        ShortcutInfo si = (ShortcutInfo) info;
-                        if (si.isPromise() && si.getTargetComponent() != null) {
-                            packagesToIgnore.add(si.getTargetComponent().getPackageName());
-                        }
-                    } else if (info instanceof LauncherAppWidgetInfo) {
-                        LauncherAppWidgetInfo lawi = (LauncherAppWidgetInfo) info;
-                        if (lawi.hasRestoreFlag(LauncherAppWidgetInfo.FLAG_PROVIDER_NOT_READY)) {
-                            packagesToIgnore.add(lawi.providerName.getPackageName());
-                        }
+            for (ItemInfo info : getBgDataModel().itemsIdMap) {
+                if (info instanceof ShortcutInfo) {
+                    ShortcutInfo si = (ShortcutInfo) info;
+                    if (si.isPromise() && si.getTargetComponent() != null) {
+                        packagesToIgnore.add(si.getTargetComponent().getPackageName());
+                    }
+                } else if (info instanceof LauncherAppWidgetInfo) {
+                    LauncherAppWidgetInfo lawi = (LauncherAppWidgetInfo) info;
+                    if (lawi.hasRestoreFlag(LauncherAppWidgetInfo.FLAG_PROVIDER_NOT_READY)) {
+                        packagesToIgnore.add(lawi.providerName.getPackageName());
                     }
                 }
             }
@@ -3009,12 +3504,12 @@ public class LauncherModel extends BroadcastReceiver
         }
 
         public void dumpState() {
-            synchronized (sBgLock) {
-                Log.d(TAG, "mLoaderTask.mContext=" + mContext);
-                Log.d(TAG, "mLoaderTask.mStopped=" + mStopped);
-                Log.d(TAG, "mLoaderTask.mLoadAndBindStepFinished=" + mLoadAndBindStepFinished);
-                Log.d(TAG, "mItems size=" + sBgWorkspaceItems.size());
-            }
+            BgDataModel model = getBgDataModel();
+            Log.d(TAG, "mLoaderTask.mContext=" + mContext);
+            Log.d(TAG, "mLoaderTask.mStopped=" + mStopped);
+            Log.d(TAG, "mLoaderTask.mLoadAndBindStepFinished=" + mLoadAndBindStepFinished);
+            Log.d(TAG, "mItems size=" + model.workspaceItems.size()
+                    + " model version=" + model.version);
         }
     }
 
@@ -3029,7 +3524,7 @@ public class LauncherModel extends BroadcastReceiver
         // If any package icon has changed (app was updated while launcher was dead),
         // update the corresponding shortcuts.
         synchronized (sBgLock) {
-            for (ItemInfo info : sBgItemsIdMap) {
+            for (ItemInfo info : getItemsForPackagesLocked(updatedPackages, user)) {
                 if (info instanceof ShortcutInfo && user.equals(info.user)
                         && info.itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
                     ShortcutInfo si = (ShortcutInfo) info;
@@ -3041,7 +3536,10 @@ public class LauncherModel extends BroadcastReceiver
                 }
             }
             mBgAllAppsList.updateIconsAndLabels(updatedPackages, user, updatedApps);
-            mIconCache.setAppIconReloaded(false);
+            if (!updatedShortcuts.isEmpty()) {
+                // The shortcuts changed in place, a new version lets the snapshot pick them up.
+                publishBgDataModelLocked();
+            }
         }
 
         if (!updatedShortcuts.isEmpty()) {
@@ -3074,8 +3572,86 @@ public class LauncherModel extends BroadcastReceiver
         loadAndBindWidgetsAndShortcuts(callbacks, false);
     }
 
+    /**
+     * Queues the package change. Changes which arrive within {@link #PACKAGE_UPDATE_WINDOW_MS}
+     * of each other are merged per package and user, and applied together with a single bind,
+     * so that a burst of package updates doesn't rebind the launcher for every package. Starting
+     * the loader applies the queued changes first.
+     */
     void enqueuePackageUpdated(PackageUpdatedTask task) {
-        sWorker.post(task);
+        synchronized (mPendingPackageOps) {
+            LinkedHashMap<String, Integer> ops = mPendingPackageOps.get(task.mUser);
+            if (ops == null) {
+                ops = new LinkedHashMap<String, Integer>();
+                mPendingPackageOps.put(task.mUser, ops);
+            }
+            for (String pkg : task.mPackages) {
+                Integer pending = ops.get(pkg);
+                if (pending == null || pending == task.mOp) {
+                    ops.put(pkg, task.mOp);
+                } else if (pending == PackageUpdatedTask.OP_ADD
+                        && task.mOp == PackageUpdatedTask.OP_UPDATE) {
+                    // The add reads the latest state of the package anyway.
+                } else {
+                    // The changes can't be merged, queue everything before this one as is.
+                    postPackageUpdatesLocked();
+                    ops = new LinkedHashMap<String, Integer>();
+                    mPendingPackageOps.put(task.mUser, ops);
+                    ops.put(pkg, task.mOp);
+                }
+            }
+            if (!mPackageUpdateScheduled) {
+                mPackageUpdateScheduled = true;
+                sWorker.postDelayed(mPackageUpdateFlusher, PACKAGE_UPDATE_WINDOW_MS);
+            }
+        }
+    }
+
+    /**
+     * Posts the queued changes on the worker thread now, instead of at the end of the window, so
+     * that they are applied before anything posted on it afterwards.
+     */
+    private void flushPackageUpdates() {
+        synchronized (mPendingPackageOps) {
+            if (mPackageUpdateScheduled) {
+                postPackageUpdatesLocked();
+            }
+        }
+    }
+
+    private void postPackageUpdatesLocked() {
+        sWorker.removeCallbacks(mPackageUpdateFlusher);
+        for (PackageUpdatedTask t : drainPackageUpdatesLocked()) {
+            sWorker.post(t);
+        }
+    }
+
+    /**
+     * Combines the queued changes into one task for each operation and user.
+     */
+    private ArrayList<PackageUpdatedTask> drainPackageUpdatesLocked() {
+        ArrayList<PackageUpdatedTask> tasks = new ArrayList<PackageUpdatedTask>();
+        for (Entry<UserHandleCompat, LinkedHashMap<String, Integer>> entry
+                : mPendingPackageOps.entrySet()) {
+            LinkedHashMap<Integer, ArrayList<String>> packagesByOp =
+                    new LinkedHashMap<Integer, ArrayList<String>>();
+            for (Entry<String, Integer> op : entry.getValue().entrySet()) {
+                ArrayList<String> packages = packagesByOp.get(op.getValue());
+                if (packages == null) {
+                    packages = new ArrayList<String>();
+                    packagesByOp.put(op.getValue(), packages);
+                }
+                packages.add(op.getKey());
+            }
+            for (Entry<Integer, ArrayList<String>> op : packagesByOp.entrySet()) {
+                ArrayList<String> packages = op.getValue();
+                tasks.add(new PackageUpdatedTask(op.getKey(),
+                        packages.toArray(new String[packages.size()]), entry.getKey()));
+            }
+        }
+        mPendingPackageOps.clear();
+        mPackageUpdateScheduled = false;
+        return tasks;
     }
 
     @Thunk class AppsAvailabilityCheck extends BroadcastReceiver {
@@ -3251,7 +3827,7 @@ public class LauncherModel extends BroadcastReceiver
 
                 HashSet<String> packageSet = new HashSet<String>(Arrays.asList(packages));
                 synchronized (sBgLock) {
-                    for (ItemInfo info : sBgItemsIdMap) {
+                    for (ItemInfo info : getItemsForPackagesLocked(packageSet, mUser)) {
                         if (info instanceof ShortcutInfo && mUser.equals(info.user)) {
                             ShortcutInfo si = (ShortcutInfo) info;
                             boolean infoUpdated = false;
@@ -3351,6 +3927,11 @@ public class LauncherModel extends BroadcastReceiver
                             }
                         }
                     }
+                    if (!updatedShortcuts.isEmpty()) {
+                        // The shortcuts changed in place, a new version lets the snapshot pick
+                        // them up.
+                        publishBgDataModelLocked();
+                    }
                 }
 
                 if (!updatedShortcuts.isEmpty() || !removedShortcuts.isEmpty()) {
@@ -3597,12 +4178,12 @@ public class LauncherModel extends BroadcastReceiver
      * Make an ShortcutInfo object for a restored application or shortcut item that points
      * to a package that is not yet installed on the system.
      */
-    public ShortcutInfo getRestoredItemInfo(Cursor c, int titleIndex, Intent intent,
-            int promiseType, int itemType, CursorIconInfo iconInfo, Context context) {
+    public ShortcutInfo getRestoredItemInfo(String dbTitle, Intent intent,
+            int promiseType, int itemType, CursorIconInfo.IconRow iconRow, Context context) {
         final ShortcutInfo info = new ShortcutInfo();
         info.user = UserHandleCompat.myUserHandle();
 
-        Bitmap icon = iconInfo.loadIcon(c, info, context);
+        Bitmap icon = iconRow.loadIcon(info, context);
         // the fallback icon
         if (icon == null) {
             mIconCache.getTitleAndIcon(info, intent, info.user, false /* useLowResIcon */);
@@ -3611,13 +4192,12 @@ public class LauncherModel extends BroadcastReceiver
         }
 
         if ((promiseType & ShortcutInfo.FLAG_RESTORED_ICON) != 0) {
-            String title = (c != null) ? c.getString(titleIndex) : null;
-            if (!TextUtils.isEmpty(title)) {
-                info.title = Utilities.trim(title);
+            if (!TextUtils.isEmpty(dbTitle)) {
+                info.title = Utilities.trim(dbTitle);
             }
         } else if  ((promiseType & ShortcutInfo.FLAG_AUTOINTALL_ICON) != 0) {
             if (TextUtils.isEmpty(info.title)) {
-                info.title = (c != null) ? Utilities.trim(c.getString(titleIndex)) : "";
+                info.title = (dbTitle != null) ? Utilities.trim(dbTitle) : "";
             }
         } else {
             throw new InvalidParameterException("Invalid restoreType " + promiseType);
@@ -3634,7 +4214,7 @@ public class LauncherModel extends BroadcastReceiver
      * Make an Intent object for a restored application or shortcut item that points
      * to the market page for the item.
      */
-    @Thunk Intent getRestoredItemIntent(Cursor c, Context context, Intent intent) {
+    @Thunk Intent getRestoredItemIntent(Context context, Intent intent) {
         ComponentName componentName = intent.getComponent();
         return getMarketIntent(componentName.getPackageName());
     }
@@ -3651,10 +4231,11 @@ public class LauncherModel extends BroadcastReceiver
     /**
      * Make an ShortcutInfo object for a shortcut that is an application.
      *
-     * If c is not null, then it will be used to fill in missing data like the title and icon.
+     * If dbIcon or dbTitle are not null, they will be used to fill in missing data like the
+     * title and icon.
      */
-    public ShortcutInfo getAppShortcutInfo(PackageManager manager, Intent intent,
-            UserHandleCompat user, Context context, Cursor c, int iconIndex, int titleIndex,
+    public ShortcutInfo getAppShortcutInfo(Intent intent, UserHandleCompat user,
+            Context context, byte[] dbIcon, String dbTitle,
             boolean allowMissingTarget, boolean useLowResIcon) {
         if (user == null) {
             Log.d(TAG, "Null user found in getShortcutInfo");
@@ -3678,14 +4259,14 @@ public class LauncherModel extends BroadcastReceiver
 
         final ShortcutInfo info = new ShortcutInfo();
         mIconCache.getTitleAndIcon(info, componentName, lai, user, false, useLowResIcon);
-        if (mIconCache.isDefaultIcon(info.getIcon(mIconCache), user) && c != null) {
-            Bitmap icon = Utilities.createIconBitmap(c, iconIndex, context);
+        if (mIconCache.isDefaultIcon(info.getIcon(mIconCache), user) && dbIcon != null) {
+            Bitmap icon = Utilities.createIconBitmap(dbIcon, context);
             info.setIcon(icon == null ? mIconCache.getDefaultIcon(user) : icon);
         }
 
         // from the db
-        if (TextUtils.isEmpty(info.title) && c != null) {
-            info.title =  Utilities.trim(c.getString(titleIndex));
+        if (TextUtils.isEmpty(info.title) && dbTitle != null) {
+            info.title =  Utilities.trim(dbTitle);
         }
 
         // fall back to the class name of the activity
@@ -3743,14 +4324,14 @@ public class LauncherModel extends BroadcastReceiver
                 }
             }
         };
-        return filterItemInfos(sBgItemsIdMap, filter);
+        return filterItemInfos(getItemsForPackage(cname.getPackageName(), user), filter);
     }
 
     /**
      * Make an ShortcutInfo object for a shortcut that isn't an application.
      */
-    @Thunk ShortcutInfo getShortcutInfo(Cursor c, Context context,
-            int titleIndex, CursorIconInfo iconInfo) {
+    @Thunk ShortcutInfo getShortcutInfo(String dbTitle, CursorIconInfo.IconRow iconRow,
+            Context context) {
         final ShortcutInfo info = new ShortcutInfo();
         // Non-app shortcuts are only supported for current user.
         info.user = UserHandleCompat.myUserHandle();
@@ -3758,9 +4339,9 @@ public class LauncherModel extends BroadcastReceiver
 
         // TODO: If there's an explicit component and we can't install that, delete it.
 
-        info.title = Utilities.trim(c.getString(titleIndex));
+        info.title = Utilities.trim(dbTitle);
 
-        Bitmap icon = iconInfo.loadIcon(c, info, context);
+        Bitmap icon = iconRow.loadIcon(info, context);
         // the fallback icon
         if (icon == null) {
             icon = mIconCache.getDefaultIcon(info.user);
@@ -3849,6 +4430,9 @@ public class LauncherModel extends BroadcastReceiver
         } else {
             Log.d(TAG, "mLoaderTask=null");
         }
+        mHandler.dumpState();
+        LoaderTrace.dumpState();
+        mIconCache.getStats().dumpState();
     }
 
     public Callbacks getCallback() {
@@ -3859,9 +4443,7 @@ public class LauncherModel extends BroadcastReceiver
      * @return {@link FolderInfo} if its already loaded.
      */
     public FolderInfo findFolderById(Long folderId) {
-        synchronized (sBgLock) {
-            return sBgFolders.get(folderId);
-        }
+        return getBgDataModel().folders.get(folderId);
     }
 
     /**
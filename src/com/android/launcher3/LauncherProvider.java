@@ -30,6 +30,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.database.Cursor;
@@ -61,6 +62,7 @@ import java.io.File;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import org.codeaurora.snaplauncher.R;
@@ -250,6 +252,9 @@ public class LauncherProvider extends ContentProvider {
 
     @Override
     public Bundle call(String method, String arg, Bundle extras) {
+        if (LauncherSettings.Unread.METHOD_SET_UNREAD_NUMBERS.equals(method)) {
+            return setUnreadNumbers(extras);
+        }
         if (Binder.getCallingUid() != Process.myUid()) {
             return null;
         }
@@ -280,6 +285,47 @@ public class LauncherProvider extends ContentProvider {
         return null;
     }
 
+    /**
+     * Applies the unread counts of many apps together, see {@link LauncherSettings.Unread}.
+     */
+    private Bundle setUnreadNumbers(Bundle extras) {
+        if (getContext().checkCallingOrSelfPermission(getWritePermission())
+                != PackageManager.PERMISSION_GRANTED) {
+            return null;
+        }
+        if (extras == null || !Utilities.isUnreadCountEnabled(getContext())) {
+            return null;
+        }
+        ArrayList<ComponentName> components = extras.getParcelableArrayList(
+                LauncherSettings.Unread.EXTRA_COMPONENT_NAMES);
+        int[] unreadNumbers = extras.getIntArray(LauncherSettings.Unread.EXTRA_UNREAD_NUMBERS);
+        if (components == null || unreadNumbers == null
+                || components.size() != unreadNumbers.length) {
+            Log.w(TAG, "Invalid unread numbers");
+            return null;
+        }
+
+        final HashMap<ComponentName, Integer> changes = new HashMap<ComponentName, Integer>();
+        for (int i = 0; i < unreadNumbers.length; i++) {
+            if (components.get(i) != null) {
+                changes.put(components.get(i), unreadNumbers[i]);
+            }
+        }
+
+        final LauncherAppState app = LauncherAppState.getInstanceNoCreate();
+        if (app != null && !changes.isEmpty()) {
+            new MainThreadExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    app.getModel().postUnreadTask(changes);
+                }
+            });
+        }
+        Bundle result = new Bundle();
+        result.putInt(LauncherSettings.Unread.EXTRA_VALUE, app == null ? 0 : changes.size());
+        return result;
+    }
+
     /**
      * Deletes any empty folder from the DB.
      * @return Ids of deleted folders.
@@ -345,6 +391,7 @@ public class LauncherProvider extends ContentProvider {
      */
     synchronized public void createEmptyDB() {
         mOpenHelper.createEmptyDB(mOpenHelper.getWritableDatabase());
+        ModelSnapshot.delete(getContext());
     }
 
     public void clearFlagEmptyDbCreated() {
@@ -325,4 +325,32 @@ public class LauncherSettings {
         public static final String EXTRA_VALUE = "value";
         public static final String EXTRA_DEFAULT_VALUE = "default_value";
     }
+
+    /**
+     * Unread counts, which an app can set for many components in one
+     * {@link android.content.ContentResolver#call} on {@link Settings#CONTENT_URI}. The caller
+     * needs the write permission of the launcher provider.
+     */
+    public static final class Unread {
+
+        public static final String METHOD_SET_UNREAD_NUMBERS = "set_unread_numbers";
+
+        /**
+         * The components whose count changed.
+         * <p>Type: ArrayList&lt;ComponentName&gt;</p>
+         */
+        public static final String EXTRA_COMPONENT_NAMES = "component_names";
+
+        /**
+         * The new counts, in the same order as the components.
+         * <p>Type: int[]</p>
+         */
+        public static final String EXTRA_UNREAD_NUMBERS = "unread_numbers";
+
+        /**
+         * Returned with the number of counts which were applied.
+         * <p>Type: int</p>
+         */
+        public static final String EXTRA_VALUE = "value";
+    }
 }
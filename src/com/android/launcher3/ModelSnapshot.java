@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.model.BgDataModel;
+import com.android.launcher3.model.SnapshotProtos.Item;
+import com.android.launcher3.model.SnapshotProtos.Snapshot;
+import com.android.launcher3.util.IconCodec;
+import com.android.launcher3.util.LongArrayMap;
+import com.google.protobuf.nano.InvalidProtocolBufferNanoException;
+import com.google.protobuf.nano.MessageNano;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.WeakHashMap;
+
+/**
+ * A compact copy of the desktop items and their folder contents, persisted after the workspace
+ * has been loaded. On a cold start the current page is bound from this snapshot while the real
+ * model is still being read from the launcher provider.
+ *
+ * Only desktop shortcuts and folders are kept. Hotseat items and widgets are always bound from
+ * the loaded model.
+ */
+class ModelSnapshot {
+    private static final String TAG = "Launcher.ModelSnapshot";
+
+    private static final int VERSION = 1;
+
+    // Encoded icons, keyed by the bitmap they were created from. Only accessed on the worker
+    // thread, so that repeated writes do not compress the same bitmap again.
+    private static final WeakHashMap<Bitmap, byte[]> sIconBytes = new WeakHashMap<>();
+
+    /**
+     * Serializes the desktop items of the model and writes them to disk. Must be called on the
+     * worker thread.
+     *
+     * @return whether the snapshot was written.
+     */
+    static boolean write(Context context, InvariantDeviceProfile profile, BgDataModel model) {
+        List<Long> screens = model.workspaceScreens;
+        UserManagerCompat userManager = UserManagerCompat.getInstance(context);
+        IconCache iconCache = LauncherAppState.getInstance().getIconCache();
+
+        Snapshot snapshot = new Snapshot();
+        snapshot.version = VERSION;
+        snapshot.rows = profile.numRows;
+        snapshot.cols = profile.numColumns;
+        snapshot.screens = new long[screens.size()];
+        for (int i = 0; i < screens.size(); i++) {
+            snapshot.screens[i] = screens.get(i);
+        }
+
+        ArrayList<Item> items = new ArrayList<>();
+        ArrayList<ItemInfo> contents = new ArrayList<>();
+        for (ItemInfo info : model.workspaceItems) {
+            if (info.container != LauncherSettings.Favorites.CONTAINER_DESKTOP) {
+                continue;
+            }
+            if (info instanceof ShortcutInfo) {
+                Item item = writeShortcut((ShortcutInfo) info, userManager, iconCache);
+                if (item != null) {
+                    items.add(item);
+                }
+            } else if (info instanceof FolderInfo) {
+                FolderInfo folder = (FolderInfo) info;
+                Item item = writeItem(folder);
+                item.options = folder.options;
+                items.add(item);
+
+                // FolderInfo.contents is changed on the UI thread, the contents are taken from
+                // the published model instead.
+                contents.clear();
+                model.itemIndex.getItemsInContainer(folder.id, contents);
+                Collections.sort(contents, Folder.ITEM_POS_COMPARATOR);
+                for (ItemInfo content : contents) {
+                    if (!(content instanceof ShortcutInfo)) {
+                        continue;
+                    }
+                    Item child = writeShortcut((ShortcutInfo) content, userManager, iconCache);
+                    if (child != null) {
+                        items.add(child);
+                    }
+                }
+            }
+        }
+        snapshot.items = items.toArray(new Item[items.size()]);
+
+        File file = getFile(context);
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(MessageNano.toByteArray(snapshot));
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "Unable to replace the model snapshot");
+                tmp.delete();
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write the model snapshot", e);
+            tmp.delete();
+            return false;
+        } finally {
+            closeSilently(out);
+        }
+    }
+
+    /**
+     * Reads the last written snapshot.
+     *
+     * @return the snapshot, or null if there is none or it can't be used with this grid.
+     */
+    static Snapshot read(Context context, InvariantDeviceProfile profile) {
+        File file = getFile(context);
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            byte[] data = new byte[(int) file.length()];
+            in = new DataInputStream(new FileInputStream(file));
+            in.readFully(data);
+
+            Snapshot snapshot = MessageNano.mergeFrom(new Snapshot(), data);
+            if (snapshot.version != VERSION || snapshot.rows != profile.numRows
+                    || snapshot.cols != profile.numColumns) {
+                return null;
+            }
+            return snapshot;
+        } catch (InvalidProtocolBufferNanoException e) {
+            Log.w(TAG, "Invalid model snapshot", e);
+            file.delete();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the model snapshot", e);
+        } finally {
+            closeSilently(in);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the persisted snapshot, so that the next cold start waits for the real model.
+     */
+    static void delete(Context context) {
+        getFile(context).delete();
+    }
+
+    /**
+     * Recreates the desktop items on the given screen.
+     *
+     * @param outItems the shortcuts and folders on the screen
+     * @param outFolders the folders on the screen, with their contents
+     */
+    static void inflateScreen(Context context, Snapshot snapshot, long screenId,
+            ArrayList<ItemInfo> outItems, LongArrayMap<FolderInfo> outFolders) {
+        UserManagerCompat userManager = UserManagerCompat.getInstance(context);
+
+        // Folder contents are always written after their folder.
+        for (Item item : snapshot.items) {
+            if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
+                if (item.screen != screenId) {
+                    continue;
+                }
+                if (item.itemType == LauncherSettings.Favorites.ITEM_TYPE_FOLDER) {
+                    FolderInfo folder = new FolderInfo();
+                    readItem(item, folder);
+                    folder.options = item.options;
+                    outItems.add(folder);
+                    outFolders.put(folder.id, folder);
+                } else {
+                    ShortcutInfo info = readShortcut(context, item, userManager);
+                    if (info != null) {
+                        outItems.add(info);
+                    }
+                }
+            } else {
+                FolderInfo folder = outFolders.get(item.container);
+                if (folder != null) {
+                    ShortcutInfo info = readShortcut(context, item, userManager);
+                    if (info != null) {
+                        folder.add(info);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Item writeItem(ItemInfo info) {
+        Item item = new Item();
+        item.id = info.id;
+        item.itemType = info.itemType;
+        item.container = info.container;
+        item.screen = info.screenId;
+        item.cellX = info.cellX;
+        item.cellY = info.cellY;
+        item.rank = info.rank;
+        if (info.title != null) {
+            item.title = info.title.toString();
+        }
+        return item;
+    }
+
+    private static Item writeShortcut(ShortcutInfo info, UserManagerCompat userManager,
+            IconCache iconCache) {
+        Intent intent = info.getIntent();
+        if (intent == null || info.usingLowResIcon) {
+            return null;
+        }
+        Bitmap icon = info.getIcon(iconCache);
+        if (icon == null) {
+            return null;
+        }
+        byte[] iconBytes = sIconBytes.get(icon);
+        if (iconBytes == null) {
+            iconBytes = IconCodec.encode(icon);
+            if (iconBytes == null) {
+                return null;
+            }
+            sIconBytes.put(icon, iconBytes);
+        }
+
+        Item item = writeItem(info);
+        item.intent = intent.toUri(0);
+        item.userSerial = userManager.getSerialNumberForUser(info.user);
+        item.icon = iconBytes;
+        return item;
+    }
+
+    private static void readItem(Item item, ItemInfo info) {
+        info.id = item.id;
+        info.itemType = item.itemType;
+        info.container = item.container;
+        info.screenId = item.screen;
+        info.cellX = item.cellX;
+        info.cellY = item.cellY;
+        info.rank = item.rank;
+        info.spanX = 1;
+        info.spanY = 1;
+        info.title = item.title;
+    }
+
+    private static ShortcutInfo readShortcut(Context context, Item item,
+            UserManagerCompat userManager) {
+        UserHandleCompat user = userManager.getUserForSerialNumber(item.userSerial);
+        if (user == null) {
+            return null;
+        }
+        Bitmap icon = Utilities.createIconBitmap(item.icon, context);
+        if (icon == null) {
+            return null;
+        }
+
+        ShortcutInfo info = new ShortcutInfo();
+        readItem(item, info);
+        try {
+            info.intent = Intent.parseUri(item.intent, 0);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+        info.user = user;
+        info.contentDescription = userManager.getBadgedLabelForUser(info.title, user);
+        info.setIcon(icon);
+        return info;
+    }
+
+    private static void closeSilently(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), LauncherFiles.MODEL_SNAPSHOT);
+    }
+}
@@ -36,15 +36,12 @@ import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
-import android.graphics.PaintFlagsDrawFilter;
 import android.graphics.Rect;
-import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
@@ -61,6 +58,10 @@ import android.util.TypedValue;
 import android.view.View;
 import android.widget.Toast;
 
+import com.android.launcher3.util.BitmapPool;
+import com.android.launcher3.util.CanvasPool;
+import com.android.launcher3.util.IconCodec;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Method;
@@ -79,16 +80,9 @@ public final class Utilities {
 
     private static final String TAG = "Launcher.Utilities";
 
-    private static final Rect sOldBounds = new Rect();
-    private static final Canvas sCanvas = new Canvas();
-
     private static final Pattern sTrimPattern =
             Pattern.compile("^[\\s|\\p{javaSpaceChar}]*(.*)[\\s|\\p{javaSpaceChar}]*$");
 
-    static {
-        sCanvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
-                Paint.FILTER_BITMAP_FLAG));
-    }
     static int sColors[] = { 0xffff0000, 0xff00ff00, 0xff0000ff };
     static int sColorIndex = 0;
 
@@ -145,52 +139,31 @@ public final class Utilities {
         return sForceEnableRotation || context.getResources().getBoolean(R.bool.allow_rotation);
     }
 
-   static Bitmap createIconBitmap(Drawable icon, Context context, int count) {
-       Bitmap b = createIconBitmap(icon, context);
-
-       if (!isUnreadCountEnabled(context) || count <= 0) {
-           return b;
-       }
-
-       int textureWidth = b.getWidth();
-       final Resources resources = context.getResources();
-       final Canvas canvas = sCanvas;
-       canvas.setBitmap(b);
-
-       float textsize = resources.getDimension(R.dimen.infomation_count_textsize);
-       Paint countPaint = new Paint(Paint.ANTI_ALIAS_FLAG|Paint.DEV_KERN_TEXT_FLAG);
-       countPaint.setColor(Color.WHITE);
-       countPaint.setTextSize(textsize);
-
-       String text = String.valueOf(count);
-       if (count >= 1000) {
-           text = "999+";
-       }
-
-       float count_hight = resources.getDimension(R.dimen.infomation_count_height);
-       float padding = resources.getDimension(R.dimen.infomation_count_padding);
-       float radius = resources.getDimension(R.dimen.infomation_count_circle_radius);
-       int  textwidth = (int) (countPaint.measureText(text) + 1);
-       float width =textwidth + padding * 2;
-       width = Math.max(width, resources.getDimensionPixelSize(R.dimen.infomation_count_min_width));
-
-       RectF rect = new RectF(textureWidth - width -1, 1, textureWidth - 1, count_hight + 1);
-       Paint paint = new Paint();
-       paint.setAntiAlias(true);
-       paint.setColor(resources.getColor(R.color.infomation_count_circle_color));
-       canvas.drawRoundRect(rect , radius, radius, paint);
-
-       float x = textureWidth - (width + textwidth ) / 2 - 1;
-       float y = textsize;
-       canvas.drawText(text, x, y, countPaint);
-
-       return b;
+    public static Bitmap createIconBitmap(Cursor c, int iconIndex, Context context) {
+        return createIconBitmap(c.getBlob(iconIndex), context);
     }
 
-    public static Bitmap createIconBitmap(Cursor c, int iconIndex, Context context) {
-        byte[] data = c.getBlob(iconIndex);
+    /**
+     * Decodes an icon blob read from the favorites table. Returns null if the data is missing
+     * or invalid.
+     */
+    public static Bitmap createIconBitmap(byte[] data, Context context) {
+        if (data == null) {
+            return null;
+        }
         try {
-            return createIconBitmap(BitmapFactory.decodeByteArray(data, 0, data.length), context);
+            final int iconBitmapSize = getIconBitmapSize();
+            Bitmap decoded = BitmapPool.getInstance().decode(data, null,
+                    iconBitmapSize, iconBitmapSize, Bitmap.Config.ARGB_8888);
+            if (decoded == null) {
+                return null;
+            }
+            Bitmap icon = createIconBitmap(decoded, context);
+            if (icon != decoded) {
+                // Only used to draw the resized icon.
+                BitmapPool.getInstance().put(decoded);
+            }
+            return icon;
         } catch (Exception e) {
             return null;
         }
@@ -234,10 +207,12 @@ public final class Utilities {
     }
 
     /**
-     * Returns a bitmap suitable for the all apps view.
+     * Returns a bitmap suitable for the all apps view. Can be called from several threads at
+     * once, each draws with its own canvas.
      */
     public static Bitmap createIconBitmap(Drawable icon, Context context) {
-        synchronized (sCanvas) {
+        // The bounds of the drawable are changed while drawing.
+        synchronized (icon) {
             final int iconBitmapSize = getIconBitmapSize();
 
             int width = iconBitmapSize;
@@ -271,9 +246,10 @@ public final class Utilities {
             int textureWidth = iconBitmapSize;
             int textureHeight = iconBitmapSize;
 
-            final Bitmap bitmap = Bitmap.createBitmap(textureWidth, textureHeight,
-                    Bitmap.Config.ARGB_8888);
-            final Canvas canvas = sCanvas;
+            final Bitmap bitmap = BitmapPool.getInstance().getOrCreate(textureWidth,
+                    textureHeight, Bitmap.Config.ARGB_8888);
+            final CanvasPool.Holder holder = CanvasPool.get();
+            final Canvas canvas = holder.canvas;
             canvas.setBitmap(bitmap);
 
             final int left = (textureWidth-width) / 2;
@@ -290,10 +266,10 @@ public final class Utilities {
                 canvas.drawRect(left, top, left+width, top+height, debugPaint);
             }
 
-            sOldBounds.set(icon.getBounds());
+            holder.oldBounds.set(icon.getBounds());
             icon.setBounds(left, top, left+width, top+height);
             icon.draw(canvas);
-            icon.setBounds(sOldBounds);
+            icon.setBounds(holder.oldBounds);
             canvas.setBitmap(null);
 
             return bitmap;
@@ -619,7 +595,8 @@ public final class Utilities {
     }
 
     /**
-     * Compresses the bitmap to a byte array for serialization.
+     * Compresses the bitmap to a PNG byte array for serialization. Use this for data which can
+     * be read outside of the launcher, the launcher's private caches use {@link IconCodec}.
      */
     public static byte[] flattenBitmap(Bitmap bitmap) {
         // Try go guesstimate how much space the icon will take when serialized
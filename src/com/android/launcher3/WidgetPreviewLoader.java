@@ -32,6 +32,7 @@ import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.UserHandleCompat;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.util.ComponentKey;
+import com.android.launcher3.util.IconCodec;
 import com.android.launcher3.util.Thunk;
 import com.android.launcher3.widget.WidgetCell;
 
@@ -176,7 +177,7 @@ public class WidgetPreviewLoader {
         values.put(CacheDb.COLUMN_PACKAGE, key.componentName.getPackageName());
         values.put(CacheDb.COLUMN_VERSION, versions[0]);
         values.put(CacheDb.COLUMN_LAST_UPDATED, versions[1]);
-        values.put(CacheDb.COLUMN_PREVIEW_BITMAP, Utilities.flattenBitmap(preview));
+        values.put(CacheDb.COLUMN_PREVIEW_BITMAP, IconCodec.encode(preview));
 
         try {
             mDb.getWritableDatabase().insertWithOnConflict(CacheDb.TABLE_NAME, null, values,
@@ -309,7 +310,11 @@ public class WidgetPreviewLoader {
                 opts.inBitmap = recycle;
                 try {
                     if (!loadTask.isCancelled()) {
-                        return BitmapFactory.decodeByteArray(blob, 0, blob.length, opts);
+                        Bitmap preview = IconCodec.decode(blob, opts);
+                        if (preview != null && IconCodec.needsMigration(blob)) {
+                            migratePreviewFormat(key, preview);
+                        }
+                        return preview;
                     }
                 } catch (Exception e) {
                     return null;
@@ -325,6 +330,30 @@ public class WidgetPreviewLoader {
         return null;
     }
 
+    /**
+     * Writes a preview read in an older format again in the current format.
+     */
+    private void migratePreviewFormat(WidgetCacheKey key, Bitmap preview) {
+        byte[] data = IconCodec.encode(preview);
+        if (data == null) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(CacheDb.COLUMN_PREVIEW_BITMAP, data);
+        try {
+            mDb.getWritableDatabase().update(CacheDb.TABLE_NAME, values,
+                    CacheDb.COLUMN_COMPONENT + " = ? AND " + CacheDb.COLUMN_USER + " = ? AND "
+                            + CacheDb.COLUMN_SIZE + " = ?",
+                    new String[] {
+                            key.componentName.flattenToString(),
+                            Long.toString(mUserManager.getSerialNumberForUser(key.user)),
+                            key.size
+                    });
+        } catch (SQLException e) {
+            Log.w(TAG, "Error migrating preview", e);
+        }
+    }
+
     @Thunk Bitmap generatePreview(Launcher launcher, Object info, Bitmap recycle,
             int previewWidth, int previewHeight) {
         if (info instanceof LauncherAppWidgetProviderInfo) {
@@ -4659,6 +4659,23 @@ public class Workspace extends PagedView
         });
     }
 
+    /**
+     * Redraws the unread badges of the given shortcuts. The folder badges are updated while
+     * mapping over the items.
+     */
+    void updateUnreadNumbers(final HashSet<ItemInfo> updates) {
+        mapOverItems(MAP_RECURSE, new ItemOperator() {
+            @Override
+            public boolean evaluate(ItemInfo info, View v, View parent) {
+                if (v instanceof BubbleTextView && updates.contains(info)) {
+                    ((BubbleTextView) v).updateUnreadNumber();
+                }
+                // process all the shortcuts
+                return false;
+            }
+        });
+    }
+
     public void removeAbandonedPromise(String packageName, UserHandleCompat user) {
         ArrayList<String> packages = new ArrayList<String>(1);
         packages.add(packageName);
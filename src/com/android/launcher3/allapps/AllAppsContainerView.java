@@ -35,6 +35,7 @@ import android.view.ViewGroup;
 import android.widget.LinearLayout;
 import com.android.launcher3.AppInfo;
 import com.android.launcher3.BaseContainerView;
+import com.android.launcher3.BubbleTextView;
 import com.android.launcher3.CellLayout;
 import com.android.launcher3.DeleteDropTarget;
 import com.android.launcher3.DeviceProfile;
@@ -52,6 +53,7 @@ import com.android.launcher3.util.Thunk;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import org.codeaurora.snaplauncher.R;
 
@@ -218,6 +220,20 @@ public class AllAppsContainerView extends BaseContainerView implements DragSourc
         mApps.updateApps(apps);
     }
 
+    /**
+     * Redraws the unread badges of the given apps. Views which are not attached pick up the new
+     * count when they are bound or attached again.
+     */
+    public void updateUnreadNumbers(HashSet<ItemInfo> updated) {
+        int childCount = mAppsRecyclerView.getChildCount();
+        for (int i = 0; i < childCount; i++) {
+            View child = mAppsRecyclerView.getChildAt(i);
+            if (child instanceof BubbleTextView && updated.contains(child.getTag())) {
+                ((BubbleTextView) child).updateUnreadNumber();
+            }
+        }
+    }
+
     /**
      * Removes some apps from the list.
      */
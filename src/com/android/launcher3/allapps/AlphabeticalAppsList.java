@@ -174,6 +174,8 @@ public class AlphabeticalAppsList {
     // The set of apps from the system not including predictions
     private final List<AppInfo> mApps = new ArrayList<>();
     private final HashMap<ComponentKey, AppInfo> mComponentToAppMap = new HashMap<>();
+    // The words of the app titles, for searching
+    private final AppSearchIndex mSearchIndex;
 
     // The set of filtered apps with the current filter
     private List<AppInfo> mFilteredApps = new ArrayList<>();
@@ -202,6 +204,10 @@ public class AlphabeticalAppsList {
         mLauncher = (Launcher) context;
         mIndexer = new AlphabeticIndexCompat(context);
         mAppNameComparator = new AppNameComparator(context);
+
+        Locale curLocale = context.getResources().getConfiguration().locale;
+        mSearchIndex = new AppSearchIndex(PinyinSearchKeyProvider.supports(curLocale)
+                ? new PinyinSearchKeyProvider() : null);
     }
 
     /**
@@ -213,7 +219,8 @@ public class AlphabeticalAppsList {
         mNumPredictedAppsPerRow = numPredictedAppsPerRow;
         mMergeAlgorithm = mergeAlgorithm;
 
-        updateAdapterItems();
+        // The rows change for every item.
+        updateAdapterItems(true);
     }
 
     /**
@@ -230,6 +237,13 @@ public class AlphabeticalAppsList {
         return mApps;
     }
 
+    /**
+     * Returns the search index of all the apps.
+     */
+    public AppSearchIndex getSearchIndex() {
+        return mSearchIndex;
+    }
+
     /**
      * Returns sections of all the current filtered applications.
      */
@@ -285,7 +299,7 @@ public class AlphabeticalAppsList {
     public void setOrderedFilter(ArrayList<ComponentKey> f) {
         if (mSearchResults != f) {
             mSearchResults = f;
-            updateAdapterItems();
+            updateAdapterItems(false);
         }
     }
 
@@ -304,7 +318,12 @@ public class AlphabeticalAppsList {
      */
     public void setApps(List<AppInfo> apps) {
         mComponentToAppMap.clear();
-        addApps(apps);
+        mSearchIndex.clear();
+        for (AppInfo app : apps) {
+            mComponentToAppMap.put(app.toComponentKey(), app);
+            mSearchIndex.addOrUpdate(app);
+        }
+        onAppsUpdated();
     }
 
     /**
@@ -318,20 +337,112 @@ public class AlphabeticalAppsList {
      * Updates existing apps in the list
      */
     public void updateApps(List<AppInfo> apps) {
+        boolean incremental = canUpdateIncrementally();
+        // Apps whose icon or title the model changed in place, which the adapter items can't tell.
+        ArrayList<AppInfo> changedInPlace = new ArrayList<>();
         for (AppInfo app : apps) {
-            mComponentToAppMap.put(app.toComponentKey(), app);
+            AppInfo oldApp = mComponentToAppMap.put(app.toComponentKey(), app);
+            mSearchIndex.addOrUpdate(app);
+            if (oldApp == app) {
+                changedInPlace.add(app);
+            }
+            if (incremental && oldApp != null) {
+                removeSorted(oldApp);
+            }
+        }
+        if (incremental) {
+            // The model changes the titles of updated apps in place, so every updated app is
+            // removed before any is inserted: an app still at the position of its old title
+            // would lead the binary search astray.
+            for (AppInfo app : apps) {
+                insertSorted(app);
+            }
+            onSortedAppsChanged();
+        } else {
+            onAppsUpdated();
+        }
+        notifyAppsChanged(changedInPlace);
+    }
+
+    /**
+     * Binds the items of the given apps again. Adapter items are compared by app, so an app
+     * changed in place is otherwise not seen as changed.
+     */
+    private void notifyAppsChanged(List<AppInfo> apps) {
+        if (mAdapter == null || apps.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < mAdapterItems.size(); i++) {
+            AppInfo info = mAdapterItems.get(i).appInfo;
+            // The list is short, the apps of an update usually a single one.
+            if (info != null && apps.contains(info)) {
+                mAdapter.notifyItemChanged(i);
+            }
         }
-        onAppsUpdated();
     }
 
     /**
      * Removes some apps from the list.
      */
     public void removeApps(List<AppInfo> apps) {
+        boolean incremental = canUpdateIncrementally();
         for (AppInfo app : apps) {
-            mComponentToAppMap.remove(app.toComponentKey());
+            AppInfo oldApp = mComponentToAppMap.remove(app.toComponentKey());
+            mSearchIndex.remove(app);
+            if (incremental && oldApp != null) {
+                removeSorted(oldApp);
+            }
         }
-        onAppsUpdated();
+        if (incremental) {
+            onSortedAppsChanged();
+        } else {
+            onAppsUpdated();
+        }
+    }
+
+    /**
+     * Returns whether mApps can be kept sorted by inserting and removing single apps. Otherwise
+     * the order of an app depends on the other apps, and the whole list is sorted again.
+     */
+    private boolean canUpdateIncrementally() {
+        return !mLauncher.getResources().getBoolean(R.bool.config_launcher_customWorkspace)
+                && !localeRequiresSectionSorting();
+    }
+
+    private boolean localeRequiresSectionSorting() {
+        Locale curLocale = mLauncher.getResources().getConfiguration().locale;
+        return curLocale.equals(Locale.SIMPLIFIED_CHINESE);
+    }
+
+    /**
+     * Inserts the app at its sorted position in mApps.
+     */
+    private void insertSorted(AppInfo app) {
+        int index = Collections.binarySearch(mApps, app, mAppNameComparator.getAppInfoComparator());
+        mApps.add(index < 0 ? -index - 1 : index, app);
+        getAndUpdateCachedSectionName(app.title);
+    }
+
+    /**
+     * Removes the app from mApps.
+     */
+    private void removeSorted(AppInfo app) {
+        int index = Collections.binarySearch(mApps, app, mAppNameComparator.getAppInfoComparator());
+        if (index < 0 || mApps.get(index) != app) {
+            // The title of the app changed since it was inserted, it is not where its title says.
+            index = mApps.indexOf(app);
+        }
+        if (index >= 0) {
+            mApps.remove(index);
+        }
+    }
+
+    /**
+     * Updates internals after apps were inserted into or removed from the sorted mApps.
+     */
+    private void onSortedAppsChanged() {
+        mSearchIndex.setOrder(mApps);
+        updateAdapterItems(false);
     }
     public void lockPreloadingApps() {
         List<ComponentInfo> custom_app_list = null;
@@ -380,9 +491,8 @@ public class AlphabeticalAppsList {
         }
         // As a special case for some languages (currently only Simplified Chinese), we may need to
         // coalesce sections
-        Locale curLocale = mLauncher.getResources().getConfiguration().locale;
         TreeMap<String, ArrayList<AppInfo>> sectionMap = null;
-        boolean localeRequiresSectionSorting = curLocale.equals(Locale.SIMPLIFIED_CHINESE);
+        boolean localeRequiresSectionSorting = localeRequiresSectionSorting();
         if (localeRequiresSectionSorting) {
             // Compute the section headers.  We use a TreeMap with the section name comparator to
             // ensure that the sections are ordered when we iterate over it later
@@ -415,26 +525,32 @@ public class AlphabeticalAppsList {
                 getAndUpdateCachedSectionName(info.title);
             }
         }
+        mSearchIndex.setOrder(mApps);
 
         // Recompose the set of adapter items from the current set of apps
-        updateAdapterItems();
+        updateAdapterItems(false);
     }
 
     /**
      * Updates the set of filtered apps with the current filter.  At this point, we expect
      * mCachedSectionNames to have been calculated for the set of all apps in mApps.
+     *
+     * @param refreshAll whether every item must be bound again, otherwise only the items which
+     *                   changed are.
      */
-    private void updateAdapterItems() {
+    private void updateAdapterItems(boolean refreshAll) {
         SectionInfo lastSectionInfo = null;
         String lastSectionName = null;
         FastScrollSectionInfo lastFastScrollerSectionInfo = null;
         int position = 0;
         int appIndex = 0;
 
-        // Prepare to update the list of sections, filtered apps, etc.
+        // Prepare to update the list of sections, filtered apps, etc. The old items are kept to
+        // find what changed.
+        List<AdapterItem> oldAdapterItems = mAdapterItems;
         mFilteredApps.clear();
         mFastScrollerSections.clear();
-        mAdapterItems.clear();
+        mAdapterItems = new ArrayList<>(oldAdapterItems.size());
         mSections.clear();
 
         if (DEBUG_PREDICTIONS) {
@@ -594,7 +710,92 @@ public class AlphabeticalAppsList {
 
         // Refresh the recycler view
         if (mAdapter != null) {
+            if (refreshAll) {
+                mAdapter.notifyDataSetChanged();
+            } else {
+                notifyAdapterItemsChanged(oldAdapterItems);
+            }
+        }
+    }
+
+    /**
+     * Notifies the adapter of the difference between the old and the current adapter items, as
+     * one range of changed items followed by inserted or removed items. The range is found by
+     * skipping the items which are the same at both ends of the lists, so that adding or removing
+     * a single app only binds that app and moves the following items.
+     */
+    private void notifyAdapterItemsChanged(List<AdapterItem> oldItems) {
+        int oldSize = oldItems.size();
+        int newSize = mAdapterItems.size();
+        int start = 0;
+        while (start < oldSize && start < newSize
+                && isSameItem(oldItems.get(start), mAdapterItems.get(start))) {
+            start++;
+        }
+        int oldEnd = oldSize;
+        int newEnd = newSize;
+        while (oldEnd > start && newEnd > start
+                && isSameItem(oldItems.get(oldEnd - 1), mAdapterItems.get(newEnd - 1))) {
+            oldEnd--;
+            newEnd--;
+        }
+
+        if (start == 0 && oldEnd == oldSize && newEnd == newSize
+                && (oldSize > 0 || newSize > 0)) {
+            // Nothing in common, a full refresh is cheaper than ranges.
             mAdapter.notifyDataSetChanged();
+            return;
+        }
+
+        int changedCount = Math.min(oldEnd, newEnd) - start;
+        if (changedCount > 0) {
+            mAdapter.notifyItemRangeChanged(start, changedCount);
+        }
+        if (oldEnd > newEnd) {
+            mAdapter.notifyItemRangeRemoved(start + changedCount, oldEnd - newEnd);
+        } else if (newEnd > oldEnd) {
+            mAdapter.notifyItemRangeInserted(start + changedCount, newEnd - oldEnd);
+        }
+
+        if (hasFilter()) {
+            // The search items at the end show the query and depend on the results.
+            int firstSearchItem = newSize;
+            while (firstSearchItem > 0 && !isAppOrSectionItem(
+                    mAdapterItems.get(firstSearchItem - 1))) {
+                firstSearchItem--;
+            }
+            if (firstSearchItem < newSize) {
+                mAdapter.notifyItemRangeChanged(firstSearchItem, newSize - firstSearchItem);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the two items are bound the same way.
+     */
+    private static boolean isSameItem(AdapterItem a, AdapterItem b) {
+        if (a.viewType != b.viewType) {
+            return false;
+        }
+        switch (a.viewType) {
+            case AllAppsGridAdapter.ICON_VIEW_TYPE:
+            case AllAppsGridAdapter.PREDICTION_ICON_VIEW_TYPE:
+                return a.appInfo == b.appInfo;
+            default:
+                // Section breaks and dividers have no content, the search items are bound again
+                // separately.
+                return true;
+        }
+    }
+
+    private static boolean isAppOrSectionItem(AdapterItem item) {
+        switch (item.viewType) {
+            case AllAppsGridAdapter.ICON_VIEW_TYPE:
+            case AllAppsGridAdapter.PREDICTION_ICON_VIEW_TYPE:
+            case AllAppsGridAdapter.SECTION_BREAK_VIEW_TYPE:
+                return true;
+            default:
+                return false;
         }
     }
 
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.allapps;
+
+import android.os.Handler;
+
+import com.android.launcher3.AppInfo;
+import com.android.launcher3.util.ComponentKey;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Index of the words in the app titles, used to search the apps without splitting every title
+ * on every keystroke. The index maps each lowercase word to the apps whose title contains it,
+ * sorted by word, so that the apps with a word starting with a query word are a range of it.
+ *
+ * The index is kept up to date by {@link AlphabeticalAppsList} as apps are added, updated and
+ * removed, and searched on the search thread. Changes and searches are serialized on the index,
+ * a search is short enough not to hold up a change for long.
+ *
+ * Titles can also be found by the extra words of a {@link SearchKeyProvider}, like their pinyin.
+ * Those are computed once per title on the search thread, and added to the index when ready.
+ */
+public class AppSearchIndex {
+
+    private static final Pattern SPLIT_PATTERN = Pattern.compile("[\\s|\\p{javaSpaceChar}]+");
+
+    // Sorts past every word starting with a given prefix.
+    private static final char PREFIX_END = Character.MAX_VALUE;
+
+    /**
+     * An indexed app.
+     */
+    private static class Entry {
+        final ComponentKey key;
+        final String title;
+        final String[] words;
+        // Extra words from the SearchKeyProvider, set once they are computed.
+        String[] keyWords;
+        // Position of the app in the all-apps list, results are returned in that order.
+        int rank;
+
+        Entry(ComponentKey key, String title) {
+            this.key = key;
+            this.title = title;
+            this.words = splitWords(title);
+        }
+
+        boolean hasWordStartingWith(String prefix) {
+            for (String word : words) {
+                if (word.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            if (keyWords != null) {
+                for (String word : keyWords) {
+                    if (word.startsWith(prefix)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final Comparator<Entry> RANK_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.rank - rhs.rank;
+        }
+    };
+
+    private final HashMap<ComponentKey, Entry> mEntries = new HashMap<>();
+    // Word -> apps whose title contains the word.
+    private final TreeMap<String, HashSet<Entry>> mWords = new TreeMap<>();
+    // Changes whenever the results of a query may change.
+    private int mVersion;
+
+    private final SearchKeyProvider mKeyProvider;
+    private final Handler mKeyHandler;
+
+    /**
+     * @param keyProvider the extra words to index the titles by, or null.
+     */
+    public AppSearchIndex(SearchKeyProvider keyProvider) {
+        mKeyProvider = keyProvider;
+        mKeyHandler = DefaultAppSearchAlgorithm.getSearchHandler();
+    }
+
+    /**
+     * Adds the app, or updates it if it is already indexed.
+     */
+    public synchronized void addOrUpdate(AppInfo app) {
+        ComponentKey key = app.toComponentKey();
+        String title = app.title == null ? "" : app.title.toString();
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            if (entry.title.equals(title)) {
+                return;
+            }
+            removeEntry(entry);
+        }
+        entry = new Entry(key, title);
+        entry.rank = Integer.MAX_VALUE;
+        mEntries.put(key, entry);
+        mVersion++;
+        addPostings(entry, entry.words);
+        if (mKeyProvider != null) {
+            computeKeyWords(entry);
+        }
+    }
+
+    private void addPostings(Entry entry, String[] words) {
+        for (String word : words) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            HashSet<Entry> postings = mWords.get(word);
+            if (postings == null) {
+                postings = new HashSet<>();
+                mWords.put(word, postings);
+            }
+            postings.add(entry);
+        }
+    }
+
+    private void removePostings(Entry entry, String[] words) {
+        for (String word : words) {
+            HashSet<Entry> postings = mWords.get(word);
+            if (postings != null && postings.remove(entry) && postings.isEmpty()) {
+                mWords.remove(word);
+            }
+        }
+    }
+
+    /**
+     * Computes the extra words of the entry on the search thread, and adds them if the entry is
+     * still in the index by then.
+     */
+    private void computeKeyWords(final Entry entry) {
+        mKeyHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                String[] keyWords = mKeyProvider.getSearchKeys(entry.title);
+                if (keyWords == null || keyWords.length == 0) {
+                    return;
+                }
+                synchronized (AppSearchIndex.this) {
+                    if (mEntries.get(entry.key) == entry) {
+                        entry.keyWords = keyWords;
+                        addPostings(entry, keyWords);
+                        mVersion++;
+                    }
+                }
+            }
+        });
+    }
+
+    public synchronized void remove(AppInfo app) {
+        Entry entry = mEntries.get(app.toComponentKey());
+        if (entry != null) {
+            removeEntry(entry);
+        }
+    }
+
+    private void removeEntry(Entry entry) {
+        mEntries.remove(entry.key);
+        mVersion++;
+        removePostings(entry, entry.words);
+        if (entry.keyWords != null) {
+            removePostings(entry, entry.keyWords);
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mWords.clear();
+        mVersion++;
+    }
+
+    /**
+     * Sets the order in which the results are returned, which is the order of the apps in the
+     * all-apps list.
+     */
+    public synchronized void setOrder(List<AppInfo> apps) {
+        for (int i = 0; i < apps.size(); i++) {
+            Entry entry = mEntries.get(apps.get(i).toComponentKey());
+            if (entry != null) {
+                entry.rank = i;
+            }
+        }
+        mVersion++;
+    }
+
+    /**
+     * @return a number which changes whenever the results of a query may change, so that results
+     * computed at the same version can be reused.
+     */
+    public synchronized int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns the apps with, for every word of the query, a word in their title starting with it.
+     * The apps are in the order of the all-apps list.
+     */
+    public synchronized ArrayList<ComponentKey> search(String query) {
+        String[] queryWords = splitWords(query);
+        if (queryWords.length == 0) {
+            // Only separators, which match every title.
+            return toSortedKeys(new ArrayList<>(mEntries.values()));
+        }
+
+        // The longest word is likely to match the fewest apps, so its matches are the candidates
+        // which are checked against the other words.
+        int longestIndex = 0;
+        for (int i = 1; i < queryWords.length; i++) {
+            if (queryWords[i].length() > queryWords[longestIndex].length()) {
+                longestIndex = i;
+            }
+        }
+        String longest = queryWords[longestIndex];
+
+        Collection<Entry> candidates;
+        if (longest.isEmpty()) {
+            candidates = mEntries.values();
+        } else {
+            HashSet<Entry> matches = new HashSet<>();
+            for (HashSet<Entry> postings
+                    : mWords.subMap(longest, longest + PREFIX_END).values()) {
+                matches.addAll(postings);
+            }
+            candidates = matches;
+        }
+
+        ArrayList<Entry> entries = new ArrayList<>(candidates.size());
+        for (Entry entry : candidates) {
+            if (matchesAll(entry, queryWords, longestIndex)) {
+                entries.add(entry);
+            }
+        }
+        return toSortedKeys(entries);
+    }
+
+    /**
+     * Returns the apps of {@param keys} which match the query, in the same order. Used to narrow
+     * down the results of a query which this query refines.
+     */
+    public synchronized ArrayList<ComponentKey> filter(List<ComponentKey> keys, String query) {
+        String[] queryWords = splitWords(query);
+        ArrayList<ComponentKey> result = new ArrayList<>();
+        for (ComponentKey key : keys) {
+            Entry entry = mEntries.get(key);
+            if (entry != null && matchesAll(entry, queryWords, -1)) {
+                result.add(key);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param matchedIndex the query word which the entry is already known to match.
+     */
+    private static boolean matchesAll(Entry entry, String[] queryWords, int matchedIndex) {
+        for (int i = 0; i < queryWords.length; i++) {
+            // Empty words come from leading separators, and match any title.
+            if (i != matchedIndex && !queryWords[i].isEmpty()
+                    && !entry.hasWordStartingWith(queryWords[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ArrayList<ComponentKey> toSortedKeys(ArrayList<Entry> entries) {
+        Collections.sort(entries, RANK_COMPARATOR);
+        ArrayList<ComponentKey> keys = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            keys.add(entry.key);
+        }
+        return keys;
+    }
+
+    /**
+     * Splits the text in lowercase words, like the titles and the queries are matched.
+     */
+    static String[] splitWords(String text) {
+        return SPLIT_PATTERN.split(text.toLowerCase());
+    }
+}
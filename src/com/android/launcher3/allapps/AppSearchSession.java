@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.allapps;
+
+import com.android.launcher3.util.ComponentKey;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Searches an {@link AppSearchIndex}, reusing the results of recent queries.
+ *
+ * While typing, each query extends the previous one, and a query which extends another can only
+ * match apps that the other matched: every query word still starts the same title words. Such a
+ * query only filters the results of the query it extends, so that its cost depends on the number
+ * of results rather than on the number of apps. After a backspace, the shorter query is usually
+ * still cached.
+ *
+ * Thread safe.
+ */
+public class AppSearchSession {
+
+    private static final int MAX_CACHED_QUERIES = 8;
+
+    private final AppSearchIndex mIndex;
+
+    // Lowercase query -> sorted results, least recently used first.
+    private final LinkedHashMap<String, ArrayList<ComponentKey>> mResults =
+            new LinkedHashMap<String, ArrayList<ComponentKey>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, ArrayList<ComponentKey>> eldest) {
+                    return size() > MAX_CACHED_QUERIES;
+                }
+            };
+    // The index version the cached results were computed at.
+    private int mIndexVersion;
+
+    public AppSearchSession(AppSearchIndex index) {
+        mIndex = index;
+        mIndexVersion = index.getVersion();
+    }
+
+    /**
+     * @return the sorted apps matching the query, see {@link AppSearchIndex#search}. The list
+     * belongs to the caller.
+     */
+    public synchronized ArrayList<ComponentKey> search(String query) {
+        if (mIndexVersion != mIndex.getVersion()) {
+            // The apps changed, none of the results can be trusted.
+            mResults.clear();
+            mIndexVersion = mIndex.getVersion();
+        }
+
+        String key = query.toLowerCase();
+        ArrayList<ComponentKey> result = mResults.get(key);
+        if (result == null) {
+            ArrayList<ComponentKey> refined = findRefinedResults(key);
+            result = refined != null ? mIndex.filter(refined, query) : mIndex.search(query);
+            mResults.put(key, result);
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * @return the results of the longest cached query which the query extends, or null.
+     */
+    private ArrayList<ComponentKey> findRefinedResults(String key) {
+        String longest = null;
+        for (String cached : mResults.keySet()) {
+            if (key.startsWith(cached) && (longest == null || cached.length() > longest.length())) {
+                longest = cached;
+            }
+        }
+        return longest == null ? null : mResults.get(longest);
+    }
+
+    /**
+     * Drops the cached results.
+     */
+    public synchronized void clear() {
+        mResults.clear();
+    }
+}
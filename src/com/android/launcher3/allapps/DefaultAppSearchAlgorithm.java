@@ -16,79 +16,99 @@
 package com.android.launcher3.allapps;
 
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 
-import com.android.launcher3.AppInfo;
 import com.android.launcher3.util.ComponentKey;
+import com.android.launcher3.util.Thunk;
 
 import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The default search implementation.
+ *
+ * Queries are matched on a background thread. Each query supersedes the previous ones: a query
+ * which has not started yet is dropped, and the results of an older query are never delivered.
+ * Queries typed in quick succession are debounced.
  */
 public class DefaultAppSearchAlgorithm {
 
-    private static final Pattern SPLIT_PATTERN = Pattern.compile("[\\s|\\p{javaSpaceChar}]+");
+    // Queries typed within this time of the previous one wait as long for the next key.
+    private static final long SEARCH_DEBOUNCE_MS = 50;
+
+    private static final HandlerThread sSearchThread = new HandlerThread("launcher-search");
+    static {
+        sSearchThread.start();
+    }
+    private static final Handler sSearchHandler = new Handler(sSearchThread.getLooper());
 
-    private final List<AppInfo> mApps;
+    private final AppSearchSession mSession;
     protected final Handler mResultHandler;
 
-    public DefaultAppSearchAlgorithm(List<AppInfo> apps) {
-        mApps = apps;
+    // The sequence number of the latest query, only its results are delivered.
+    @Thunk final AtomicInteger mSequence = new AtomicInteger();
+    // When the previous query was requested, only used on the UI thread.
+    private long mLastSearchTime;
+
+    public DefaultAppSearchAlgorithm(AppSearchIndex index) {
+        mSession = new AppSearchSession(index);
         mResultHandler = new Handler();
     }
 
+    /**
+     * @return the handler of the thread which matches the queries.
+     */
+    static Handler getSearchHandler() {
+        return sSearchHandler;
+    }
+
     public void cancel(boolean interruptActiveRequests) {
         if (interruptActiveRequests) {
+            mSequence.incrementAndGet();
+            sSearchHandler.removeCallbacksAndMessages(this);
             mResultHandler.removeCallbacksAndMessages(null);
+            // The search was cleared, the next query starts a new session.
+            mSession.clear();
         }
     }
 
     public void doSearch(final String query,
             final AllAppsSearchBarController.Callbacks callback) {
-        final ArrayList<ComponentKey> result = getTitleMatchResult(query);
-        mResultHandler.post(new Runnable() {
+        final int sequence = mSequence.incrementAndGet();
+        // A query which has not started yet is superseded by this one.
+        sSearchHandler.removeCallbacksAndMessages(this);
+
+        long now = SystemClock.uptimeMillis();
+        long delay = now - mLastSearchTime < SEARCH_DEBOUNCE_MS ? SEARCH_DEBOUNCE_MS : 0;
+        mLastSearchTime = now;
+
+        sSearchHandler.postAtTime(new Runnable() {
 
             @Override
             public void run() {
-                callback.onSearchResult(query, result);
-            }
-        });
-    }
+                if (sequence != mSequence.get()) {
+                    return;
+                }
+                final ArrayList<ComponentKey> result = getTitleMatchResult(query);
+                mResultHandler.post(new Runnable() {
 
-    protected ArrayList<ComponentKey> getTitleMatchResult(String query) {
-        // Do an intersection of the words in the query and each title, and filter out all the
-        // apps that don't match all of the words in the query.
-        final String queryTextLower = query.toLowerCase();
-        final String[] queryWords = SPLIT_PATTERN.split(queryTextLower);
-
-        final ArrayList<ComponentKey> result = new ArrayList<>();
-        for (AppInfo info : mApps) {
-            if (matches(info, queryWords)) {
-                result.add(info.toComponentKey());
+                    @Override
+                    public void run() {
+                        if (sequence == mSequence.get()) {
+                            callback.onSearchResult(query, result);
+                        }
+                    }
+                });
             }
-        }
-        return result;
+        }, this, now + delay);
     }
 
-    protected boolean matches(AppInfo info, String[] queryWords) {
-        String title = info.title.toString();
-        String[] words = SPLIT_PATTERN.split(title.toLowerCase());
-        for (int qi = 0; qi < queryWords.length; qi++) {
-            boolean foundMatch = false;
-            for (int i = 0; i < words.length; i++) {
-                if (words[i].startsWith(queryWords[qi])) {
-                    foundMatch = true;
-                    break;
-                }
-            }
-            if (!foundMatch) {
-                // If there is a word in the query that does not match any words in this
-                // title, so skip it.
-                return false;
-            }
-        }
-        return true;
+    /**
+     * Called on the search thread.
+     */
+    protected ArrayList<ComponentKey> getTitleMatchResult(String query) {
+        // Every word in the query must start a word of the title, see AppSearchIndex.
+        return mSession.search(query);
     }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.allapps;
+
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Lets titles with Chinese characters be searched by their pinyin. For 微信, the keys are the
+ * full spelling "weixin", the initials "wx", and each syllable, "wei" and "xin". Other characters
+ * are kept as they are, so QQ音乐 gives "qqyinyue" and "qqyy".
+ *
+ * The ICU transliterator of the framework is used through reflection. Without it, no keys are
+ * computed.
+ *
+ * Not thread safe, only used on the search thread.
+ */
+public class PinyinSearchKeyProvider implements SearchKeyProvider {
+    private static final String TAG = "PinyinSearchKeyProvider";
+
+    private static final String TRANSLITERATOR_ID = "Han-Latin/Names; Latin-Ascii; Any-Lower";
+
+    private boolean mInitialized;
+    private Object mTransliterator;
+    private Method mTransliterateMethod;
+
+    // Character -> syllable, many characters are shared by several titles.
+    private final HashMap<Character, String> mSyllables = new HashMap<>();
+
+    /**
+     * @return true if titles should be searchable by their pinyin in the locale.
+     */
+    public static boolean supports(Locale locale) {
+        return Locale.CHINESE.getLanguage().equals(locale.getLanguage());
+    }
+
+    @Override
+    public String[] getSearchKeys(String title) {
+        if (!hasHan(title) || !initTransliterator()) {
+            return null;
+        }
+
+        StringBuilder full = new StringBuilder();
+        StringBuilder initials = new StringBuilder();
+        ArrayList<String> keys = new ArrayList<>();
+        for (int i = 0; i < title.length(); i++) {
+            char c = title.charAt(i);
+            String syllable = isHan(c) ? getSyllable(c) : null;
+            if (syllable != null) {
+                full.append(syllable);
+                initials.append(syllable.charAt(0));
+                keys.add(syllable);
+            } else if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+                addKeys(keys, full, initials);
+            } else {
+                full.append(Character.toLowerCase(c));
+                initials.append(Character.toLowerCase(c));
+            }
+        }
+        addKeys(keys, full, initials);
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    private static void addKeys(ArrayList<String> keys, StringBuilder full,
+            StringBuilder initials) {
+        if (full.length() > 0) {
+            keys.add(full.toString());
+            keys.add(initials.toString());
+            full.setLength(0);
+            initials.setLength(0);
+        }
+    }
+
+    private String getSyllable(char c) {
+        if (mSyllables.containsKey(c)) {
+            return mSyllables.get(c);
+        }
+        String syllable = null;
+        try {
+            syllable = ((String) mTransliterateMethod.invoke(mTransliterator, String.valueOf(c)))
+                    .trim();
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to transliterate " + c, e);
+        }
+        // Untransliterated characters come back as they are.
+        if (syllable == null || syllable.isEmpty() || isHan(syllable.charAt(0))) {
+            syllable = null;
+        }
+        mSyllables.put(c, syllable);
+        return syllable;
+    }
+
+    /**
+     * Finds the transliterator, android.icu on newer releases and libcore.icu before.
+     */
+    private boolean initTransliterator() {
+        if (mInitialized) {
+            return mTransliterator != null;
+        }
+        mInitialized = true;
+        try {
+            Class<?> clazz = Class.forName("android.icu.text.Transliterator");
+            mTransliterator = clazz.getMethod("getInstance", String.class)
+                    .invoke(null, TRANSLITERATOR_ID);
+            mTransliterateMethod = clazz.getMethod("transliterate", String.class);
+            return true;
+        } catch (Exception e) {
+            // Not available before N.
+        }
+        try {
+            Class<?> clazz = Class.forName("libcore.icu.Transliterator");
+            mTransliterator = clazz.getConstructor(String.class).newInstance(TRANSLITERATOR_ID);
+            mTransliterateMethod = clazz.getMethod("transliterate", String.class);
+            return true;
+        } catch (Exception e) {
+            Log.w(TAG, "No transliterator, titles are not searchable by pinyin", e);
+            mTransliterator = null;
+            return false;
+        }
+    }
+
+    private static boolean hasHan(String title) {
+        for (int i = 0; i < title.length(); i++) {
+            if (isHan(title.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isHan(char c) {
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(c);
+        return block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS
+                || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A
+                || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.allapps;
+
+/**
+ * Computes extra words an app title can be searched by, like the transliteration of a title in
+ * a script which can not be typed directly. The words are matched like the words of the title.
+ *
+ * See {@link PinyinSearchKeyProvider}.
+ */
+public interface SearchKeyProvider {
+
+    /**
+     * Called on the search thread, once for each title.
+     *
+     * @return the lowercase words to index the title by, or null if there are none.
+     */
+    String[] getSearchKeys(String title);
+}
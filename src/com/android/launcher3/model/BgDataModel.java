@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.model;
+
+import android.content.ComponentName;
+
+import com.android.launcher3.FolderInfo;
+import com.android.launcher3.ItemInfo;
+import com.android.launcher3.LauncherAppWidgetInfo;
+import com.android.launcher3.LauncherSettings;
+import com.android.launcher3.ShortcutInfo;
+import com.android.launcher3.util.ComponentKey;
+import com.android.launcher3.util.LongArrayMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An immutable version of the workspace model.
+ *
+ * <p> The loader and the model updates build the next version under the model lock and publish
+ * it atomically, so readers can use the latest version from any thread without locking. The
+ * collections are never modified once published. The items in them are the live model objects,
+ * and their fields are only safe to change on the worker thread.
+ */
+public final class BgDataModel {
+
+    public static final BgDataModel EMPTY = new BgDataModel(0, new LongArrayMap<ItemInfo>(),
+            new ArrayList<ItemInfo>(), new ArrayList<LauncherAppWidgetInfo>(),
+            new LongArrayMap<FolderInfo>(), new ArrayList<Long>(), new ItemIndex());
+
+    /** Increases by one with every published change. */
+    public final int version;
+
+    /** All the items, keyed by id. Must not be modified. */
+    public final LongArrayMap<ItemInfo> itemsIdMap;
+
+    /** The shortcuts and folders directly on the desktop or the hotseat. */
+    public final List<ItemInfo> workspaceItems;
+
+    public final List<LauncherAppWidgetInfo> appWidgets;
+
+    /** All the folders, keyed by id. Must not be modified. */
+    public final LongArrayMap<FolderInfo> folders;
+
+    /** The ordered workspace screen ids. */
+    public final List<Long> workspaceScreens;
+
+    /** The items by package, container and screen. Must not be modified. */
+    public final ItemIndex itemIndex;
+
+    // The app shortcuts keyed by their target component, built on first use.
+    private HashMap<ComponentKey, ArrayList<ShortcutInfo>> mAppShortcuts;
+
+    /**
+     * Creates a new version which holds copies of the given collections.
+     */
+    public BgDataModel(int version, LongArrayMap<ItemInfo> itemsIdMap,
+            ArrayList<ItemInfo> workspaceItems, ArrayList<LauncherAppWidgetInfo> appWidgets,
+            LongArrayMap<FolderInfo> folders, ArrayList<Long> workspaceScreens,
+            ItemIndex itemIndex) {
+        this.version = version;
+        this.itemsIdMap = itemsIdMap.clone();
+        this.workspaceItems = Collections.unmodifiableList(
+                new ArrayList<ItemInfo>(workspaceItems));
+        this.appWidgets = Collections.unmodifiableList(
+                new ArrayList<LauncherAppWidgetInfo>(appWidgets));
+        this.folders = folders.clone();
+        this.workspaceScreens = Collections.unmodifiableList(
+                new ArrayList<Long>(workspaceScreens));
+        this.itemIndex = itemIndex.snapshot();
+    }
+
+    /**
+     * Returns the app shortcuts which launch the given component, on the workspace or in
+     * folders. The index is built once per version, so repeated lookups don't scan the model.
+     */
+    public List<ShortcutInfo> getAppShortcuts(ComponentKey key) {
+        ArrayList<ShortcutInfo> shortcuts = getAppShortcutsIndex().get(key);
+        return shortcuts == null ? Collections.<ShortcutInfo>emptyList() : shortcuts;
+    }
+
+    private synchronized HashMap<ComponentKey, ArrayList<ShortcutInfo>> getAppShortcutsIndex() {
+        if (mAppShortcuts == null) {
+            HashMap<ComponentKey, ArrayList<ShortcutInfo>> index = new HashMap<>();
+            for (ItemInfo info : itemsIdMap) {
+                if (info instanceof ShortcutInfo
+                        && info.itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
+                    ComponentName cn = ((ShortcutInfo) info).getTargetComponent();
+                    if (cn == null) {
+                        continue;
+                    }
+                    ComponentKey key = new ComponentKey(cn, info.user);
+                    ArrayList<ShortcutInfo> shortcuts = index.get(key);
+                    if (shortcuts == null) {
+                        shortcuts = new ArrayList<>(1);
+                        index.put(key, shortcuts);
+                    }
+                    shortcuts.add((ShortcutInfo) info);
+                }
+            }
+            mAppShortcuts = index;
+        }
+        return mAppShortcuts;
+    }
+}
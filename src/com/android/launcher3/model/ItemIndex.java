@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.model;
+
+import android.content.ComponentName;
+
+import com.android.launcher3.ItemInfo;
+import com.android.launcher3.LauncherAppWidgetInfo;
+import com.android.launcher3.LauncherSettings;
+import com.android.launcher3.ShortcutInfo;
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.util.LongArrayMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Secondary indexes over the workspace items, so that the model can find the items of a
+ * package, a container or a screen without walking all the items.
+ *
+ * <p> An item is indexed under the package of the component it launches or its widget provider,
+ * and under the package of its icon resource. It is indexed by screen only if it is directly on
+ * the desktop.
+ *
+ * <p> Not thread safe. The model updates it under its lock, together with the items map. The
+ * keys an item was indexed with are remembered, so {@link #update} also works after the item
+ * has been changed in place. Readers which don't hold the lock use the snapshot published with
+ * the {@link BgDataModel}, which is never changed. Snapshots share the item lists with the index,
+ * which copies a list the first time it changes it after a snapshot, so publishing a change to a
+ * few items doesn't copy the lists of all the others.
+ */
+public class ItemIndex {
+
+    private static class PackageKey {
+        final String packageName;
+        final UserHandleCompat user;
+        private final int mHashCode;
+
+        PackageKey(String packageName, UserHandleCompat user) {
+            this.packageName = packageName;
+            this.user = user;
+            mHashCode = Arrays.hashCode(new Object[] {packageName, user});
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PackageKey)) {
+                return false;
+            }
+            PackageKey other = (PackageKey) o;
+            return packageName.equals(other.packageName)
+                    && (user == null ? other.user == null : user.equals(other.user));
+        }
+    }
+
+    /** The keys an item is currently indexed with. */
+    private static class Keys {
+        final PackageKey[] packages;
+        final long container;
+        final long screenId;
+
+        Keys(PackageKey[] packages, long container, long screenId) {
+            this.packages = packages;
+            this.container = container;
+            this.screenId = screenId;
+        }
+    }
+
+    private final LongArrayMap<Keys> mKeys = new LongArrayMap<>();
+    private final HashMap<PackageKey, LongArrayMap<ItemInfo>> mByPackage;
+    private final LongArrayMap<LongArrayMap<ItemInfo>> mByContainer;
+    private final LongArrayMap<LongArrayMap<ItemInfo>> mByScreen;
+    // The item lists created or copied since the last snapshot, which can be changed in place.
+    private final Set<LongArrayMap<ItemInfo>> mUnshared =
+            Collections.newSetFromMap(new IdentityHashMap<LongArrayMap<ItemInfo>, Boolean>());
+
+    public ItemIndex() {
+        this(new HashMap<PackageKey, LongArrayMap<ItemInfo>>(),
+                new LongArrayMap<LongArrayMap<ItemInfo>>(),
+                new LongArrayMap<LongArrayMap<ItemInfo>>());
+    }
+
+    private ItemIndex(HashMap<PackageKey, LongArrayMap<ItemInfo>> byPackage,
+            LongArrayMap<LongArrayMap<ItemInfo>> byContainer,
+            LongArrayMap<LongArrayMap<ItemInfo>> byScreen) {
+        mByPackage = byPackage;
+        mByContainer = byContainer;
+        mByScreen = byScreen;
+    }
+
+    /**
+     * Returns a copy of the index for reading, which does not change with it. The copy must not
+     * be updated. This costs the number of item lists, not the number of items.
+     */
+    public ItemIndex snapshot() {
+        mUnshared.clear();
+        return new ItemIndex(new HashMap<>(mByPackage), mByContainer.clone(), mByScreen.clone());
+    }
+
+    /**
+     * Indexes the item, or moves it to its current keys if it was already indexed.
+     */
+    public void update(ItemInfo item) {
+        remove(item.id);
+
+        Keys keys = new Keys(getPackageKeys(item), item.container,
+                item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP
+                        ? item.screenId : ItemInfo.NO_ID);
+        mKeys.put(item.id, keys);
+        for (PackageKey key : keys.packages) {
+            LongArrayMap<ItemInfo> items = getUnshared(mByPackage.get(key));
+            mByPackage.put(key, items);
+            items.put(item.id, item);
+        }
+        add(mByContainer, keys.container, item);
+        if (keys.screenId != ItemInfo.NO_ID) {
+            add(mByScreen, keys.screenId, item);
+        }
+    }
+
+    public void remove(long id) {
+        Keys keys = mKeys.get(id);
+        if (keys == null) {
+            return;
+        }
+        mKeys.remove(id);
+        for (PackageKey key : keys.packages) {
+            LongArrayMap<ItemInfo> items = getUnshared(mByPackage.get(key));
+            items.remove(id);
+            if (items.isEmpty()) {
+                mByPackage.remove(key);
+                mUnshared.remove(items);
+            } else {
+                mByPackage.put(key, items);
+            }
+        }
+        remove(mByContainer, keys.container, id);
+        if (keys.screenId != ItemInfo.NO_ID) {
+            remove(mByScreen, keys.screenId, id);
+        }
+    }
+
+    public void clear() {
+        mKeys.clear();
+        mByPackage.clear();
+        mByContainer.clear();
+        mByScreen.clear();
+        mUnshared.clear();
+    }
+
+    /**
+     * Adds the items which use the given package to {@param out}, including items in folders.
+     * Callers should check how an item uses the package, see the class comment.
+     */
+    public void getItemsForPackage(String packageName, UserHandleCompat user,
+            ArrayList<ItemInfo> out) {
+        addAll(mByPackage.get(new PackageKey(packageName, user)), out);
+    }
+
+    /**
+     * Adds the items in the given container to {@param out}. The container is either the id of
+     * a folder, or one of {@link LauncherSettings.Favorites#CONTAINER_DESKTOP} and
+     * {@link LauncherSettings.Favorites#CONTAINER_HOTSEAT}.
+     */
+    public void getItemsInContainer(long container, ArrayList<ItemInfo> out) {
+        addAll(mByContainer.get(container), out);
+    }
+
+    /**
+     * Adds the items directly on the given desktop screen to {@param out}.
+     */
+    public void getItemsOnScreen(long screenId, ArrayList<ItemInfo> out) {
+        addAll(mByScreen.get(screenId), out);
+    }
+
+    private static PackageKey[] getPackageKeys(ItemInfo item) {
+        String target = null;
+        String iconPackage = null;
+        if (item instanceof ShortcutInfo) {
+            ShortcutInfo si = (ShortcutInfo) item;
+            ComponentName cn = si.getIntent() != null ? si.getTargetComponent() : null;
+            if (cn != null) {
+                target = cn.getPackageName();
+            }
+            if (si.iconResource != null) {
+                iconPackage = si.iconResource.packageName;
+            }
+        } else if (item instanceof LauncherAppWidgetInfo) {
+            ComponentName provider = ((LauncherAppWidgetInfo) item).providerName;
+            if (provider != null) {
+                target = provider.getPackageName();
+            }
+        }
+
+        if (iconPackage != null && iconPackage.equals(target)) {
+            iconPackage = null;
+        }
+        if (target == null && iconPackage == null) {
+            return new PackageKey[0];
+        } else if (target == null || iconPackage == null) {
+            return new PackageKey[] {
+                    new PackageKey(target != null ? target : iconPackage, item.user)};
+        } else {
+            return new PackageKey[] {
+                    new PackageKey(target, item.user), new PackageKey(iconPackage, item.user)};
+        }
+    }
+
+    /**
+     * Returns the item list to change in place of {@param items}: a new list if it is null, or
+     * a copy if it is shared with a snapshot.
+     */
+    private LongArrayMap<ItemInfo> getUnshared(LongArrayMap<ItemInfo> items) {
+        if (items != null && mUnshared.contains(items)) {
+            return items;
+        }
+        items = items == null ? new LongArrayMap<ItemInfo>() : items.clone();
+        mUnshared.add(items);
+        return items;
+    }
+
+    private void add(LongArrayMap<LongArrayMap<ItemInfo>> index, long key, ItemInfo item) {
+        LongArrayMap<ItemInfo> items = getUnshared(index.get(key));
+        index.put(key, items);
+        items.put(item.id, item);
+    }
+
+    private void remove(LongArrayMap<LongArrayMap<ItemInfo>> index, long key, long id) {
+        LongArrayMap<ItemInfo> items = index.get(key);
+        if (items != null) {
+            items = getUnshared(items);
+            items.remove(id);
+            if (items.isEmpty()) {
+                index.remove(key);
+                mUnshared.remove(items);
+            } else {
+                index.put(key, items);
+            }
+        }
+    }
+
+    private static void addAll(LongArrayMap<ItemInfo> items, ArrayList<ItemInfo> out) {
+        if (items != null) {
+            for (ItemInfo item : items) {
+                out.add(item);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.model;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Always-on timing of the loader phases. The durations of the last {@link #CAPACITY} phases
+ * are kept in a ring buffer, which can be read with {@link #getRecords()} or dumped.
+ *
+ * <p> Usage:
+ * <pre>
+ *     long start = LoaderTrace.start();
+ *     doWork();
+ *     LoaderTrace.end(LoaderTrace.PHASE_CURSOR_SCAN, start, itemCount);
+ * </pre>
+ */
+public class LoaderTrace {
+    private static final String TAG = "Launcher.LoaderTrace";
+
+    public static final int PHASE_RESTORE_MIGRATION = 0;
+    public static final int PHASE_DEFAULT_FAVORITES = 1;
+    public static final int PHASE_CURSOR_SCAN = 2;
+    public static final int PHASE_ICON_DECODE = 3;
+    public static final int PHASE_VERIFY_APPLICATIONS = 4;
+    public static final int PHASE_UPDATE_ICON_CACHE = 5;
+    public static final int PHASE_BIND_CHUNK = 6;
+    public static final int PHASE_FINISH_BINDING = 7;
+    public static final int PHASE_LOAD_WORKSPACE = 8;
+    public static final int PHASE_LOAD_ALL_APPS = 9;
+
+    private static final String[] PHASE_NAMES = {
+            "restoreMigration", "defaultFavorites", "cursorScan", "iconDecode",
+            "verifyApplications", "updateIconCache", "bindChunk", "finishBindingItems",
+            "loadWorkspace", "loadAllApps"};
+
+    public static final int CAPACITY = 128;
+
+    /**
+     * A single timed phase.
+     */
+    public static class Record {
+        /** The loader run this phase belongs to, see {@link #startRun()}. */
+        public final int run;
+        public final int phase;
+        /** {@link SystemClock#uptimeMillis()} at the start of the phase. */
+        public final long startTime;
+        public final long durationMicros;
+        /** The number of items processed in this phase, or -1. */
+        public final int count;
+
+        Record(int run, int phase, long startTime, long durationMicros, int count) {
+            this.run = run;
+            this.phase = phase;
+            this.startTime = startTime;
+            this.durationMicros = durationMicros;
+            this.count = count;
+        }
+
+        @Override
+        public String toString() {
+            return "run=" + run + " " + PHASE_NAMES[phase] + " at=" + startTime
+                    + " took=" + (durationMicros / 1000f) + "ms"
+                    + (count >= 0 ? " count=" + count : "");
+        }
+    }
+
+    private static final Record[] sRecords = new Record[CAPACITY];
+    private static int sNext = 0;
+    private static int sSize = 0;
+    private static int sRun = 0;
+
+    /**
+     * Starts a new loader run. Phases recorded from now on are tagged with the new run id.
+     */
+    public static synchronized int startRun() {
+        return ++sRun;
+    }
+
+    /**
+     * @return the start time to pass to {@link #end}.
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    public static void end(int phase, long startNanos) {
+        end(phase, startNanos, -1);
+    }
+
+    public static void end(int phase, long startNanos, int count) {
+        long durationNanos = System.nanoTime() - startNanos;
+        add(phase, durationNanos, count);
+    }
+
+    /**
+     * Records a phase whose time was measured elsewhere, for example summed over several threads.
+     */
+    public static void add(int phase, long durationNanos, int count) {
+        long startTime = SystemClock.uptimeMillis() - durationNanos / 1000000;
+        synchronized (LoaderTrace.class) {
+            sRecords[sNext] = new Record(sRun, phase, startTime, durationNanos / 1000, count);
+            sNext = (sNext + 1) % CAPACITY;
+            sSize = Math.min(sSize + 1, CAPACITY);
+        }
+    }
+
+    /**
+     * @return the recorded phases, oldest first.
+     */
+    public static synchronized ArrayList<Record> getRecords() {
+        ArrayList<Record> records = new ArrayList<>(sSize);
+        int first = (sNext - sSize + CAPACITY) % CAPACITY;
+        for (int i = 0; i < sSize; i++) {
+            records.add(sRecords[(first + i) % CAPACITY]);
+        }
+        return records;
+    }
+
+    public static void dumpState() {
+        for (Record record : getRecords()) {
+            Log.d(TAG, record.toString());
+        }
+    }
+
+    public static void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "Loader phases:");
+        for (Record record : getRecords()) {
+            writer.println(prefix + "  " + record);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * A small pool of mutable bitmaps which are no longer used, so that icons can be decoded and
+ * drawn into them instead of into new allocations.
+ *
+ * Only bitmaps which nothing else references may be put in the pool, like the intermediate
+ * bitmaps of a decode or a scale. Icons handed out by the {@link com.android.launcher3.IconCache}
+ * are shared with the model and the views, so they never come back here, even when the cache
+ * drops them.
+ *
+ * Thread safe.
+ */
+public class BitmapPool {
+
+    private static final int MAX_BYTES = 2 * 1024 * 1024;
+
+    private static final BitmapPool sInstance = new BitmapPool(MAX_BYTES);
+
+    public static BitmapPool getInstance() {
+        return sInstance;
+    }
+
+    private final int mMaxBytes;
+
+    // Oldest first. The pool is small, so a linear search is cheaper than any map.
+    private final ArrayList<Bitmap> mBitmaps = new ArrayList<>();
+    private int mBytes;
+
+    private long mReuseCount;
+    private long mReusedBytes;
+    private long mMissCount;
+    private long mDropCount;
+
+    BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return a transparent bitmap with the given size and config from the pool, or null if the
+     * pool has none. The caller owns the bitmap.
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = null;
+        synchronized (this) {
+            for (int i = mBitmaps.size() - 1; i >= 0; i--) {
+                Bitmap b = mBitmaps.get(i);
+                if (b.getWidth() == width && b.getHeight() == height && b.getConfig() == config) {
+                    bitmap = mBitmaps.remove(i);
+                    mBytes -= getByteCount(bitmap);
+                    mReuseCount++;
+                    mReusedBytes += getByteCount(bitmap);
+                    break;
+                }
+            }
+            if (bitmap == null) {
+                mMissCount++;
+                return null;
+            }
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Returns a pooled bitmap if there is one, or a new bitmap.
+     */
+    public Bitmap getOrCreate(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = get(width, height, config);
+        return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Gives a bitmap to the pool. The caller must own the bitmap and not use it afterwards.
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int size = getByteCount(bitmap);
+        synchronized (this) {
+            if (size > mMaxBytes) {
+                mDropCount++;
+                return;
+            }
+            mBitmaps.add(bitmap);
+            mBytes += size;
+            while (mBytes > mMaxBytes) {
+                mBytes -= getByteCount(mBitmaps.remove(0));
+                mDropCount++;
+            }
+        }
+    }
+
+    /**
+     * Decodes data written by {@link IconCodec} into a pooled bitmap of the expected size, if
+     * there is one. Data of another size is decoded into a new bitmap.
+     *
+     * @return the decoded bitmap, which is always mutable, or null if the data is invalid.
+     */
+    public Bitmap decode(byte[] data, BitmapFactory.Options opts, int width, int height,
+            Bitmap.Config config) {
+        if (opts == null) {
+            opts = new BitmapFactory.Options();
+        }
+        opts.inMutable = true;
+        opts.inBitmap = get(width, height, config);
+        Bitmap bitmap = IconCodec.decode(data, opts);
+        if (bitmap == null && opts.inBitmap != null) {
+            // The data has another size or config, the pooled bitmap can not be used.
+            opts.inBitmap = null;
+            bitmap = IconCodec.decode(data, opts);
+        }
+        opts.inBitmap = null;
+        return bitmap;
+    }
+
+    private static int getByteCount(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "Bitmap pool: " + mBitmaps.size() + " bitmaps, "
+                + mBytes / 1024 + "/" + mMaxBytes / 1024 + "KB reused=" + mReuseCount
+                + " (" + mReusedBytes / 1024 + "KB) misses=" + mMissCount
+                + " dropped=" + mDropCount);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PaintFlagsDrawFilter;
+import android.graphics.Rect;
+
+/**
+ * Drawing objects for rendering icons, one set per thread, so that icons can be rendered on
+ * several threads at once without sharing a canvas.
+ *
+ * <p> Usage:
+ * <pre>
+ *     CanvasPool.Holder h = CanvasPool.get();
+ *     h.canvas.setBitmap(bitmap);
+ *     ...
+ *     h.canvas.setBitmap(null);
+ * </pre>
+ * The objects must not be kept after the drawing is done, and the canvas must be detached from
+ * the bitmap.
+ */
+public class CanvasPool {
+
+    public static class Holder {
+        /** Filters bitmaps and does not dither. */
+        public final Canvas canvas = new Canvas();
+        /** Filters and anti-aliases bitmaps. */
+        public final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
+        public final Rect srcRect = new Rect();
+        public final Rect dstRect = new Rect();
+        public final Rect oldBounds = new Rect();
+
+        Holder() {
+            canvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
+                    Paint.FILTER_BITMAP_FLAG));
+        }
+    }
+
+    private static final ThreadLocal<Holder> sHolders = new ThreadLocal<Holder>() {
+        @Override
+        protected Holder initialValue() {
+            return new Holder();
+        }
+    };
+
+    /**
+     * @return the drawing objects of the calling thread.
+     */
+    public static Holder get() {
+        return sHolders.get();
+    }
+}
@@ -43,28 +43,55 @@ public class CursorIconInfo {
     }
 
     public Bitmap loadIcon(Cursor c, ShortcutInfo info, Context context) {
-        Bitmap icon = null;
-        int iconType = c.getInt(iconTypeIndex);
-        switch (iconType) {
-        case LauncherSettings.Favorites.ICON_TYPE_RESOURCE:
-            String packageName = c.getString(iconPackageIndex);
-            String resourceName = c.getString(iconResourceIndex);
-            if (!TextUtils.isEmpty(packageName) || !TextUtils.isEmpty(resourceName)) {
-                info.iconResource = new ShortcutIconResource();
-                info.iconResource.packageName = packageName;
-                info.iconResource.resourceName = resourceName;
-                icon = Utilities.createIconBitmap(packageName, resourceName, context);
-            }
-            if (icon == null) {
-                // Failed to load from resource, try loading from DB.
-                icon = Utilities.createIconBitmap(c, iconIndex, context);
+        return readRow(c).loadIcon(info, context);
+    }
+
+    /**
+     * Copies the icon columns of the current row, so that the icon can be decoded after the
+     * cursor has moved on, possibly on a different thread.
+     */
+    public IconRow readRow(Cursor c) {
+        return new IconRow(c.getInt(iconTypeIndex), c.getString(iconPackageIndex),
+                c.getString(iconResourceIndex), c.getBlob(iconIndex));
+    }
+
+    /**
+     * Icon columns of a single favorites row.
+     */
+    public static class IconRow {
+        public final int iconType;
+        public final String packageName;
+        public final String resourceName;
+        public final byte[] data;
+
+        public IconRow(int iconType, String packageName, String resourceName, byte[] data) {
+            this.iconType = iconType;
+            this.packageName = packageName;
+            this.resourceName = resourceName;
+            this.data = data;
+        }
+
+        public Bitmap loadIcon(ShortcutInfo info, Context context) {
+            Bitmap icon = null;
+            switch (iconType) {
+            case LauncherSettings.Favorites.ICON_TYPE_RESOURCE:
+                if (!TextUtils.isEmpty(packageName) || !TextUtils.isEmpty(resourceName)) {
+                    info.iconResource = new ShortcutIconResource();
+                    info.iconResource.packageName = packageName;
+                    info.iconResource.resourceName = resourceName;
+                    icon = Utilities.createIconBitmap(packageName, resourceName, context);
+                }
+                if (icon == null) {
+                    // Failed to load from resource, try loading from DB.
+                    icon = Utilities.createIconBitmap(data, context);
+                }
+                break;
+            case LauncherSettings.Favorites.ICON_TYPE_BITMAP:
+                icon = Utilities.createIconBitmap(data, context);
+                info.customIcon = icon != null;
+                break;
             }
-            break;
-        case LauncherSettings.Favorites.ICON_TYPE_BITMAP:
-            icon = Utilities.createIconBitmap(c, iconIndex, context);
-            info.customIcon = icon != null;
-            break;
+            return icon;
         }
-        return icon;
     }
 }
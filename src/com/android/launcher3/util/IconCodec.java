@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.android.launcher3.Utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes bitmaps for the launcher's private caches. Encoded data starts with a tag naming its
+ * format, so that the format can change without invalidating the caches: data in an older
+ * format still decodes, and {@link #needsMigration} tells the cache to write it again.
+ *
+ * PNG data has no tag, so it stays readable by {@link BitmapFactory}. It is used for data which
+ * leaves the launcher, like backups and the favorites table, see {@link Utilities#flattenBitmap}.
+ */
+public abstract class IconCodec {
+    private static final String TAG = "Launcher.IconCodec";
+
+    /** Plain PNG, also what the caches were written with before formats were tagged. */
+    public static final int FORMAT_PNG = 0;
+    /** Raw pixels compressed with a fast deflate. */
+    public static final int FORMAT_RAW_DEFLATE = 1;
+
+    /** The format new data is written in. */
+    public static final int CURRENT_FORMAT = FORMAT_RAW_DEFLATE;
+
+    // Never the start of a PNG, which begins with 0x89.
+    private static final byte[] TAG_PREFIX = {'L', 'I', 'C'};
+    private static final int TAG_SIZE = TAG_PREFIX.length + 1;
+
+    private static final IconCodec[] CODECS = {new PngCodec(), new RawDeflateCodec()};
+
+    /**
+     * Writes the bitmap, without the format tag.
+     * @return the encoded data or null on error.
+     */
+    protected abstract byte[] encodeData(Bitmap bitmap);
+
+    /**
+     * Reads a bitmap written by {@link #encodeData}.
+     */
+    protected abstract Bitmap decodeData(byte[] data, int offset, BitmapFactory.Options opts);
+
+    public static byte[] encode(Bitmap bitmap) {
+        return encode(bitmap, CURRENT_FORMAT);
+    }
+
+    /**
+     * @return the tagged data, or null on error.
+     */
+    public static byte[] encode(Bitmap bitmap, int format) {
+        byte[] data = CODECS[format].encodeData(bitmap);
+        if (data == null || format == FORMAT_PNG) {
+            return data;
+        }
+        byte[] tagged = new byte[TAG_SIZE + data.length];
+        System.arraycopy(TAG_PREFIX, 0, tagged, 0, TAG_PREFIX.length);
+        tagged[TAG_PREFIX.length] = (byte) format;
+        System.arraycopy(data, 0, tagged, TAG_SIZE, data.length);
+        return tagged;
+    }
+
+    /**
+     * Decodes data in any format.
+     * @param opts decoding options, only some of which may be supported by the format.
+     * @return the bitmap or null if the data is invalid.
+     */
+    public static Bitmap decode(byte[] data, BitmapFactory.Options opts) {
+        if (data == null) {
+            return null;
+        }
+        int format = getFormat(data);
+        if (format < 0 || format >= CODECS.length) {
+            Log.w(TAG, "Unknown icon format " + format);
+            return null;
+        }
+        try {
+            return CODECS[format].decodeData(data, format == FORMAT_PNG ? 0 : TAG_SIZE, opts);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to decode icon", e);
+            return null;
+        }
+    }
+
+    public static int getFormat(byte[] data) {
+        if (data.length < TAG_SIZE) {
+            return FORMAT_PNG;
+        }
+        for (int i = 0; i < TAG_PREFIX.length; i++) {
+            if (data[i] != TAG_PREFIX[i]) {
+                return FORMAT_PNG;
+            }
+        }
+        return data[TAG_PREFIX.length];
+    }
+
+    /**
+     * @return true if the data should be written again in the current format.
+     */
+    public static boolean needsMigration(byte[] data) {
+        return data != null && getFormat(data) != CURRENT_FORMAT;
+    }
+
+    private static class PngCodec extends IconCodec {
+        @Override
+        protected byte[] encodeData(Bitmap bitmap) {
+            return Utilities.flattenBitmap(bitmap);
+        }
+
+        @Override
+        protected Bitmap decodeData(byte[] data, int offset, BitmapFactory.Options opts) {
+            return BitmapFactory.decodeByteArray(data, offset, data.length - offset, opts);
+        }
+    }
+
+    /**
+     * The pixels as they are in memory, deflated at the fastest level. Icons are mostly
+     * transparent or flat, so this is close to the size of a PNG at a fraction of the CPU cost,
+     * and decoding is a single inflate into the bitmap.
+     *
+     * Layout: width (int), height (int), config (byte), deflated pixels.
+     */
+    private static class RawDeflateCodec extends IconCodec {
+        private static final int HEADER_SIZE = 9;
+        private static final byte CONFIG_ARGB_8888 = 0;
+        private static final byte CONFIG_RGB_565 = 1;
+
+        @Override
+        protected byte[] encodeData(Bitmap bitmap) {
+            byte config;
+            if (bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+                config = CONFIG_ARGB_8888;
+            } else if (bitmap.getConfig() == Bitmap.Config.RGB_565) {
+                config = CONFIG_RGB_565;
+            } else {
+                return null;
+            }
+            ByteBuffer pixels = ByteBuffer.allocate(bitmap.getRowBytes() * bitmap.getHeight());
+            bitmap.copyPixelsToBuffer(pixels);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(pixels.capacity() / 4);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(bitmap.getWidth());
+            header.putInt(bitmap.getHeight());
+            header.put(config);
+            out.write(header.array(), 0, HEADER_SIZE);
+
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(pixels.array());
+                deflater.finish();
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(buffer);
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                deflater.end();
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        protected Bitmap decodeData(byte[] data, int offset, BitmapFactory.Options opts) {
+            ByteBuffer header = ByteBuffer.wrap(data, offset, HEADER_SIZE);
+            int width = header.getInt();
+            int height = header.getInt();
+            Bitmap.Config config = header.get() == CONFIG_RGB_565
+                    ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+
+            Bitmap bitmap = null;
+            if (opts != null && opts.inBitmap != null && opts.inBitmap.isMutable()
+                    && opts.inBitmap.getWidth() == width && opts.inBitmap.getHeight() == height
+                    && opts.inBitmap.getConfig() == config) {
+                bitmap = opts.inBitmap;
+            }
+            if (bitmap == null) {
+                bitmap = Bitmap.createBitmap(width, height, config);
+            }
+
+            byte[] pixels = new byte[bitmap.getRowBytes() * height];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data, offset + HEADER_SIZE, data.length - offset - HEADER_SIZE);
+                int read = 0;
+                while (read < pixels.length && !inflater.finished()) {
+                    int count = inflater.inflate(pixels, read, pixels.length - read);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    read += count;
+                }
+                if (read != pixels.length) {
+                    Log.w(TAG, "Truncated icon data");
+                    return null;
+                }
+            } catch (DataFormatException e) {
+                Log.w(TAG, "Invalid icon data", e);
+                return null;
+            } finally {
+                inflater.end();
+            }
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+            return bitmap;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.util;
+
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small, bounded pool of background threads used by the model to spread CPU heavy work
+ * (icon decoding and rendering) across cores. Tasks run here must never touch the sBg*
+ * collections of {@link com.android.launcher3.LauncherModel} directly; they should only
+ * compute results which are then published from the worker thread.
+ */
+public class WorkerPool {
+
+    private static final int MAX_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    /**
+     * Returns the shared executor, creating it if necessary. Idle threads are released after a
+     * few seconds, so the pool costs nothing once loading is done.
+     */
+    public static synchronized ExecutorService get() {
+        if (sExecutor == null) {
+            int threads = getThreadCount();
+            sExecutor = new ThreadPoolExecutor(threads, threads,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new PoolThreadFactory());
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * @return the number of threads in the pool. This leaves one core for the UI thread.
+     */
+    public static int getThreadCount() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(MAX_THREADS, cores - 1));
+    }
+
+    private static class PoolThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
+                    r.run();
+                }
+            }, "launcher-pool-" + mCount.getAndIncrement());
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.launcher3;
+
+import android.content.ComponentName;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.launcher3.allapps.AppSearchIndex;
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.util.ComponentKey;
+
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Tests the {@link AppSearchIndex} against the title matching it replaced.
+ */
+@SmallTest
+public class AppSearchIndexTest extends AndroidTestCase {
+
+    private static final Pattern SPLIT_PATTERN = Pattern.compile("[\\s|\\p{javaSpaceChar}]+");
+
+    // Titles with leading and non-breaking spaces, which are separators too.
+    private static final String[] TITLES = {
+            "Calculator", "Calendar", "Camera", "Clock", "Contacts", "Google Maps",
+            "Google Play Movies & TV", "Maps", "Play Music", "Play Store", " Settings",
+            "Sound\u00a0Recorder"};
+
+    private static final String[] QUERIES = {
+            "c", "ca", "cal", "CAM", "maps", "g m", "m g", "play", " play", "play  s", "PLAY S",
+            "tv", "&", "set", "recorder", "sound rec", "xyz", "google xyz", "", " "};
+
+    private ArrayList<AppInfo> mApps;
+    private AppSearchIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mApps = new ArrayList<>();
+        mIndex = new AppSearchIndex(null);
+        for (int i = 0; i < TITLES.length; i++) {
+            AppInfo app = createApp("app" + i, TITLES[i]);
+            mApps.add(app);
+            mIndex.addOrUpdate(app);
+        }
+        mIndex.setOrder(mApps);
+    }
+
+    public void testSearchMatchesTitleWords() {
+        for (String query : QUERIES) {
+            assertEquals("query '" + query + "'", matchTitles(query), mIndex.search(query));
+        }
+    }
+
+    public void testFilterMatchesSearch() {
+        ArrayList<ComponentKey> all = mIndex.search("");
+        for (String query : QUERIES) {
+            assertEquals("query '" + query + "'", mIndex.search(query),
+                    mIndex.filter(all, query));
+        }
+    }
+
+    public void testUpdateAndRemove() {
+        AppInfo camera = mApps.get(2);
+        camera.title = "Photos";
+        mIndex.addOrUpdate(camera);
+        assertTrue(mIndex.search("cam").isEmpty());
+        assertEquals(1, mIndex.search("pho").size());
+
+        mIndex.remove(mApps.get(0));
+        assertEquals(1, mIndex.search("cal").size());
+        assertEquals(mApps.get(1).toComponentKey(), mIndex.search("cal").get(0));
+    }
+
+    public void testVersionChangesWithApps() {
+        int version = mIndex.getVersion();
+        mIndex.remove(mApps.get(0));
+        assertTrue(version != mIndex.getVersion());
+    }
+
+    /**
+     * The matching done before the index: every query word starts a word of the title.
+     */
+    private ArrayList<ComponentKey> matchTitles(String query) {
+        String[] queryWords = SPLIT_PATTERN.split(query.toLowerCase());
+        ArrayList<ComponentKey> result = new ArrayList<>();
+        for (AppInfo app : mApps) {
+            String[] words = SPLIT_PATTERN.split(app.title.toString().toLowerCase());
+            boolean matches = true;
+            for (String queryWord : queryWords) {
+                boolean foundMatch = false;
+                for (String word : words) {
+                    if (word.startsWith(queryWord)) {
+                        foundMatch = true;
+                        break;
+                    }
+                }
+                if (!foundMatch) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                result.add(app.toComponentKey());
+            }
+        }
+        return result;
+    }
+
+    static AppInfo createApp(String className, String title) {
+        AppInfo app = new AppInfo();
+        app.componentName = new ComponentName("com.example", "com.example." + className);
+        app.title = title;
+        app.user = UserHandleCompat.myUserHandle();
+        return app;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.launcher3;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.launcher3.allapps.AppSearchIndex;
+import com.android.launcher3.allapps.AppSearchSession;
+import com.android.launcher3.util.ComponentKey;
+
+import java.util.ArrayList;
+
+/**
+ * Tests that the {@link AppSearchSession} returns the results of the {@link AppSearchIndex}
+ * while the query is typed and erased.
+ */
+@SmallTest
+public class AppSearchSessionTest extends AndroidTestCase {
+
+    private static final String[] TITLES = {
+            "Calculator", "Calendar", "Camera", "Clock", "Google Calendar", "Play Store"};
+
+    private ArrayList<AppInfo> mApps;
+    private AppSearchIndex mIndex;
+    private AppSearchSession mSession;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mApps = new ArrayList<>();
+        mIndex = new AppSearchIndex(null);
+        for (int i = 0; i < TITLES.length; i++) {
+            AppInfo app = AppSearchIndexTest.createApp("app" + i, TITLES[i]);
+            mApps.add(app);
+            mIndex.addOrUpdate(app);
+        }
+        mIndex.setOrder(mApps);
+        mSession = new AppSearchSession(mIndex);
+    }
+
+    public void testRefinedQueries() {
+        // Each query extends the previous one, and is answered from its results.
+        for (String query : new String[] {"c", "ca", "cal", "cale", "calen", "calendar g"}) {
+            assertEquals("query '" + query + "'", mIndex.search(query), mSession.search(query));
+        }
+    }
+
+    public void testBackspace() {
+        for (String query : new String[] {"c", "ca", "cal", "ca", "c", "cl", "c", "", "p"}) {
+            assertEquals("query '" + query + "'", mIndex.search(query), mSession.search(query));
+        }
+    }
+
+    public void testQueryCase() {
+        mSession.search("cal");
+        assertEquals(mIndex.search("CALE"), mSession.search("CALE"));
+        assertEquals(mIndex.search("Cal"), mSession.search("Cal"));
+    }
+
+    public void testResultsBelongToCaller() {
+        ArrayList<ComponentKey> result = mSession.search("ca");
+        result.clear();
+        assertEquals(mIndex.search("ca"), mSession.search("ca"));
+    }
+
+    public void testIndexChangeDropsResults() {
+        assertEquals(3, mSession.search("cal").size());
+
+        mIndex.remove(mApps.get(0));
+        assertEquals(mIndex.search("cal"), mSession.search("cal"));
+        assertEquals(mIndex.search("cale"), mSession.search("cale"));
+
+        AppInfo camera = mApps.get(2);
+        camera.title = "Calypso";
+        mIndex.addOrUpdate(camera);
+        mIndex.setOrder(mApps);
+        assertEquals(mIndex.search("cal"), mSession.search("cal"));
+        assertEquals(3, mSession.search("cal").size());
+    }
+}
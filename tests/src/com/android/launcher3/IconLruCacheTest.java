@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.launcher3;
+
+import android.content.ComponentCallbacks2;
+import android.content.ComponentName;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.launcher3.IconCache.CacheEntry;
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.util.ComponentKey;
+
+/**
+ * Tests the byte budgets of the {@link IconLruCache}.
+ */
+@SmallTest
+public class IconLruCacheTest extends AndroidTestCase {
+
+    private static final int ENTRY_BYTES = 100;
+    private static final int MAX_FULL_RES_BYTES = 10 * ENTRY_BYTES;
+    private static final int MAX_LOW_RES_BYTES = 5 * ENTRY_BYTES;
+
+    private IconLruCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new IconLruCache(MAX_FULL_RES_BYTES, MAX_LOW_RES_BYTES);
+    }
+
+    public void testFitsInBudget() {
+        for (int i = 0; i < 10; i++) {
+            mCache.put(key(i), entry(false), ENTRY_BYTES);
+        }
+        assertEquals(10, mCache.getFullResCount());
+        assertEquals(MAX_FULL_RES_BYTES, mCache.getFullResBytes());
+        assertEquals(0, mCache.getEvictionCount());
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        for (int i = 0; i < 10; i++) {
+            mCache.put(key(i), entry(false), ENTRY_BYTES);
+        }
+        assertNotNull(mCache.get(key(0), false));
+
+        // Going over the budget evicts down to 7/8 of it: 1100 -> 800 bytes.
+        mCache.put(key(10), entry(false), ENTRY_BYTES);
+        assertEquals(3, mCache.getEvictionCount());
+        assertEquals(8 * ENTRY_BYTES, mCache.getFullResBytes());
+        assertNotNull(mCache.get(key(0), false));
+        assertNull(mCache.get(key(1), false));
+        assertNull(mCache.get(key(2), false));
+        assertNull(mCache.get(key(3), false));
+        assertNotNull(mCache.get(key(4), false));
+        assertNotNull(mCache.get(key(10), false));
+    }
+
+    public void testReplaceKeepsByteCount() {
+        mCache.put(key(0), entry(false), ENTRY_BYTES);
+        mCache.put(key(0), entry(false), 2 * ENTRY_BYTES);
+        assertEquals(1, mCache.getFullResCount());
+        assertEquals(2 * ENTRY_BYTES, mCache.getFullResBytes());
+
+        mCache.remove(key(0));
+        assertEquals(0, mCache.getFullResBytes());
+    }
+
+    public void testLowResDoesNotEvictFullRes() {
+        for (int i = 0; i < 10; i++) {
+            mCache.put(key(i), entry(false), ENTRY_BYTES);
+        }
+        for (int i = 10; i < 30; i++) {
+            mCache.put(key(i), entry(true), ENTRY_BYTES);
+        }
+        assertEquals(10, mCache.getFullResCount());
+        assertTrue(mCache.getLowResBytes() <= MAX_LOW_RES_BYTES);
+    }
+
+    public void testLowResOnlyReturnedWhenAllowed() {
+        mCache.put(key(0), entry(true), ENTRY_BYTES);
+        assertNull(mCache.get(key(0), false));
+        assertNotNull(mCache.get(key(0), true));
+        assertTrue(mCache.hasOnlyLowRes(key(0)));
+
+        mCache.put(key(0), entry(false), ENTRY_BYTES);
+        assertFalse(mCache.hasOnlyLowRes(key(0)));
+        assertFalse(mCache.get(key(0), true).isLowResIcon);
+        assertEquals(0, mCache.getLowResBytes());
+    }
+
+    public void testTrimMemoryWhenHidden() {
+        for (int i = 0; i < 10; i++) {
+            mCache.put(key(i), entry(false), ENTRY_BYTES);
+        }
+        for (int i = 10; i < 15; i++) {
+            mCache.put(key(i), entry(true), ENTRY_BYTES);
+        }
+        mCache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(0, mCache.getLowResCount());
+        assertEquals(MAX_FULL_RES_BYTES / 2, mCache.getFullResBytes());
+
+        mCache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, mCache.getFullResCount());
+        assertEquals(0, mCache.getFullResBytes());
+    }
+
+    public void testRemovePackage() {
+        UserHandleCompat user = UserHandleCompat.myUserHandle();
+        mCache.put(new ComponentKey(new ComponentName("com.example.a", "A1"), user),
+                entry(false), ENTRY_BYTES);
+        mCache.put(new ComponentKey(new ComponentName("com.example.a", "A2"), user),
+                entry(true), ENTRY_BYTES);
+        mCache.put(new ComponentKey(new ComponentName("com.example.b", "B"), user),
+                entry(false), ENTRY_BYTES);
+
+        mCache.removePackage("com.example.a", user);
+        assertEquals(1, mCache.getFullResCount());
+        assertEquals(0, mCache.getLowResCount());
+        assertEquals(ENTRY_BYTES, mCache.getFullResBytes());
+    }
+
+    public void testPutAfterPackageRemoved() {
+        int generation = mCache.getPackageGeneration(key(0));
+        mCache.removePackage("com.example", UserHandleCompat.myUserHandle());
+        assertFalse(mCache.put(key(0), entry(false), ENTRY_BYTES, generation));
+        assertNull(mCache.peek(key(0), true));
+
+        generation = mCache.getPackageGeneration(key(0));
+        assertTrue(mCache.put(key(0), entry(false), ENTRY_BYTES, generation));
+        assertNotNull(mCache.peek(key(0), true));
+    }
+
+    private static ComponentKey key(int i) {
+        return new ComponentKey(new ComponentName("com.example", "Activity" + i),
+                UserHandleCompat.myUserHandle());
+    }
+
+    private static CacheEntry entry(boolean lowRes) {
+        CacheEntry entry = new CacheEntry();
+        entry.isLowResIcon = lowRes;
+        return entry;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.launcher3;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.model.ItemIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Tests the {@link ItemIndex} lookups by package, container and screen.
+ */
+@SmallTest
+public class ItemIndexTest extends AndroidTestCase {
+
+    private static final long SCREEN_1 = 1;
+    private static final long SCREEN_2 = 2;
+
+    private UserHandleCompat mUser;
+    private ItemIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mUser = UserHandleCompat.myUserHandle();
+        mIndex = new ItemIndex();
+    }
+
+    public void testPackageLookup() {
+        ShortcutInfo app = createShortcut(1, "com.example.a",
+                LauncherSettings.Favorites.CONTAINER_DESKTOP, SCREEN_1);
+        ShortcutInfo withIcon = createShortcut(2, "com.example.b",
+                LauncherSettings.Favorites.CONTAINER_DESKTOP, SCREEN_1);
+        withIcon.iconResource = new Intent.ShortcutIconResource();
+        withIcon.iconResource.packageName = "com.example.a";
+        LauncherAppWidgetInfo widget = new LauncherAppWidgetInfo(7,
+                new ComponentName("com.example.a", "com.example.a.Widget"));
+        widget.id = 3;
+        widget.container = LauncherSettings.Favorites.CONTAINER_DESKTOP;
+        widget.screenId = SCREEN_2;
+        widget.user = mUser;
+        mIndex.update(app);
+        mIndex.update(withIcon);
+        mIndex.update(widget);
+
+        assertItems(getItemsForPackage("com.example.a"), app, withIcon, widget);
+        assertItems(getItemsForPackage("com.example.b"), withIcon);
+        assertItems(getItemsForPackage("com.example.c"));
+    }
+
+    public void testContainerAndScreenLookup() {
+        FolderInfo folder = new FolderInfo();
+        folder.id = 10;
+        folder.container = LauncherSettings.Favorites.CONTAINER_DESKTOP;
+        folder.screenId = SCREEN_1;
+        ShortcutInfo inFolder = createShortcut(11, "com.example.a", folder.id, 0);
+        ShortcutInfo onDesktop = createShortcut(12, "com.example.b",
+                LauncherSettings.Favorites.CONTAINER_DESKTOP, SCREEN_1);
+        ShortcutInfo inHotseat = createShortcut(13, "com.example.c",
+                LauncherSettings.Favorites.CONTAINER_HOTSEAT, SCREEN_1);
+        mIndex.update(folder);
+        mIndex.update(inFolder);
+        mIndex.update(onDesktop);
+        mIndex.update(inHotseat);
+
+        assertItems(getItemsInContainer(folder.id), inFolder);
+        assertItems(getItemsInContainer(LauncherSettings.Favorites.CONTAINER_DESKTOP),
+                folder, onDesktop);
+        assertItems(getItemsInContainer(LauncherSettings.Favorites.CONTAINER_HOTSEAT),
+                inHotseat);
+        // Only items directly on the desktop are indexed by screen.
+        assertItems(getItemsOnScreen(SCREEN_1), folder, onDesktop);
+    }
+
+    public void testUpdateAfterChangeInPlace() {
+        ShortcutInfo item = createShortcut(1, "com.example.a",
+                LauncherSettings.Favorites.CONTAINER_DESKTOP, SCREEN_1);
+        mIndex.update(item);
+
+        // The model changes the item before updating the index.
+        item.screenId = SCREEN_2;
+        item.intent = createIntent("com.example.b");
+        mIndex.update(item);
+
+        assertItems(getItemsOnScreen(SCREEN_1));
+        assertItems(getItemsOnScreen(SCREEN_2), item);
+        assertItems(getItemsForPackage("com.example.a"));
+        assertItems(getItemsForPackage("com.example.b"), item);
+    }
+
+    public void testRemove() {
+        ShortcutInfo item = createShortcut(1, "com.example.a",
+                LauncherSettings.Favorites.CONTAINER_DESKTOP, SCREEN_1);
+        mIndex.update(item);
+        mIndex.remove(item.id);
+
+        assertItems(getItemsForPackage("com.example.a"));
+        assertItems(getItemsInContainer(LauncherSettings.Favorites.CONTAINER_DESKTOP));
+        assertItems(getItemsOnScreen(SCREEN_1));
+    }
+
+    public void testSnapshotDoesNotChange() {
+        ShortcutInfo first = createShortcut(1, "com.example.a",
+                LauncherSettings.Favorites.CONTAINER_DESKTOP, SCREEN_1);
+        mIndex.update(first);
+        ItemIndex copy = mIndex.snapshot();
+
+        ShortcutInfo second = createShortcut(2, "com.example.a",
+                LauncherSettings.Favorites.CONTAINER_DESKTOP, SCREEN_1);
+        mIndex.update(second);
+        mIndex.remove(first.id);
+
+        ArrayList<ItemInfo> items = new ArrayList<>();
+        copy.getItemsForPackage("com.example.a", mUser, items);
+        assertItems(items, first);
+        items.clear();
+        copy.getItemsOnScreen(SCREEN_1, items);
+        assertItems(items, first);
+    }
+
+    public void testSnapshotsShareUnchangedLists() {
+        ShortcutInfo first = createShortcut(1, "com.example.a",
+                LauncherSettings.Favorites.CONTAINER_DESKTOP, SCREEN_1);
+        ShortcutInfo other = createShortcut(2, "com.example.b",
+                LauncherSettings.Favorites.CONTAINER_HOTSEAT, 0);
+        mIndex.update(first);
+        mIndex.update(other);
+        ItemIndex before = mIndex.snapshot();
+
+        // Changes after a snapshot copy the lists they touch once, then change them in place.
+        ShortcutInfo second = createShortcut(3, "com.example.a",
+                LauncherSettings.Favorites.CONTAINER_DESKTOP, SCREEN_1);
+        mIndex.update(second);
+        mIndex.remove(first.id);
+        ItemIndex after = mIndex.snapshot();
+        mIndex.remove(second.id);
+        mIndex.remove(other.id);
+
+        ArrayList<ItemInfo> items = new ArrayList<>();
+        before.getItemsForPackage("com.example.a", mUser, items);
+        assertItems(items, first);
+        items.clear();
+        after.getItemsForPackage("com.example.a", mUser, items);
+        assertItems(items, second);
+        items.clear();
+        after.getItemsOnScreen(SCREEN_1, items);
+        assertItems(items, second);
+        items.clear();
+        after.getItemsInContainer(LauncherSettings.Favorites.CONTAINER_HOTSEAT, items);
+        assertItems(items, other);
+        assertItems(getItemsForPackage("com.example.a"));
+        assertItems(getItemsOnScreen(SCREEN_1));
+    }
+
+    private ShortcutInfo createShortcut(long id, String packageName, long container,
+            long screenId) {
+        ShortcutInfo info = new ShortcutInfo();
+        info.id = id;
+        info.itemType = LauncherSettings.Favorites.ITEM_TYPE_APPLICATION;
+        info.container = container;
+        info.screenId = screenId;
+        info.intent = createIntent(packageName);
+        info.user = mUser;
+        return info;
+    }
+
+    private static Intent createIntent(String packageName) {
+        return new Intent(Intent.ACTION_MAIN)
+                .setComponent(new ComponentName(packageName, packageName + ".Main"));
+    }
+
+    private ArrayList<ItemInfo> getItemsForPackage(String packageName) {
+        ArrayList<ItemInfo> items = new ArrayList<>();
+        mIndex.getItemsForPackage(packageName, mUser, items);
+        return items;
+    }
+
+    private ArrayList<ItemInfo> getItemsInContainer(long container) {
+        ArrayList<ItemInfo> items = new ArrayList<>();
+        mIndex.getItemsInContainer(container, items);
+        return items;
+    }
+
+    private ArrayList<ItemInfo> getItemsOnScreen(long screenId) {
+        ArrayList<ItemInfo> items = new ArrayList<>();
+        mIndex.getItemsOnScreen(screenId, items);
+        return items;
+    }
+
+    private static void assertItems(ArrayList<ItemInfo> actual, ItemInfo... expected) {
+        assertEquals(expected.length, actual.size());
+        assertEquals(new HashSet<ItemInfo>(Arrays.asList(expected)),
+                new HashSet<ItemInfo>(actual));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.launcher3.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Tests the {@link IconCodec} formats.
+ */
+@SmallTest
+public class IconCodecTest extends AndroidTestCase {
+
+    public void testRawDeflateRoundTrip() {
+        Bitmap icon = createIcon(Bitmap.Config.ARGB_8888);
+        byte[] data = IconCodec.encode(icon);
+        assertEquals(IconCodec.FORMAT_RAW_DEFLATE, IconCodec.getFormat(data));
+        assertFalse(IconCodec.needsMigration(data));
+        assertSamePixels(icon, IconCodec.decode(data, null));
+    }
+
+    public void testRawDeflateRgb565() {
+        Bitmap icon = createIcon(Bitmap.Config.RGB_565);
+        Bitmap decoded = IconCodec.decode(IconCodec.encode(icon), null);
+        assertEquals(Bitmap.Config.RGB_565, decoded.getConfig());
+        assertSamePixels(icon, decoded);
+    }
+
+    public void testRawDeflateReusesBitmap() {
+        Bitmap icon = createIcon(Bitmap.Config.ARGB_8888);
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inBitmap = Bitmap.createBitmap(icon.getWidth(), icon.getHeight(),
+                Bitmap.Config.ARGB_8888);
+        Bitmap decoded = IconCodec.decode(IconCodec.encode(icon), opts);
+        assertSame(opts.inBitmap, decoded);
+        assertSamePixels(icon, decoded);
+    }
+
+    public void testReadsOldPngData() {
+        Bitmap icon = createIcon(Bitmap.Config.ARGB_8888);
+        // Icons cached before the codec are untagged PNGs.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        icon.compress(Bitmap.CompressFormat.PNG, 100, out);
+        byte[] png = out.toByteArray();
+
+        assertEquals(IconCodec.FORMAT_PNG, IconCodec.getFormat(png));
+        assertTrue(IconCodec.needsMigration(png));
+        assertSamePixels(icon, IconCodec.decode(png, null));
+    }
+
+    public void testPngFormatStaysUntagged() {
+        byte[] data = IconCodec.encode(createIcon(Bitmap.Config.ARGB_8888),
+                IconCodec.FORMAT_PNG);
+        assertNotNull(BitmapFactory.decodeByteArray(data, 0, data.length));
+    }
+
+    public void testTruncatedData() {
+        byte[] data = IconCodec.encode(createIcon(Bitmap.Config.ARGB_8888));
+        assertNull(IconCodec.decode(Arrays.copyOf(data, data.length / 2), null));
+        assertNull(IconCodec.decode(null, null));
+    }
+
+    private static Bitmap createIcon(Bitmap.Config config) {
+        Bitmap icon = Bitmap.createBitmap(48, 40, config);
+        for (int y = 0; y < icon.getHeight(); y++) {
+            for (int x = 0; x < icon.getWidth(); x++) {
+                // Opaque, so that RGB_565 keeps the colors of the pattern.
+                icon.setPixel(x, y, (x + y) % 7 == 0 ? Color.BLACK
+                        : Color.rgb(x * 5, y * 6, 255 - x * 5));
+            }
+        }
+        return icon;
+    }
+
+    private static void assertSamePixels(Bitmap expected, Bitmap actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getPixel(x, y), actual.getPixel(x, y));
+            }
+        }
+    }
+}